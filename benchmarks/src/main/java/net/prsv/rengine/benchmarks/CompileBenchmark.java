@@ -0,0 +1,74 @@
+package net.prsv.rengine.benchmarks;
+
+import net.prsv.rengine.CompileOptions;
+import net.prsv.rengine.NFABuilder;
+import net.prsv.rengine.PatternCache;
+import net.prsv.rengine.RToken;
+import net.prsv.rengine.RegexParser;
+import net.prsv.rengine.StateMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Each stage of turning a pattern into a machine. compile() goes through a cache which
+ * keeps nothing, so every call compiles the pattern; compileCached() is the cost of a hit
+ * in the shared cache used by StateMachine.compile().
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+
+    @Param
+    Patterns pattern;
+
+    private final PatternCache uncached = new PatternCache(0);
+    private List<RToken> tokens;
+    private List<RToken> postfix;
+
+    @Setup
+    public void setUp() {
+        tokens = RegexParser.tokenize(pattern.pattern);
+        postfix = RegexParser.infixToPostfix(tokens);
+    }
+
+    @Benchmark
+    public List<RToken> tokenize() {
+        return RegexParser.tokenize(pattern.pattern);
+    }
+
+    @Benchmark
+    public List<RToken> infixToPostfix() {
+        return RegexParser.infixToPostfix(tokens);
+    }
+
+    @Benchmark
+    public StateMachine build() {
+        return NFABuilder.build(postfix, CompileOptions.defaults());
+    }
+
+    @Benchmark
+    public StateMachine compile() {
+        return uncached.get(pattern.pattern);
+    }
+
+    @Benchmark
+    public StateMachine compileCached() {
+        return StateMachine.compile(pattern.pattern);
+    }
+}
@@ -0,0 +1,61 @@
+package net.prsv.rengine.benchmarks;
+
+import net.prsv.rengine.CompileOptions;
+import net.prsv.rengine.Match;
+import net.prsv.rengine.StateMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * run() and find() with each engine. Code generation is turned off, so the numbers are
+ * those of the engine itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EngineBenchmark {
+
+    @Param({"LITERAL", "WIDE_RANGES", "NESTED_STARS"})
+    Patterns pattern;
+
+    @Param({"AUTO", "NFA", "LAZY_DFA", "DFA"})
+    CompileOptions.Engine engine;
+
+    @Param({"100", "10000", "1000000"})
+    int length;
+
+    private StateMachine machine;
+    private String input;
+
+    @Setup
+    public void setUp() {
+        machine = StateMachine.compile(pattern.pattern,
+                CompileOptions.defaults().withEngine(engine).withCodegenThreshold(-1));
+        input = pattern.input(length, new Random(19));
+    }
+
+    @Benchmark
+    public boolean run() {
+        return machine.run(input);
+    }
+
+    @Benchmark
+    public Match find() {
+        return machine.find(input);
+    }
+}
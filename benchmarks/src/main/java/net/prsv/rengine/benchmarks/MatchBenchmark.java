@@ -0,0 +1,51 @@
+package net.prsv.rengine.benchmarks;
+
+import net.prsv.rengine.StateMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * StateMachine.run() with the default options, on inputs from a hundred characters to a
+ * megabyte. This is the path most callers take; code generation is off by default, see
+ * EngineBenchmark for the engines one by one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchBenchmark {
+
+    @Param
+    Patterns pattern;
+
+    @Param({"100", "10000", "1000000"})
+    int length;
+
+    private StateMachine machine;
+    private String input;
+
+    @Setup
+    public void setUp() {
+        machine = StateMachine.compile(pattern.pattern);
+        input = pattern.input(length, new Random(19));
+    }
+
+    @Benchmark
+    public boolean run() {
+        return machine.run(input);
+    }
+}
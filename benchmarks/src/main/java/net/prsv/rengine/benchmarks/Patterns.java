@@ -0,0 +1,74 @@
+package net.prsv.rengine.benchmarks;
+
+import java.util.Random;
+
+/*
+ * The pattern shapes the benchmarks are run with, and inputs of a given length for them.
+ * Inputs are generated from a fixed seed, so every run sees the same characters.
+ */
+public enum Patterns {
+
+    // a plain word, found at the end of prose
+    LITERAL("needle") {
+        @Override
+        String input(int length, Random random) {
+            return prose(length - 6, random) + "needle";
+        }
+    },
+
+    // a bracket expression with many ranges, matching the whole input
+    WIDE_RANGES("[a-zA-Z0-9\u00c0-\u024f\u0400-\u04ff ,.]+") {
+        @Override
+        String input(int length, Random random) {
+            String symbols = "abcXYZ019 ,.\u00e9\u00f8\u0142\u0436\u044f";
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                sb.append(symbols.charAt(random.nextInt(symbols.length())));
+            }
+            return sb.toString();
+        }
+    },
+
+    // stars inside stars, which give the NFA many paths through the same input
+    NESTED_STARS("((a|b)*c*)*(ab)*d") {
+        @Override
+        String input(int length, Random random) {
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length - 1; i++) {
+                sb.append("abc".charAt(random.nextInt(3)));
+            }
+            return sb.append('d').toString();
+        }
+    },
+
+    // a quantifier too large to expand, which is matched with a counter; the other engines
+    // and find() would expand it, so EngineBenchmark leaves it out
+    LARGE_QUANTIFIER("([a-z]|[0-9]){100-2000000}x") {
+        @Override
+        String input(int length, Random random) {
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length - 1; i++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            return sb.append('x').toString();
+        }
+    };
+
+    final String pattern;
+
+    Patterns(String pattern) {
+        this.pattern = pattern;
+    }
+
+    abstract String input(int length, Random random);
+
+    private static String prose(int length, Random random) {
+        String[] words = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "needs"};
+        StringBuilder sb = new StringBuilder(length + 8);
+        while (sb.length() < length) {
+            sb.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        sb.setLength(Math.max(0, length));
+        return sb.toString();
+    }
+}
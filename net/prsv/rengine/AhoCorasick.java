@@ -0,0 +1,225 @@
+package net.prsv.rengine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Aho-Corasick automaton for patterns which are an alternation of plain words, such as
+ * (foo|bar|baz) or ab(c|d).
+ *
+ * The words are put into a trie, and the failure links are folded into a complete
+ * transition table over the symbol classes of the words (see Alphabet), so every input
+ * character costs one table lookup however many words there are. A state stands for the
+ * longest suffix of the input read so far which is a prefix of some word; it knows its depth
+ * in the trie and the length of the longest word which is a suffix of it.
+ *
+ * A whole-input match only follows trie edges: as soon as a transition lands in a state
+ * which is not one deeper than the previous one, the input has left the trie. A search
+ * reports the leftmost match and, among the matches starting there, the longest, the same
+ * as Finder.
+ */
+final class AhoCorasick {
+
+    // alternations which expand to more words than this are left to the other engines
+    private static final int MAX_WORDS = 100_000;
+
+    // largest transition table, in entries, the automaton may use
+    private static final int MAX_TABLE_ENTRIES = 1 << 22;
+
+    private static final int ROOT = 0;
+
+    private final int[] table;
+    private final Alphabet alphabet;
+    private final int classCount;
+    private final int[] depth;
+    // length of the longest word which is a suffix of the state, or 0
+    private final int[] matchLength;
+    // whether the state is the end of a word
+    private final boolean[] terminal;
+    private final int wordCount;
+
+    private AhoCorasick(int[] table, Alphabet alphabet, int[] depth, int[] matchLength,
+                        boolean[] terminal, int wordCount) {
+        this.table = table;
+        this.alphabet = alphabet;
+        this.classCount = alphabet.classCount();
+        this.depth = depth;
+        this.matchLength = matchLength;
+        this.terminal = terminal;
+        this.wordCount = wordCount;
+    }
+
+    /*
+     * Builds the automaton if the postfix token stream is an alternation of plain words,
+     * otherwise returns null.
+     */
+    static AhoCorasick of(List<RToken> postfix) {
+        List<String> words = words(postfix);
+        return words == null ? null : build(words);
+    }
+
+    // the words the pattern matches, or null if it is not an alternation of plain words
+    private static List<String> words(List<RToken> postfix) {
+        Deque<List<String>> stack = new ArrayDeque<>();
+        boolean alternation = false;
+        for (RToken t : postfix) {
+            switch (t.type) {
+                case LITERAL:
+                    stack.push(List.of(String.valueOf(t.literal)));
+                    break;
+                case CHAR_CLASS:
+                    CharClass c = t.charClass;
+                    if (c.rangeCount() != 1 || c.rangeStart(0) != c.rangeEnd(0)) {
+                        return null;
+                    }
+                    stack.push(List.of(String.valueOf(c.rangeStart(0))));
+                    break;
+                case CONCAT:
+                    List<String> right = stack.pop();
+                    List<String> left = stack.pop();
+                    if ((long) left.size() * right.size() > MAX_WORDS) {
+                        return null;
+                    }
+                    List<String> product = new ArrayList<>(left.size() * right.size());
+                    for (String prefix : left) {
+                        for (String suffix : right) {
+                            product.add(prefix + suffix);
+                        }
+                    }
+                    stack.push(product);
+                    break;
+                case UNION:
+                    List<String> alternative = stack.pop();
+                    List<String> union = new ArrayList<>(stack.pop());
+                    if (union.size() + alternative.size() > MAX_WORDS) {
+                        return null;
+                    }
+                    union.addAll(alternative);
+                    stack.push(union);
+                    alternation = true;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        if (!alternation || stack.size() != 1) {
+            return null;
+        }
+        Set<String> distinct = new LinkedHashSet<>(stack.pop());
+        return distinct.size() < 2 ? null : new ArrayList<>(distinct);
+    }
+
+    private static AhoCorasick build(List<String> words) {
+        StringBuilder symbols = new StringBuilder();
+        int maxStates = 1;
+        for (String word : words) {
+            symbols.append(word);
+            maxStates += word.length();
+        }
+        Alphabet alphabet = Alphabet.of(symbols.toString().toCharArray(), new CharClass[0]);
+        int classCount = alphabet.classCount();
+        if ((long) maxStates * classCount > MAX_TABLE_ENTRIES) {
+            return null;
+        }
+
+        // the trie; missing edges are -1 until the failure links fill them in
+        int[] table = new int[maxStates * classCount];
+        Arrays.fill(table, -1);
+        int[] depth = new int[maxStates];
+        boolean[] terminal = new boolean[maxStates];
+        int stateCount = 1;
+        for (String word : words) {
+            int state = ROOT;
+            for (int i = 0; i < word.length(); i++) {
+                int edge = state * classCount + alphabet.classOf(word.charAt(i));
+                if (table[edge] < 0) {
+                    depth[stateCount] = depth[state] + 1;
+                    table[edge] = stateCount++;
+                }
+                state = table[edge];
+            }
+            terminal[state] = true;
+        }
+
+        // breadth-first, so the failure target of a state is complete before its children
+        int[] failure = new int[stateCount];
+        int[] matchLength = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        for (int symbolClass = 0; symbolClass < classCount; symbolClass++) {
+            int child = table[symbolClass];
+            if (child < 0) {
+                table[symbolClass] = ROOT;
+            } else {
+                failure[child] = ROOT;
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            matchLength[state] = terminal[state] ? depth[state] : matchLength[failure[state]];
+            for (int symbolClass = 0; symbolClass < classCount; symbolClass++) {
+                int edge = state * classCount + symbolClass;
+                int fallback = table[failure[state] * classCount + symbolClass];
+                if (table[edge] < 0) {
+                    table[edge] = fallback;
+                } else {
+                    failure[table[edge]] = fallback;
+                    queue[tail++] = table[edge];
+                }
+            }
+        }
+        return new AhoCorasick(Arrays.copyOf(table, stateCount * classCount), alphabet,
+                Arrays.copyOf(depth, stateCount), matchLength,
+                Arrays.copyOf(terminal, stateCount), words.size());
+    }
+
+    int wordCount() {
+        return wordCount;
+    }
+
+    int stateCount() {
+        return depth.length;
+    }
+
+    long estimatedBytes() {
+        return 4L * (table.length + depth.length + matchLength.length) + terminal.length;
+    }
+
+    // whether the whole input is one of the words
+    boolean matches(CharSequence input) {
+        int state = ROOT;
+        for (int i = 0; i < input.length(); i++) {
+            state = table[state * classCount + alphabet.classOf(input.charAt(i))];
+            if (depth[state] != i + 1) {
+                return false;
+            }
+        }
+        return terminal[state];
+    }
+
+    Match find(CharSequence input, int from) {
+        int state = ROOT;
+        int bestStart = -1;
+        int bestEnd = -1;
+        for (int i = from; i < input.length(); i++) {
+            state = table[state * classCount + alphabet.classOf(input.charAt(i))];
+            int end = i + 1;
+            if (bestStart >= 0 && end - depth[state] > bestStart) {
+                // every word still in progress starts after the match already found
+                break;
+            }
+            if (matchLength[state] > 0 && (bestStart < 0 || end - matchLength[state] <= bestStart)) {
+                bestStart = end - matchLength[state];
+                bestEnd = end;
+            }
+        }
+        return bestStart < 0 ? null : new Match(bestStart, bestEnd);
+    }
+}
@@ -0,0 +1,230 @@
+package net.prsv.rengine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Partition of the char range into symbol classes for the table-driven engines.
+ *
+ * The range is cut at every literal symbol and at the bounds of every character class used
+ * by a pattern, which gives intervals that no transition can split. Intervals which are
+ * inside exactly the same literals and classes cannot be told apart either, so they are
+ * merged into one symbol class: [a-cx-z] makes a class of its two ranges and another of
+ * everything else, where the intervals alone would give five. Classes of ASCII characters
+ * are looked up in a table, all other characters by binary search over the interval start
+ * points.
+ */
+final class Alphabet {
+
+    private static final int ASCII = 128;
+
+    // first character of every interval, sorted; interval i is [intervalStarts[i], intervalStarts[i + 1])
+    private final char[] intervalStarts;
+    // symbol class of every interval
+    private final int[] intervalClasses;
+    private final int classCount;
+    // first interval of every class
+    private final int[] firstIntervals;
+    private final int[] asciiClasses;
+
+    private Alphabet(char[] intervalStarts, int[] intervalClasses, int classCount) {
+        this.intervalStarts = intervalStarts;
+        this.intervalClasses = intervalClasses;
+        this.classCount = classCount;
+        this.firstIntervals = new int[classCount];
+        Arrays.fill(firstIntervals, -1);
+        for (int i = 0; i < intervalClasses.length; i++) {
+            if (firstIntervals[intervalClasses[i]] < 0) {
+                firstIntervals[intervalClasses[i]] = i;
+            }
+        }
+        this.asciiClasses = new int[ASCII];
+        for (int c = 0, interval = 0; c < ASCII; c++) {
+            while (interval + 1 < intervalStarts.length && intervalStarts[interval + 1] <= c) {
+                interval++;
+            }
+            asciiClasses[c] = intervalClasses[interval];
+        }
+    }
+
+    /*
+     * Builds the partition for a set of literal symbols and character classes; null
+     * entries in classes are ignored.
+     */
+    static Alphabet of(char[] symbols, CharClass[] classes) {
+        char[] distinctSymbols = distinct(symbols);
+        int cutCount = 1 + 2 * distinctSymbols.length;
+        for (CharClass charClass : classes) {
+            if (charClass != null) {
+                cutCount += 2 * charClass.rangeCount();
+            }
+        }
+        // cut points up to Character.MAX_VALUE + 1, which ends the last interval and is dropped
+        int[] cuts = new int[cutCount];
+        int k = 0;
+        cuts[k++] = 0;
+        for (char symbol : distinctSymbols) {
+            cuts[k++] = symbol;
+            cuts[k++] = symbol + 1;
+        }
+        for (CharClass charClass : classes) {
+            if (charClass == null) continue;
+            for (int i = 0; i < charClass.rangeCount(); i++) {
+                cuts[k++] = charClass.rangeStart(i);
+                cuts[k++] = charClass.rangeEnd(i) + 1;
+            }
+        }
+        Arrays.sort(cuts);
+        char[] starts = new char[cuts.length];
+        int count = 0;
+        for (int cut : cuts) {
+            if (cut <= Character.MAX_VALUE && (count == 0 || cut != starts[count - 1])) {
+                starts[count++] = (char) cut;
+            }
+        }
+        return merge(Arrays.copyOf(starts, count), distinctSymbols, classes);
+    }
+
+    // the symbols sorted, without repetitions
+    private static char[] distinct(char[] symbols) {
+        char[] sorted = symbols.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (char symbol : sorted) {
+            if (count == 0 || symbol != sorted[count - 1]) {
+                sorted[count++] = symbol;
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    static Alphabet of(CompiledNFA nfa) {
+        return of(nfa.transitionSymbols, nfa.stateClasses);
+    }
+
+    /*
+     * Gives every interval the list of the literals and classes it is in, and numbers the
+     * distinct lists in the order of their first interval. The symbols are distinct.
+     */
+    private static Alphabet merge(char[] starts, char[] symbols, CharClass[] classes) {
+        int[][] members = new int[starts.length][];
+        int[] memberCounts = new int[starts.length];
+        int key = 0;
+        for (char symbol : symbols) {
+            addMember(members, memberCounts, intervalOf(starts, symbol), key++);
+        }
+        for (CharClass charClass : classes) {
+            if (charClass == null) continue;
+            for (int i = 0; i < charClass.rangeCount(); i++) {
+                int last = intervalOf(starts, charClass.rangeEnd(i));
+                for (int interval = intervalOf(starts, charClass.rangeStart(i)); interval <= last; interval++) {
+                    addMember(members, memberCounts, interval, key);
+                }
+            }
+            key++;
+        }
+        Map<IntList, Integer> ids = new HashMap<>();
+        int[] intervalClasses = new int[starts.length];
+        for (int i = 0; i < starts.length; i++) {
+            IntList signature = new IntList(members[i] == null ? new int[0]
+                    : Arrays.copyOf(members[i], memberCounts[i]));
+            Integer id = ids.get(signature);
+            if (id == null) {
+                id = ids.size();
+                ids.put(signature, id);
+            }
+            intervalClasses[i] = id;
+        }
+        return new Alphabet(starts, intervalClasses, ids.size());
+    }
+
+    // keys are added in increasing order, so a key already present is the last one
+    private static void addMember(int[][] members, int[] memberCounts, int interval, int key) {
+        int[] list = members[interval];
+        int size = memberCounts[interval];
+        if (list == null) {
+            list = members[interval] = new int[4];
+        } else if (list[size - 1] == key) {
+            return;
+        } else if (size == list.length) {
+            list = members[interval] = Arrays.copyOf(list, 2 * size);
+        }
+        list[size] = key;
+        memberCounts[interval] = size + 1;
+    }
+
+    private static final class IntList {
+        private final int[] values;
+        private final int hash;
+
+        IntList(int[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IntList && Arrays.equals(values, ((IntList) o).values);
+        }
+    }
+
+    int classCount() {
+        return classCount;
+    }
+
+    // a character which belongs to the class
+    char representative(int symbolClass) {
+        return intervalStarts[firstIntervals[symbolClass]];
+    }
+
+    int intervalCount() {
+        return intervalStarts.length;
+    }
+
+    char intervalStart(int interval) {
+        return intervalStarts[interval];
+    }
+
+    // the last character of the interval
+    char intervalEnd(int interval) {
+        return interval + 1 < intervalStarts.length
+                ? (char) (intervalStarts[interval + 1] - 1)
+                : Character.MAX_VALUE;
+    }
+
+    int intervalClass(int interval) {
+        return intervalClasses[interval];
+    }
+
+    int classOf(char symbol) {
+        if (symbol < ASCII) {
+            return asciiClasses[symbol];
+        }
+        return intervalClasses[intervalOf(intervalStarts, symbol)];
+    }
+
+    int intervalOf(char symbol) {
+        return intervalOf(intervalStarts, symbol);
+    }
+
+    // the last interval which starts at or before the symbol
+    private static int intervalOf(char[] starts, char symbol) {
+        int lo = 0;
+        int hi = starts.length - 1;
+        while (lo < hi) {
+            int middle = (lo + hi + 1) >>> 1;
+            if (starts[middle] <= symbol) {
+                lo = middle;
+            } else {
+                hi = middle - 1;
+            }
+        }
+        return lo;
+    }
+}
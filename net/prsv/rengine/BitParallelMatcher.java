@@ -0,0 +1,299 @@
+package net.prsv.rengine;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/*
+ * Bit-parallel matcher for patterns with at most 63 character positions.
+ *
+ * The pattern is turned into a Glushkov automaton straight from the postfix token stream:
+ * every LITERAL, ANY_CHAR and CHAR_CLASS occurrence is a position, and position 0 is the
+ * initial state. Because there are no more than 64 states, the set of active states fits in
+ * one long and a matching step is
+ *
+ *     active = follow(active) & symbolMask[class of the input character]
+ *
+ * where follow() is the union of the follow sets of the active positions. It is computed
+ * eight positions at a time from precomputed tables, so a step is a handful of table reads,
+ * shifts and ors, and matching does not allocate.
+ *
+ * Explicit quantifiers are expanded by copying the positions of their operand, so e.g.
+ * (ab){3-5} uses 10 positions.
+ */
+final class BitParallelMatcher {
+
+    static final int MAX_POSITIONS = 63;
+
+    // followTables[chunk * 256 + b]: union of the follow sets of the positions 8 * chunk + i
+    // for every bit i set in b
+    private final long[] followTables;
+    private final long[] symbolMasks;
+    private final long acceptMask;
+    private final Alphabet alphabet;
+    private final int positionCount;
+
+    private BitParallelMatcher(long[] followTables, long[] symbolMasks,
+                               long acceptMask, Alphabet alphabet, int positionCount) {
+        this.followTables = followTables;
+        this.symbolMasks = symbolMasks;
+        this.acceptMask = acceptMask;
+        this.alphabet = alphabet;
+        this.positionCount = positionCount;
+    }
+
+    // a subexpression: its positions are [from, to) and it has no links to other positions yet
+    private static final class Fragment {
+        final int from;
+        final int to;
+        final boolean nullable;
+        final long first;
+        final long last;
+
+        Fragment(int from, int to, boolean nullable, long first, long last) {
+            this.from = from;
+            this.to = to;
+            this.nullable = nullable;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private static final class Builder {
+        final long[] follow = new long[MAX_POSITIONS + 1];
+        final RToken[] positions = new RToken[MAX_POSITIONS + 1];
+        // position 0 is the initial state
+        int positionCount = 1;
+
+        Fragment symbol(RToken token) {
+            int position = positionCount++;
+            positions[position] = token;
+            long bit = 1L << position;
+            return new Fragment(position, position + 1, false, bit, bit);
+        }
+
+        void link(long from, long to) {
+            for (long rest = from; rest != 0; rest &= rest - 1) {
+                follow[Long.numberOfTrailingZeros(rest)] |= to;
+            }
+        }
+
+        Fragment concatenate(Fragment left, Fragment right) {
+            link(left.last, right.first);
+            return new Fragment(Math.min(left.from, right.from), Math.max(left.to, right.to),
+                    left.nullable && right.nullable,
+                    left.nullable ? left.first | right.first : left.first,
+                    right.nullable ? left.last | right.last : right.last);
+        }
+
+        Fragment union(Fragment left, Fragment right) {
+            return new Fragment(Math.min(left.from, right.from), Math.max(left.to, right.to),
+                    left.nullable || right.nullable,
+                    left.first | right.first,
+                    left.last | right.last);
+        }
+
+        Fragment loop(Fragment operand, boolean nullable) {
+            link(operand.last, operand.first);
+            return new Fragment(operand.from, operand.to, nullable || operand.nullable,
+                    operand.first, operand.last);
+        }
+
+        Fragment optional(Fragment operand) {
+            return new Fragment(operand.from, operand.to, true, operand.first, operand.last);
+        }
+
+        // duplicates the positions of a fragment which has not been linked to anything yet
+        Fragment copy(Fragment source) {
+            int delta = positionCount - source.from;
+            for (int position = source.from; position < source.to; position++) {
+                positions[position + delta] = positions[position];
+                follow[position + delta] = follow[position] << delta;
+            }
+            positionCount += source.to - source.from;
+            return new Fragment(source.from + delta, source.to + delta, source.nullable,
+                    source.first << delta, source.last << delta);
+        }
+    }
+
+    /*
+     * Builds the matcher for a postfix token stream which NFABuilder has already accepted,
+     * or returns null if the pattern has more than MAX_POSITIONS positions.
+     */
+    static BitParallelMatcher compile(List<RToken> postfix) {
+        Builder builder = new Builder();
+        Deque<Fragment> stack = new ArrayDeque<>();
+        for (RToken t : postfix) {
+            switch (t.type) {
+                case LITERAL:
+                case ANY_CHAR:
+                case CHAR_CLASS:
+                    if (builder.positionCount > MAX_POSITIONS) {
+                        return null;
+                    }
+                    stack.push(builder.symbol(t));
+                    break;
+                case CONCAT:
+                    Fragment right = stack.pop();
+                    stack.push(builder.concatenate(stack.pop(), right));
+                    break;
+                case UNION:
+                    Fragment alternative = stack.pop();
+                    stack.push(builder.union(stack.pop(), alternative));
+                    break;
+                case QMARK:
+                case STAR:
+                case PLUS:
+                    Fragment operand = stack.pop();
+                    if (t.type == RToken.RTokenType.QMARK) {
+                        stack.push(builder.optional(operand));
+                    } else {
+                        stack.push(builder.loop(operand, t.type == RToken.RTokenType.STAR));
+                    }
+                    break;
+                case QUANTIFIER:
+                    Fragment repeated = repeat(builder, stack.pop(), t);
+                    if (repeated == null) {
+                        return null;
+                    }
+                    stack.push(repeated);
+                    break;
+                default:
+                    return null;
+            }
+        }
+        Fragment pattern = stack.pop();
+        builder.follow[0] = pattern.first;
+        long acceptMask = pattern.last | (pattern.nullable ? 1L : 0L);
+        return build(builder, acceptMask);
+    }
+
+    private static Fragment repeat(Builder builder, Fragment template, RToken quantifier) {
+        int copies = quantifier.isUnbounded() ? quantifier.min + 1 : quantifier.max;
+        long needed = (long) (template.to - template.from) * Math.max(copies - 1, 0);
+        if (builder.positionCount + needed > MAX_POSITIONS + 1) {
+            return null;
+        }
+        if (copies == 0) {
+            // the template stays unreachable
+            return new Fragment(template.from, template.to, true, 0, 0);
+        }
+        // make every copy before linking anything, copy() requires an unlinked source
+        Fragment[] repetitions = new Fragment[copies];
+        repetitions[0] = template;
+        for (int i = 1; i < copies; i++) {
+            repetitions[i] = builder.copy(template);
+        }
+        Fragment result = null;
+        for (int i = 0; i < copies; i++) {
+            Fragment repetition = repetitions[i];
+            if (i >= quantifier.min) {
+                repetition = quantifier.isUnbounded()
+                        ? builder.loop(repetition, true)
+                        : builder.optional(repetition);
+            }
+            result = result == null ? repetition : builder.concatenate(result, repetition);
+        }
+        return result;
+    }
+
+    private static BitParallelMatcher build(Builder builder, long acceptMask) {
+        int positionCount = builder.positionCount;
+        int chunkCount = (positionCount + 7) / 8;
+        long[] followTables = new long[chunkCount * 256];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            for (int b = 1; b < 256; b++) {
+                int position = chunk * 8 + Integer.numberOfTrailingZeros(b);
+                long follow = position < positionCount ? builder.follow[position] : 0;
+                followTables[chunk * 256 + b] = followTables[chunk * 256 + (b & (b - 1))] | follow;
+            }
+        }
+
+        int literalCount = 0;
+        CharClass[] classes = new CharClass[positionCount];
+        for (int position = 1; position < positionCount; position++) {
+            RToken token = builder.positions[position];
+            if (token.type == RToken.RTokenType.LITERAL) {
+                literalCount++;
+            } else if (token.type == RToken.RTokenType.CHAR_CLASS) {
+                classes[position] = token.charClass;
+            }
+        }
+        char[] literals = new char[literalCount];
+        for (int position = 1, k = 0; position < positionCount; position++) {
+            if (builder.positions[position].type == RToken.RTokenType.LITERAL) {
+                literals[k++] = builder.positions[position].literal;
+            }
+        }
+        Alphabet alphabet = Alphabet.of(literals, classes);
+
+        long[] symbolMasks = new long[alphabet.classCount()];
+        for (int symbolClass = 0; symbolClass < symbolMasks.length; symbolClass++) {
+            char c = alphabet.representative(symbolClass);
+            long mask = 0;
+            for (int position = 1; position < positionCount; position++) {
+                RToken token = builder.positions[position];
+                boolean accepts;
+                switch (token.type) {
+                    case LITERAL:
+                        accepts = token.literal == c;
+                        break;
+                    case CHAR_CLASS:
+                        accepts = token.charClass.contains(c);
+                        break;
+                    default:
+                        accepts = true;
+                        break;
+                }
+                if (accepts) {
+                    mask |= 1L << position;
+                }
+            }
+            symbolMasks[symbolClass] = mask;
+        }
+        return new BitParallelMatcher(followTables, symbolMasks, acceptMask,
+                alphabet, positionCount - 1);
+    }
+
+    boolean matches(CharSequence input) {
+        return (walk(1L, input, 0, input.length()) & acceptMask) != 0;
+    }
+
+    // characters walked between two charges of a budget
+    private static final int BUDGET_BLOCK = 4096;
+
+    // same as matches(), charging the budget one unit per character
+    boolean matches(CharSequence input, MatchBudget budget) {
+        long active = 1L;
+        for (int from = 0; from < input.length() && active != 0; from += BUDGET_BLOCK) {
+            int to = Math.min(input.length(), from + BUDGET_BLOCK);
+            budget.charge(to - from);
+            active = walk(active, input, from, to);
+        }
+        return (active & acceptMask) != 0;
+    }
+
+    // the active positions after reading the characters [from, to), or 0 once none are left
+    private long walk(long active, CharSequence input, int from, int to) {
+        for (int i = from; i < to; i++) {
+            long follow = 0;
+            long rest = active;
+            for (int chunk = 0; rest != 0; chunk++, rest >>>= 8) {
+                follow |= followTables[chunk * 256 + (int) (rest & 0xFF)];
+            }
+            active = follow & symbolMasks[alphabet.classOf(input.charAt(i))];
+            if (active == 0) {
+                return 0;
+            }
+        }
+        return active;
+    }
+
+    long estimatedBytes() {
+        return 8L * (followTables.length + symbolMasks.length);
+    }
+
+    int positionCount() {
+        return positionCount;
+    }
+}
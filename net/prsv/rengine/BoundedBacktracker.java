@@ -0,0 +1,119 @@
+package net.prsv.rengine;
+
+import java.util.Arrays;
+
+/*
+ * Matcher for short inputs which searches the NFA depth-first for a path that consumes the
+ * whole input, instead of advancing the whole set of active states one character at a time.
+ *
+ * Every (state, position) pair which has been explored is remembered in a bitset of
+ * states * (input length + 1) bits and never explored again, so the search takes time
+ * linear in the size of the bitset however the pattern is written. It stops at the first
+ * path which reaches an accept state at the end of the input, where the simulation in
+ * CompiledNFA always reads the whole input, and it only allocates the bitset and a small
+ * stack. It is meant for inputs where both are tiny, see fits().
+ *
+ * The search moves between the states that matter for matching through the precomputed
+ * closures of the NFA; an NFA whose closures were too large to precompute is far too
+ * large for the bitset anyway.
+ */
+final class BoundedBacktracker {
+
+    // largest bitset, in bits, the matcher takes on
+    static final int MAX_VISITED_BITS = 1 << 14;
+
+    private final CompiledNFA nfa;
+    private final int stride;
+    private final long[] visited;
+    // pairs of a state and a position still to explore
+    private int[] stack = new int[32];
+    private int top;
+
+    private BoundedBacktracker(CompiledNFA nfa, int inputLength) {
+        this.nfa = nfa;
+        this.stride = inputLength + 1;
+        this.visited = new long[(nfa.stateCount * stride + 63) >>> 6];
+    }
+
+    // whether the input is short enough for the NFA to be matched by backtracking
+    static boolean fits(CompiledNFA nfa, int inputLength) {
+        return nfa.closureIndex != null && (long) nfa.stateCount * (inputLength + 1) <= MAX_VISITED_BITS;
+    }
+
+    /*
+     * Same result as nfa.matches(input), for an input that fits(). The budget, if not null, is charged one unit per
+     * explored pair once the search is over; fits() bounds their number.
+     */
+    static boolean matches(CompiledNFA nfa, CharSequence input, MatchBudget budget) {
+        BoundedBacktracker b = new BoundedBacktracker(nfa, input.length());
+        for (int k = nfa.startClosure.length - 1; k >= 0; k--) {
+            b.push(nfa.startClosure[k], 0);
+        }
+        return b.search(input, budget);
+    }
+
+    private boolean search(CharSequence input, MatchBudget budget) {
+        int length = input.length();
+        int explored = 0;
+        boolean matched = false;
+        while (top > 0) {
+            int position = stack[--top];
+            int state = stack[--top];
+            int bit = state * stride + position;
+            if ((visited[bit >>> 6] & (1L << bit)) != 0) {
+                continue;
+            }
+            visited[bit >>> 6] |= 1L << bit;
+            explored++;
+            if (position == length && nfa.accepting[state]) {
+                matched = true;
+                break;
+            }
+            if (position < length) {
+                pushTargets(state, input.charAt(position), position + 1);
+            }
+        }
+        if (budget != null) {
+            budget.charge(explored);
+        }
+        return matched;
+    }
+
+    // pushes the states reached from the state on the symbol; the last pushed is explored first
+    private void pushTargets(int state, char symbol, int position) {
+        int classTarget = nfa.classTargets[state];
+        if (classTarget != CompiledNFA.NO_STATE && nfa.stateClasses[state].contains(symbol)) {
+            pushClosure(classTarget, position);
+        }
+        int anyTarget = nfa.anyCharTargets[state];
+        if (anyTarget != CompiledNFA.NO_STATE) {
+            pushClosure(anyTarget, position);
+        }
+        for (int e = nfa.transitionIndex[state]; e < nfa.transitionIndex[state + 1]; e++) {
+            char edgeSymbol = nfa.transitionSymbols[e];
+            if (edgeSymbol == symbol) {
+                pushClosure(nfa.transitionTargets[e], position);
+            } else if (edgeSymbol > symbol) {
+                break;
+            }
+        }
+    }
+
+    private void pushClosure(int state, int position) {
+        for (int k = nfa.closureIndex[state + 1] - 1; k >= nfa.closureIndex[state]; k--) {
+            push(nfa.closureStates[k], position);
+        }
+    }
+
+    private void push(int state, int position) {
+        int bit = state * stride + position;
+        if ((visited[bit >>> 6] & (1L << bit)) != 0) {
+            return;
+        }
+        if (top + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, 2 * stack.length);
+        }
+        stack[top++] = state;
+        stack[top++] = position;
+    }
+}
@@ -0,0 +1,74 @@
+package net.prsv.rengine;
+
+import java.util.Arrays;
+
+/*
+ * Positions of the capture groups of a match, see StateMachine.match(). Group 0 is the
+ * whole match, groups 1 to groupCount() are the parenthesized parts of the pattern,
+ * numbered in the order of their opening parentheses.
+ */
+public final class Captures {
+
+    // start and end of every group, -1 for a group which did not take part in the match
+    private final int[] slots;
+
+    Captures(int[] slots) {
+        this.slots = slots;
+    }
+
+    // number of parenthesized groups, not counting group 0
+    public int groupCount() {
+        return slots.length / 2 - 1;
+    }
+
+    // start of the group, or -1 if it did not take part in the match
+    public int start(int group) {
+        return slots[2 * checkGroup(group)];
+    }
+
+    // end of the group, or -1 if it did not take part in the match
+    public int end(int group) {
+        return slots[2 * checkGroup(group) + 1];
+    }
+
+    // the position of the group, or null if it did not take part in the match
+    public Match group(int group) {
+        int start = start(group);
+        return start < 0 ? null : new Match(start, end(group));
+    }
+
+    // the text of the group in the input which was matched, or null if it did not take part in the match
+    public String group(CharSequence input, int group) {
+        int start = start(group);
+        return start < 0 ? null : input.subSequence(start, end(group)).toString();
+    }
+
+    private int checkGroup(int group) {
+        if (group < 0 || group > groupCount()) {
+            throw new IndexOutOfBoundsException("No group " + group + ", the pattern has " + groupCount());
+        }
+        return group;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(slots);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(slots, ((Captures) o).slots);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int g = 0; g <= groupCount(); g++) {
+            sb.append(g == 0 ? "" : ", ").append(g).append(": ");
+            sb.append(start(g) < 0 ? "-" : group(g).toString());
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,137 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Set of characters described by a bracket expression such as [a-z0-9_].
+ *
+ * The set is stored as a sorted list of disjoint, non-adjacent inclusive ranges, so
+ * membership is a binary search over the ranges; ASCII characters are answered from a
+ * 128-bit bitmap in O(1).
+ */
+public final class CharClass {
+
+    // lo0, hi0, lo1, hi1, ... (inclusive bounds)
+    private final char[] ranges;
+    private final long asciiLow;
+    private final long asciiHigh;
+
+    private CharClass(char[] ranges) {
+        this.ranges = ranges;
+        long low = 0;
+        long high = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            for (int c = ranges[i]; c <= ranges[i + 1] && c < 128; c++) {
+                if (c < 64) {
+                    low |= 1L << c;
+                } else {
+                    high |= 1L << (c - 64);
+                }
+            }
+        }
+        this.asciiLow = low;
+        this.asciiHigh = high;
+    }
+
+    /*
+     * Creates a class from a list of {from, to} ranges, which may overlap and be given in
+     * any order.
+     */
+    public static CharClass of(List<char[]> ranges) {
+        List<char[]> sorted = new ArrayList<>(ranges);
+        for (char[] range : sorted) {
+            if (range.length != 2 || range[0] > range[1]) {
+                throw new IllegalArgumentException("Invalid character range");
+            }
+        }
+        sorted.sort(Comparator.comparingInt(range -> range[0]));
+        char[] merged = new char[sorted.size() * 2];
+        int size = 0;
+        for (char[] range : sorted) {
+            // merge with the previous range if they overlap or touch
+            if (size > 0 && range[0] <= merged[size - 1] + 1) {
+                merged[size - 1] = (char) Math.max(merged[size - 1], range[1]);
+            } else {
+                merged[size++] = range[0];
+                merged[size++] = range[1];
+            }
+        }
+        return new CharClass(Arrays.copyOf(merged, size));
+    }
+
+    public boolean contains(char c) {
+        if (c < 64) {
+            return (asciiLow & (1L << c)) != 0;
+        }
+        if (c < 128) {
+            return (asciiHigh & (1L << (c - 64))) != 0;
+        }
+        // find the last range which starts at or before c
+        int lo = 0;
+        int hi = ranges.length / 2 - 1;
+        while (lo <= hi) {
+            int middle = (lo + hi) >>> 1;
+            if (ranges[2 * middle] <= c) {
+                lo = middle + 1;
+            } else {
+                hi = middle - 1;
+            }
+        }
+        return hi >= 0 && c <= ranges[2 * hi + 1];
+    }
+
+    public int rangeCount() {
+        return ranges.length / 2;
+    }
+
+    public char rangeStart(int index) {
+        return ranges[2 * index];
+    }
+
+    public char rangeEnd(int index) {
+        return ranges[2 * index + 1];
+    }
+
+    public boolean isEmpty() {
+        return ranges.length == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ranges);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(ranges, ((CharClass) o).ranges);
+    }
+
+    private static void appendChar(StringBuilder sb, char c) {
+        if (c < 0x20 || c > 0x7e) {
+            sb.append(String.format("\\u%04x", (int) c));
+        } else {
+            if (c == '[' || c == ']' || c == '-' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < ranges.length; i += 2) {
+            appendChar(sb, ranges[i]);
+            if (ranges[i + 1] != ranges[i]) {
+                sb.append('-');
+                appendChar(sb, ranges[i + 1]);
+            }
+        }
+        return sb.append(']').toString();
+    }
+}
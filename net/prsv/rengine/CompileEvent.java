@@ -0,0 +1,32 @@
+package net.prsv.rengine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Flight Recorder event for the compilation of a pattern. Cache hits are not compilations
+ * and are not recorded.
+ */
+@Name("net.prsv.rengine.Compile")
+@Label("Regex Compile")
+@Category("Regex")
+@Description("A pattern was compiled into a state machine")
+@StackTrace(false)
+final class CompileEvent extends Event {
+
+    @Label("Pattern")
+    String pattern;
+
+    @Label("Engine")
+    String engine;
+
+    @Label("NFA States")
+    int nfaStates;
+
+    @Label("Counters")
+    int counters;
+}
@@ -0,0 +1,193 @@
+package net.prsv.rengine;
+
+import java.util.Objects;
+
+/*
+ * Immutable set of options that control how a pattern is compiled and executed.
+ * Start from defaults() and derive new instances with the with...() methods.
+ */
+public final class CompileOptions {
+
+    public enum Engine {
+        // pick the fastest engine that supports the pattern
+        AUTO,
+        // simulate the compiled NFA directly
+        NFA,
+        // build DFA states on the fly and cache them
+        LAZY_DFA,
+        // build the complete minimal DFA when the pattern is compiled
+        DFA,
+        // bit-parallel Glushkov automaton, for patterns with at most 63 character positions
+        BIT_PARALLEL
+    }
+
+    public static final long DEFAULT_LAZY_DFA_CACHE_BYTES = 2L * 1024 * 1024;
+
+    public static final int DEFAULT_DFA_STATE_LIMIT = 10_000;
+
+    public static final int DEFAULT_CODEGEN_THRESHOLD = -1;
+
+    private static final CompileOptions DEFAULTS =
+            new CompileOptions(Engine.AUTO, DEFAULT_LAZY_DFA_CACHE_BYTES,
+                    DEFAULT_DFA_STATE_LIMIT, true, DEFAULT_CODEGEN_THRESHOLD,
+                    Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    private final Engine engine;
+    private final long lazyDfaCacheBytes;
+    private final int dfaStateLimit;
+    private final boolean dfaFallback;
+    private final int codegenThreshold;
+    private final int stateLimit;
+    private final long matchWorkLimit;
+
+    private CompileOptions(Engine engine, long lazyDfaCacheBytes,
+                           int dfaStateLimit, boolean dfaFallback, int codegenThreshold,
+                           int stateLimit, long matchWorkLimit) {
+        this.engine = engine;
+        this.lazyDfaCacheBytes = lazyDfaCacheBytes;
+        this.dfaStateLimit = dfaStateLimit;
+        this.dfaFallback = dfaFallback;
+        this.codegenThreshold = codegenThreshold;
+        this.stateLimit = stateLimit;
+        this.matchWorkLimit = matchWorkLimit;
+    }
+
+    public static CompileOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public CompileOptions withEngine(Engine engine) {
+        return new CompileOptions(Objects.requireNonNull(engine), lazyDfaCacheBytes,
+                dfaStateLimit, dfaFallback, codegenThreshold, stateLimit, matchWorkLimit);
+    }
+
+    /*
+     * Upper bound on the estimated memory used by the lazy DFA cache of one machine.
+     * When the cache grows past it, all cached states are dropped and rebuilt on demand.
+     */
+    public CompileOptions withLazyDfaCacheBytes(long lazyDfaCacheBytes) {
+        if (lazyDfaCacheBytes <= 0) {
+            throw new IllegalArgumentException("Lazy DFA cache size must be positive");
+        }
+        return new CompileOptions(engine, lazyDfaCacheBytes, dfaStateLimit, dfaFallback, codegenThreshold,
+                stateLimit, matchWorkLimit);
+    }
+
+    /*
+     * Maximum number of states subset construction may create for the DFA engine.
+     */
+    public CompileOptions withDfaStateLimit(int dfaStateLimit) {
+        if (dfaStateLimit <= 0) {
+            throw new IllegalArgumentException("DFA state limit must be positive");
+        }
+        return new CompileOptions(engine, lazyDfaCacheBytes, dfaStateLimit, dfaFallback, codegenThreshold,
+                stateLimit, matchWorkLimit);
+    }
+
+    /*
+     * Whether a pattern whose DFA exceeds the state limit is matched with the NFA instead
+     * (the default) or rejected with an IllegalArgumentException.
+     */
+    public CompileOptions withDfaFallback(boolean dfaFallback) {
+        return new CompileOptions(engine, lazyDfaCacheBytes, dfaStateLimit, dfaFallback, codegenThreshold,
+                stateLimit, matchWorkLimit);
+    }
+
+    /*
+     * Number of calls to run() after which a machine of the AUTO or DFA engine generates JVM
+     * bytecode for its DFA and matches with that from then on (see BytecodeMatcher). Zero
+     * generates the code when the pattern is compiled, a negative value (the default) never.
+     * Building the DFA and its class can take tens of milliseconds, so this is meant for
+     * the few patterns which are run the most; a positive threshold generates the code on
+     * the common ForkJoinPool instead of in the run that reaches it.
+     */
+    public CompileOptions withCodegenThreshold(int codegenThreshold) {
+        return new CompileOptions(engine, lazyDfaCacheBytes, dfaStateLimit, dfaFallback, codegenThreshold,
+                stateLimit, matchWorkLimit);
+    }
+
+    /*
+     * Maximum number of NFA states a pattern may compile to, including the copies made when
+     * a quantifier is expanded later on (for find(), say). Exceeding it throws a
+     * LimitExceededException. Unlimited by default.
+     */
+    public CompileOptions withStateLimit(int stateLimit) {
+        if (stateLimit <= 0) {
+            throw new IllegalArgumentException("State limit must be positive");
+        }
+        return new CompileOptions(engine, lazyDfaCacheBytes, dfaStateLimit, dfaFallback, codegenThreshold,
+                stateLimit, matchWorkLimit);
+    }
+
+    /*
+     * Maximum work one call of run() may do, counted as the number of active NFA states
+     * summed over the characters read; engines which do not track sets of states count one
+     * per character. Exceeding it throws a LimitExceededException. Unlimited by default.
+     */
+    public CompileOptions withMatchWorkLimit(long matchWorkLimit) {
+        if (matchWorkLimit <= 0) {
+            throw new IllegalArgumentException("Match work limit must be positive");
+        }
+        return new CompileOptions(engine, lazyDfaCacheBytes, dfaStateLimit, dfaFallback, codegenThreshold,
+                stateLimit, matchWorkLimit);
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public long getLazyDfaCacheBytes() {
+        return lazyDfaCacheBytes;
+    }
+
+    public int getDfaStateLimit() {
+        return dfaStateLimit;
+    }
+
+    public boolean isDfaFallback() {
+        return dfaFallback;
+    }
+
+    public int getCodegenThreshold() {
+        return codegenThreshold;
+    }
+
+    public int getStateLimit() {
+        return stateLimit;
+    }
+
+    public long getMatchWorkLimit() {
+        return matchWorkLimit;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(engine, lazyDfaCacheBytes, dfaStateLimit, dfaFallback, codegenThreshold,
+                stateLimit, matchWorkLimit);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompileOptions that = (CompileOptions) o;
+        return this.engine == that.engine
+                && this.lazyDfaCacheBytes == that.lazyDfaCacheBytes
+                && this.dfaStateLimit == that.dfaStateLimit
+                && this.dfaFallback == that.dfaFallback
+                && this.codegenThreshold == that.codegenThreshold
+                && this.stateLimit == that.stateLimit
+                && this.matchWorkLimit == that.matchWorkLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "engine=" + engine
+                + ", lazyDfaCacheBytes=" + lazyDfaCacheBytes
+                + ", dfaStateLimit=" + dfaStateLimit
+                + ", dfaFallback=" + dfaFallback
+                + ", codegenThreshold=" + codegenThreshold
+                + ", stateLimit=" + stateLimit
+                + ", matchWorkLimit=" + matchWorkLimit;
+    }
+}
@@ -0,0 +1,452 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Integer-indexed form of the NFA which is used for matching.
+ *
+ * States are numbered densely from 0. Character transitions are stored in CSR layout:
+ * the outgoing edges of state s occupy transitionSymbols/transitionTargets in the range
+ * [transitionIndex[s], transitionIndex[s + 1]), sorted by symbol. Null transitions use the
+ * same layout, and any-char transitions, character class transitions and accept states are
+ * plain per-state tables.
+ *
+ * The null-transition closure of every state that can be entered by consuming a character
+ * is computed once, when the machine is built. Closures only list the states that matter
+ * for matching (states with outgoing character transitions and accept states), so a
+ * matching step is a plain loop over transitions followed by a union of closures.
+ */
+public final class CompiledNFA {
+
+    static final int NO_STATE = -1;
+
+    // upper bound on the total size of the precomputed closures; larger machines fall back
+    // to walking the null transitions during matching
+    private static final int MAX_CLOSURE_ENTRIES = 1 << 22;
+    // indexes into the counts of matchesWithStats()
+    private static final int TRANSITIONS = 0;
+    private static final int EXPANSIONS = 1;
+
+    final int stateCount;
+    final int[] startStates;
+    final boolean[] accepting;
+
+    final int[] transitionIndex;
+    final char[] transitionSymbols;
+    final int[] transitionTargets;
+
+    final int[] nullTransitionIndex;
+    final int[] nullTransitionTargets;
+
+    // target of the any-char transition of each state, or NO_STATE
+    final int[] anyCharTargets;
+
+    // character class and target of the class transition of each state, or null/NO_STATE
+    final CharClass[] stateClasses;
+    final int[] classTargets;
+
+    // closure of state s is closureStates[closureIndex[s]..closureIndex[s + 1]);
+    // both are null when the closures were too large to precompute
+    final int[] closureIndex;
+    final int[] closureStates;
+
+    // closure of the start states
+    final int[] startClosure;
+
+    // use NFAArena.compile() or of() to create instances
+    CompiledNFA(int stateCount,
+                int[] startStates,
+                boolean[] accepting,
+                int[] transitionIndex,
+                char[] transitionSymbols,
+                int[] transitionTargets,
+                int[] nullTransitionIndex,
+                int[] nullTransitionTargets,
+                int[] anyCharTargets,
+                CharClass[] stateClasses,
+                int[] classTargets) {
+        this.stateCount = stateCount;
+        this.startStates = startStates;
+        this.accepting = accepting;
+        this.transitionIndex = transitionIndex;
+        this.transitionSymbols = transitionSymbols;
+        this.transitionTargets = transitionTargets;
+        this.nullTransitionIndex = nullTransitionIndex;
+        this.nullTransitionTargets = nullTransitionTargets;
+        this.anyCharTargets = anyCharTargets;
+        this.stateClasses = stateClasses;
+        this.classTargets = classTargets;
+
+        int[][] closures = computeClosures();
+        if (closures != null) {
+            this.closureIndex = closures[0];
+            this.closureStates = closures[1];
+        } else {
+            this.closureIndex = null;
+            this.closureStates = null;
+        }
+        this.startClosure = closureOf(startStates);
+    }
+
+    /*
+     * Compiles the String-based form of an NFA. States are numbered in the same order as
+     * config() prints them.
+     */
+    static CompiledNFA of(HashSet<String> states,
+                          HashSet<String> startStates,
+                          HashSet<String> acceptStates,
+                          HashMap<Pair, HashSet<String>> transitions,
+                          HashMap<String, HashSet<String>> nullTransitions,
+                          HashMap<String, String> anyCharTransitions,
+                          HashMap<String, Map.Entry<CharClass, String>> classTransitions) {
+        List<String> ordered = new ArrayList<>(states);
+        ordered.sort(Comparator.comparingInt(state -> Integer.parseInt(state.substring(1))));
+        NFAArena arena = new NFAArena();
+        HashMap<String, Integer> ids = new HashMap<>();
+        for (String state : ordered) {
+            ids.put(state, arena.newState());
+        }
+
+        boolean[] accepting = new boolean[ordered.size()];
+        for (String state : acceptStates) {
+            accepting[idOf(ids, state)] = true;
+        }
+        for (Map.Entry<Pair, HashSet<String>> entry : transitions.entrySet()) {
+            int from = idOf(ids, entry.getKey().getState());
+            for (String to : entry.getValue()) {
+                arena.addTransition(from, entry.getKey().getSymbol(), idOf(ids, to));
+            }
+        }
+        for (String state : ordered) {
+            HashSet<String> targets = nullTransitions.get(state);
+            if (targets == null) continue;
+            int[] sorted = new int[targets.size()];
+            int position = 0;
+            for (String to : targets) {
+                sorted[position++] = idOf(ids, to);
+            }
+            Arrays.sort(sorted);
+            for (int to : sorted) {
+                arena.addNullTransition(ids.get(state), to);
+            }
+        }
+        for (Map.Entry<String, String> entry : anyCharTransitions.entrySet()) {
+            arena.addAnyCharTransition(idOf(ids, entry.getKey()), idOf(ids, entry.getValue()));
+        }
+        for (Map.Entry<String, Map.Entry<CharClass, String>> entry : classTransitions.entrySet()) {
+            arena.addClassTransition(idOf(ids, entry.getKey()),
+                    entry.getValue().getKey(), idOf(ids, entry.getValue().getValue()));
+        }
+
+        int[] starts = new int[startStates.size()];
+        int position = 0;
+        for (String state : startStates) {
+            starts[position++] = idOf(ids, state);
+        }
+        Arrays.sort(starts);
+        return arena.compile(starts, accepting);
+    }
+
+    private static int idOf(HashMap<String, Integer> ids, String state) {
+        Integer id = ids.get(state);
+        if (id == null) {
+            throw new IllegalArgumentException("Unknown state: " + state);
+        }
+        return id;
+    }
+
+    // whether the state consumes input or accepts; the others only lead to such states
+    boolean isImportant(int state) {
+        return accepting[state]
+                || anyCharTargets[state] != NO_STATE
+                || classTargets[state] != NO_STATE
+                || transitionIndex[state] < transitionIndex[state + 1];
+    }
+
+    /*
+     * Computes the closures of all states that are targets of character or any-char
+     * transitions. Returns {closureIndex, closureStates}, or null if the closures would
+     * take more than MAX_CLOSURE_ENTRIES entries.
+     */
+    private int[][] computeClosures() {
+        boolean[] entered = new boolean[stateCount];
+        for (int target : transitionTargets) {
+            entered[target] = true;
+        }
+        for (int target : anyCharTargets) {
+            if (target != NO_STATE) {
+                entered[target] = true;
+            }
+        }
+        for (int target : classTargets) {
+            if (target != NO_STATE) {
+                entered[target] = true;
+            }
+        }
+
+        int[] index = new int[stateCount + 1];
+        int[] closure = new int[Math.max(16, stateCount)];
+        int size = 0;
+        int[] marks = new int[stateCount];
+        int[] stack = new int[stateCount + nullTransitionTargets.length];
+        for (int state = 0; state < stateCount; state++) {
+            index[state] = size;
+            if (!entered[state]) continue;
+            int first = size;
+            int top = 0;
+            stack[top++] = state;
+            while (top > 0) {
+                int s = stack[--top];
+                if (marks[s] == state + 1) continue;
+                marks[s] = state + 1;
+                if (isImportant(s)) {
+                    if (size == closure.length) {
+                        if (size >= MAX_CLOSURE_ENTRIES) {
+                            return null;
+                        }
+                        closure = Arrays.copyOf(closure, Math.min(size * 2, MAX_CLOSURE_ENTRIES));
+                    }
+                    closure[size++] = s;
+                }
+                for (int k = nullTransitionIndex[s]; k < nullTransitionIndex[s + 1]; k++) {
+                    if (marks[nullTransitionTargets[k]] != state + 1) {
+                        stack[top++] = nullTransitionTargets[k];
+                    }
+                }
+            }
+            Arrays.sort(closure, first, size);
+        }
+        index[stateCount] = size;
+        return new int[][]{index, Arrays.copyOf(closure, size)};
+    }
+
+    /*
+     * Returns the sorted closure of a set of states, restricted to important states.
+     */
+    int[] closureOf(int[] states) {
+        int[] marks = new int[stateCount];
+        int[] stack = new int[stateCount + nullTransitionTargets.length];
+        int[] result = new int[stateCount];
+        int size = 0;
+        for (int state : states) {
+            int top = 0;
+            stack[top++] = state;
+            while (top > 0) {
+                int s = stack[--top];
+                if (marks[s] != 0) continue;
+                marks[s] = 1;
+                if (isImportant(s)) {
+                    result[size++] = s;
+                }
+                for (int k = nullTransitionIndex[s]; k < nullTransitionIndex[s + 1]; k++) {
+                    if (marks[nullTransitionTargets[k]] == 0) {
+                        stack[top++] = nullTransitionTargets[k];
+                    }
+                }
+            }
+        }
+        int[] closure = Arrays.copyOf(result, size);
+        Arrays.sort(closure);
+        return closure;
+    }
+
+    public int stateCount() {
+        return stateCount;
+    }
+
+    public int transitionCount() {
+        return transitionSymbols.length;
+    }
+
+    public int classTransitionCount() {
+        int count = 0;
+        for (int target : classTargets) {
+            if (target != NO_STATE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int nullTransitionCount() {
+        return nullTransitionTargets.length;
+    }
+
+    // -1 when the closures were not precomputed
+    public int closureEntryCount() {
+        return closureStates == null ? -1 : closureStates.length;
+    }
+
+    // rough size of the tables in bytes; character classes are shared with the tokens
+    long estimatedBytes() {
+        long bytes = 4L * (startStates.length + transitionIndex.length + transitionTargets.length
+                + nullTransitionIndex.length + nullTransitionTargets.length + anyCharTargets.length
+                + classTargets.length + startClosure.length)
+                + 2L * transitionSymbols.length + accepting.length + 8L * stateClasses.length;
+        if (closureStates != null) {
+            bytes += 4L * (closureIndex.length + closureStates.length);
+        }
+        return bytes;
+    }
+
+    /*
+     * Adds the closure of the state to the working set. A state is in the set when its mark
+     * equals the current generation, so the marks never have to be cleared between steps.
+     */
+    private int addClosure(int state, int[] set, int size,
+                           int[] marks, int generation, int[] stack) {
+        if (closureIndex != null) {
+            for (int k = closureIndex[state]; k < closureIndex[state + 1]; k++) {
+                int s = closureStates[k];
+                if (marks[s] != generation) {
+                    marks[s] = generation;
+                    set[size++] = s;
+                }
+            }
+            return size;
+        }
+        // the closures were not precomputed, walk the null transitions instead
+        int top = 0;
+        stack[top++] = state;
+        while (top > 0) {
+            int s = stack[--top];
+            if (marks[s] == generation) continue;
+            marks[s] = generation;
+            if (isImportant(s)) {
+                set[size++] = s;
+            }
+            for (int k = nullTransitionIndex[s]; k < nullTransitionIndex[s + 1]; k++) {
+                int t = nullTransitionTargets[k];
+                if (marks[t] != generation) {
+                    stack[top++] = t;
+                }
+            }
+        }
+        return size;
+    }
+
+    // every state is pushed at most once per edge, so the stack is bounded by the edge count
+    int[] newStack() {
+        return closureIndex != null ? null : new int[stateCount + nullTransitionTargets.length];
+    }
+
+    /*
+     * Consumes one symbol: writes the closure of every state reachable from the current set
+     * into next and returns its size. The caller must pass a generation that has not been
+     * used with these marks before.
+     */
+    int step(int[] current, int currentSize, char symbol, int[] next,
+             int[] marks, int generation, int[] stack) {
+        return step(current, currentSize, symbol, next, marks, generation, stack, null);
+    }
+
+    // same as above, adding the edges followed and the states they expand to counts unless it is null
+    private int step(int[] current, int currentSize, char symbol, int[] next,
+                     int[] marks, int generation, int[] stack, long[] counts) {
+        int nextSize = 0;
+        for (int k = 0; k < currentSize; k++) {
+            int state = current[k];
+            for (int e = transitionIndex[state]; e < transitionIndex[state + 1]; e++) {
+                char edgeSymbol = transitionSymbols[e];
+                if (edgeSymbol == symbol) {
+                    nextSize = follow(transitionTargets[e], next, nextSize,
+                            marks, generation, stack, counts);
+                } else if (edgeSymbol > symbol) {
+                    break;
+                }
+            }
+            int anyTarget = anyCharTargets[state];
+            if (anyTarget != NO_STATE) {
+                nextSize = follow(anyTarget, next, nextSize, marks, generation, stack, counts);
+            }
+            int classTarget = classTargets[state];
+            if (classTarget != NO_STATE && stateClasses[state].contains(symbol)) {
+                nextSize = follow(classTarget, next, nextSize, marks, generation, stack, counts);
+            }
+        }
+        return nextSize;
+    }
+
+    private int follow(int target, int[] set, int size,
+                       int[] marks, int generation, int[] stack, long[] counts) {
+        int newSize = addClosure(target, set, size, marks, generation, stack);
+        if (counts != null) {
+            counts[TRANSITIONS]++;
+            counts[EXPANSIONS] += newSize - size;
+        }
+        return newSize;
+    }
+
+    boolean anyAccepting(int[] set, int size) {
+        for (int k = 0; k < size; k++) {
+            if (accepting[set[k]]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // same as matches(), counting what the simulation does
+    MatchStats matchesWithStats(CharSequence input) {
+        int[] current = new int[stateCount];
+        int[] next = new int[stateCount];
+        int[] marks = new int[stateCount];
+        int[] stack = newStack();
+        int generation = 1;
+        long[] counts = new long[2];
+
+        int currentSize = startClosure.length;
+        System.arraycopy(startClosure, 0, current, 0, currentSize);
+        int peak = currentSize;
+        long total = currentSize;
+        int consumed = 0;
+
+        for (; consumed < input.length() && currentSize > 0; consumed++) {
+            int nextSize = step(current, currentSize, input.charAt(consumed), next, marks, ++generation,
+                    stack, counts);
+            int[] tmp = current;
+            current = next;
+            next = tmp;
+            currentSize = nextSize;
+            peak = Math.max(peak, currentSize);
+            total += currentSize;
+        }
+        return new MatchStats(anyAccepting(current, currentSize), consumed, peak, total,
+                counts[EXPANSIONS], counts[TRANSITIONS]);
+    }
+
+    public boolean matches(CharSequence input) {
+        return matches(input, null);
+    }
+
+    // budget is charged the size of the active set at every step, unless it is null
+    boolean matches(CharSequence input, MatchBudget budget) {
+        int[] current = new int[stateCount];
+        int[] next = new int[stateCount];
+        int[] marks = new int[stateCount];
+        int[] stack = newStack();
+        int generation = 1;
+
+        int currentSize = startClosure.length;
+        System.arraycopy(startClosure, 0, current, 0, currentSize);
+
+        for (int i = 0; i < input.length() && currentSize > 0; i++) {
+            if (budget != null) {
+                budget.charge(currentSize);
+            }
+            int nextSize = step(current, currentSize, input.charAt(i), next, marks, ++generation, stack);
+            int[] tmp = current;
+            current = next;
+            next = tmp;
+            currentSize = nextSize;
+        }
+        return anyAccepting(current, currentSize);
+    }
+
+}
@@ -0,0 +1,128 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Unanchored search with the NFA with counters, so find() needs no more memory than run().
+ *
+ * Finder merges the threads in a state and keeps the leftmost start among them. That is not
+ * possible here: threads in the same state can be in different iterations of a counter, and
+ * then they do not have the same future. So the search is done in two steps instead:
+ *
+ *     1. One pass which starts a new thread after every character, and stops at the first
+ *        position where one of them accepts. Without a match it ends at the end of the
+ *        input, so an input which does not contain the pattern is rejected in linear time.
+ *     2. A match ending at that position exists, so the leftmost match starts at or before
+ *        it. From each position up to there where a match can start, the anchored
+ *        simulation runs until it dies; the first one which accepts gives the leftmost
+ *        match, and its last accepting position the longest one.
+ *
+ * Step 2 can take time quadratic in the distance between the start of the search and the
+ * end of the first match, but both steps only use the buffers of one simulation.
+ */
+final class CountingFinder {
+
+    private final CountingNFA counting;
+
+    // characters a match can start with, or null if a match can start with any character
+    // or be empty
+    private final CharClass firstChars;
+
+    private final boolean nullable;
+
+    CountingFinder(CountingNFA counting) {
+        this.counting = counting;
+        CountingNFA.Simulation start = counting.start();
+        this.nullable = start.accepting();
+        this.firstChars = nullable ? null : firstChars(counting.nfa, start);
+    }
+
+    // rough size in bytes, without the NFA
+    long estimatedBytes() {
+        return 48 + (firstChars == null ? 0 : 16 + 4L * firstChars.rangeCount());
+    }
+
+    // the start set of the simulation already follows the counter entries
+    private static CharClass firstChars(CompiledNFA nfa, CountingNFA.Simulation start) {
+        List<char[]> ranges = new ArrayList<>();
+        for (int k = 0; k < start.activeCount; k++) {
+            int state = start.active[k];
+            if (nfa.anyCharTargets[state] != CompiledNFA.NO_STATE) {
+                return null;
+            }
+            for (int e = nfa.transitionIndex[state]; e < nfa.transitionIndex[state + 1]; e++) {
+                ranges.add(new char[]{nfa.transitionSymbols[e], nfa.transitionSymbols[e]});
+            }
+            CharClass stateClass = nfa.stateClasses[state];
+            if (stateClass != null && nfa.classTargets[state] != CompiledNFA.NO_STATE) {
+                for (int i = 0; i < stateClass.rangeCount(); i++) {
+                    ranges.add(new char[]{stateClass.rangeStart(i), stateClass.rangeEnd(i)});
+                }
+            }
+        }
+        return CharClass.of(ranges);
+    }
+
+    /*
+     * Returns the first position in [from, to] where a match can start, or -1 if there is
+     * none.
+     */
+    private int skip(CharSequence input, int from, int to) {
+        if (nullable || firstChars == null) {
+            return from <= to ? from : -1;
+        }
+        for (int i = from; i <= to && i < input.length(); i++) {
+            if (firstChars.contains(input.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // buffers for find(), which can be reused by later searches on the same thread
+    CountingNFA.Simulation newSimulation() {
+        return counting.new Simulation(false);
+    }
+
+    Match find(CharSequence input, int from) {
+        return find(input, from, newSimulation());
+    }
+
+    Match find(CharSequence input, int from, CountingNFA.Simulation simulation) {
+        counting.restart(simulation);
+        // step 1: the end of the first match to be found
+        int firstEnd = -1;
+        if (simulation.accepting()) {
+            firstEnd = from;
+        } else {
+            simulation.seeding = true;
+            for (int i = from; i < input.length(); i++) {
+                simulation.step(input.charAt(i));
+                if (simulation.accepting()) {
+                    firstEnd = i + 1;
+                    break;
+                }
+            }
+            simulation.seeding = false;
+        }
+        if (firstEnd < 0) {
+            return null;
+        }
+        // step 2: the leftmost start, which cannot be after the end found
+        for (int start = skip(input, from, firstEnd); start >= 0; start = skip(input, start + 1, firstEnd)) {
+            counting.restart(simulation);
+            int end = simulation.accepting() ? start : -1;
+            for (int i = start; i < input.length() && !simulation.dead(); i++) {
+                simulation.step(input.charAt(i));
+                if (simulation.accepting()) {
+                    end = i + 1;
+                }
+            }
+            if (end >= 0) {
+                return new Match(start, end);
+            }
+        }
+        throw new IllegalStateException("No match starts before position " + firstEnd);
+    }
+}
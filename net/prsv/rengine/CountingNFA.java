@@ -0,0 +1,388 @@
+package net.prsv.rengine;
+
+import java.util.Arrays;
+
+/*
+ * NFA with counters for large explicit quantifiers.
+ *
+ * Expanding R{n-m} makes m copies of R. Here R is kept once, and a state of its body carries
+ * the set of iterations it is active in instead: bit k - 1 of the state's counter set is
+ * set when the state is active in the k-th copy of R. So the machine takes memory
+ * proportional to the body times m / 64 words per simulation buffer rather than m copies of
+ * the body, and a step is the usual NFA step with word-wide ors. A counter is driven by
+ * three kinds of edges, which are kept apart from the ordinary null transitions:
+ *
+ *     entry -> body start      enter the first iteration
+ *     body accept -> body start  start the next iteration (shift the set left by one)
+ *     body accept -> exit      leave once at least n iterations are done
+ *
+ * For R{n+} the iteration count saturates at n + 1, the copy that repeats. States outside
+ * every body use a single bit. Bodies are never nullable and never contain other counters
+ * (NFABuilder expands those quantifiers instead), so a closure takes at most one
+ * increment per counter.
+ */
+final class CountingNFA {
+
+    // every counted body is included once; the counter edges are not part of it
+    final CompiledNFA nfa;
+
+    private final int counterCount;
+    private final int[] entries;
+    private final int[] exits;
+    private final int[] bodyStarts;
+    private final int[] mins;
+    // number of iterations a set can hold, and whether the last one repeats
+    private final int[] limits;
+    private final boolean[] unbounded;
+
+    // counter entered by the state, or CompiledNFA.NO_STATE
+    private final int[] enteredCounter;
+    // counter whose body accept state the state is, or CompiledNFA.NO_STATE
+    private final int[] finishedCounter;
+
+    // counter set of state s is words [wordOffsets[s], wordOffsets[s + 1])
+    private final int[] wordOffsets;
+
+    CountingNFA(CompiledNFA nfa, int[] counters) {
+        this.nfa = nfa;
+        this.counterCount = counters.length / 8;
+        this.entries = new int[counterCount];
+        this.exits = new int[counterCount];
+        this.bodyStarts = new int[counterCount];
+        this.mins = new int[counterCount];
+        this.limits = new int[counterCount];
+        this.unbounded = new boolean[counterCount];
+        this.enteredCounter = new int[nfa.stateCount];
+        this.finishedCounter = new int[nfa.stateCount];
+        Arrays.fill(enteredCounter, CompiledNFA.NO_STATE);
+        Arrays.fill(finishedCounter, CompiledNFA.NO_STATE);
+
+        int[] words = new int[nfa.stateCount];
+        Arrays.fill(words, 1);
+        for (int c = 0; c < counterCount; c++) {
+            int base = c * 8;
+            entries[c] = counters[base];
+            exits[c] = counters[base + 1];
+            bodyStarts[c] = counters[base + 2];
+            mins[c] = counters[base + 6];
+            unbounded[c] = counters[base + 7] == -1;
+            limits[c] = unbounded[c] ? mins[c] + 1 : counters[base + 7];
+            enteredCounter[entries[c]] = c;
+            finishedCounter[counters[base + 3]] = c;
+            for (int state = counters[base + 4]; state < counters[base + 5]; state++) {
+                words[state] = (limits[c] + 63) >>> 6;
+            }
+        }
+        this.wordOffsets = new int[nfa.stateCount + 1];
+        for (int state = 0; state < nfa.stateCount; state++) {
+            wordOffsets[state + 1] = wordOffsets[state] + words[state];
+        }
+    }
+
+    int counterCount() {
+        return counterCount;
+    }
+
+    long estimatedBytes() {
+        return nfa.estimatedBytes() + 4L * (enteredCounter.length + finishedCounter.length
+                + wordOffsets.length) + 25L * counterCount;
+    }
+
+    // total size of one buffer of counter sets, in longs
+    int wordCount() {
+        return wordOffsets[nfa.stateCount];
+    }
+
+    /*
+     * Working buffers of one simulation. A state is active in the next step when its mark
+     * equals the generation. Only the words [low, high) of an active state's counter set are
+     * stored, everything outside is zero: a set usually holds a few neighbouring iterations,
+     * so this keeps a step from touching every word of a large counter.
+     */
+    final class Simulation {
+        long[] values = new long[wordCount()];
+        long[] nextValues = new long[wordCount()];
+        int[] lows = new int[nfa.stateCount];
+        int[] highs = new int[nfa.stateCount];
+        int[] nextLows = new int[nfa.stateCount];
+        int[] nextHighs = new int[nfa.stateCount];
+        int[] active = new int[nfa.stateCount];
+        int[] nextActive = new int[nfa.stateCount];
+        int activeCount;
+        int nextActiveCount;
+        final int[] marks = new int[nfa.stateCount];
+        final boolean[] queued = new boolean[nfa.stateCount];
+        final int[] worklist = new int[nfa.stateCount];
+        int worklistSize;
+        int generation = 1;
+        // for StateMachine.runWithStats(), the other simulations count nothing
+        final boolean counting;
+        // whether a step also starts a new thread after the character (see CountingFinder)
+        boolean seeding;
+        long transitions;
+        long expansions;
+
+        Simulation(boolean counting) {
+            this.counting = counting;
+        }
+
+        // ors non-zero bits into one word of the next set of the state, returns whether it grew
+        boolean orWord(int state, int word, long bits) {
+            int offset = wordOffsets[state];
+            if (marks[state] != generation) {
+                marks[state] = generation;
+                nextActive[nextActiveCount++] = state;
+                nextValues[offset + word] = bits;
+                nextLows[state] = word;
+                nextHighs[state] = word + 1;
+                return true;
+            }
+            int low = nextLows[state];
+            int high = nextHighs[state];
+            if (word < low) {
+                Arrays.fill(nextValues, offset + word + 1, offset + low, 0L);
+                nextValues[offset + word] = bits;
+                nextLows[state] = word;
+                return true;
+            }
+            if (word >= high) {
+                Arrays.fill(nextValues, offset + high, offset + word, 0L);
+                nextValues[offset + word] = bits;
+                nextHighs[state] = word + 1;
+                return true;
+            }
+            long before = nextValues[offset + word];
+            if ((before | bits) == before) {
+                return false;
+            }
+            nextValues[offset + word] = before | bits;
+            return true;
+        }
+
+        void addBits(int state, int word, long bits) {
+            if (orWord(state, word, bits) && !queued[state]) {
+                queued[state] = true;
+                worklist[worklistSize++] = state;
+            }
+        }
+
+        // ors the counter set of from, taken from the given buffer, into the next set of to
+        void propagate(long[] source, int[] sourceLows, int[] sourceHighs, int from, int to) {
+            boolean grown = false;
+            int offset = wordOffsets[from];
+            for (int w = sourceLows[from]; w < sourceHighs[from]; w++) {
+                long bits = source[offset + w];
+                if (bits != 0) {
+                    grown |= orWord(to, w, bits);
+                }
+            }
+            if (grown && !queued[to]) {
+                queued[to] = true;
+                worklist[worklistSize++] = to;
+            }
+        }
+
+        // follows null transitions and counter edges until the next sets stop growing
+        void closure() {
+            while (worklistSize > 0) {
+                int state = worklist[--worklistSize];
+                queued[state] = false;
+                if (counting) {
+                    expansions++;
+                }
+                for (int k = nfa.nullTransitionIndex[state]; k < nfa.nullTransitionIndex[state + 1]; k++) {
+                    propagate(nextValues, nextLows, nextHighs, state, nfa.nullTransitionTargets[k]);
+                }
+                int entered = enteredCounter[state];
+                if (entered != CompiledNFA.NO_STATE) {
+                    addBits(bodyStarts[entered], 0, 1L);
+                }
+                int finished = finishedCounter[state];
+                if (finished != CompiledNFA.NO_STATE) {
+                    finishIteration(finished, state);
+                }
+            }
+        }
+
+        private void finishIteration(int counter, int accept) {
+            int offset = wordOffsets[accept];
+            int words = wordOffsets[accept + 1] - offset;
+            int low = nextLows[accept];
+            int high = nextHighs[accept];
+            int limit = limits[counter];
+            int start = bodyStarts[counter];
+            // next iteration: iteration k becomes k + 1, the last one repeats if unbounded
+            long carry = 0;
+            for (int w = low; w < Math.min(high + 1, words); w++) {
+                long value = w < high ? nextValues[offset + w] : 0;
+                long shifted = (value << 1) | carry;
+                carry = value >>> 63;
+                if (limit - 64 * w < 64) {
+                    shifted &= (1L << (limit - 64 * w)) - 1;
+                }
+                if (shifted != 0) {
+                    addBits(start, w, shifted);
+                }
+            }
+            int lastWord = (limit - 1) >>> 6;
+            long last = 1L << ((limit - 1) & 63);
+            if (unbounded[counter] && lastWord >= low && lastWord < high
+                    && (nextValues[offset + lastWord] & last) != 0) {
+                addBits(start, lastWord, last);
+            }
+            // exit once at least min iterations are done
+            int first = Math.max(mins[counter], 1) - 1;
+            for (int w = Math.max(low, first >>> 6); w < high; w++) {
+                long value = nextValues[offset + w];
+                if (w == first >>> 6) {
+                    value &= -1L << (first & 63);
+                }
+                if (value != 0) {
+                    addBits(exits[counter], 0, 1L);
+                    break;
+                }
+            }
+        }
+
+        void step(char symbol) {
+            long[] values = this.values;
+            int[] lows = this.lows;
+            int[] highs = this.highs;
+            for (int k = 0; k < activeCount; k++) {
+                int state = active[k];
+                for (int e = nfa.transitionIndex[state]; e < nfa.transitionIndex[state + 1]; e++) {
+                    char edgeSymbol = nfa.transitionSymbols[e];
+                    if (edgeSymbol == symbol) {
+                        if (counting) {
+                            transitions++;
+                        }
+                        propagate(values, lows, highs, state, nfa.transitionTargets[e]);
+                    } else if (edgeSymbol > symbol) {
+                        break;
+                    }
+                }
+                if (nfa.anyCharTargets[state] != CompiledNFA.NO_STATE) {
+                    if (counting) {
+                        transitions++;
+                    }
+                    propagate(values, lows, highs, state, nfa.anyCharTargets[state]);
+                }
+                if (nfa.classTargets[state] != CompiledNFA.NO_STATE
+                        && nfa.stateClasses[state].contains(symbol)) {
+                    if (counting) {
+                        transitions++;
+                    }
+                    propagate(values, lows, highs, state, nfa.classTargets[state]);
+                }
+            }
+            if (seeding) {
+                for (int state : nfa.startStates) {
+                    addBits(state, 0, 1L);
+                }
+            }
+            closure();
+            swap();
+        }
+
+        boolean accepting() {
+            for (int k = 0; k < activeCount; k++) {
+                // active states always have a non-empty set
+                if (nfa.accepting[active[k]]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean dead() {
+            return activeCount == 0;
+        }
+
+        // forgets the active states, for a new match on the same buffers
+        void reset() {
+            for (int k = 0; k < worklistSize; k++) {
+                queued[worklist[k]] = false;
+            }
+            worklistSize = 0;
+            activeCount = 0;
+            nextActiveCount = 0;
+            transitions = 0;
+            expansions = 0;
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        void swap() {
+            long[] values = this.values;
+            this.values = nextValues;
+            nextValues = values;
+            int[] lows = this.lows;
+            this.lows = nextLows;
+            nextLows = lows;
+            int[] highs = this.highs;
+            this.highs = nextHighs;
+            nextHighs = highs;
+            int[] active = this.active;
+            this.active = nextActive;
+            nextActive = active;
+            activeCount = nextActiveCount;
+            nextActiveCount = 0;
+            // a stream can outlast the generation counter
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+    }
+
+    // a simulation which has consumed no input yet, with buffers of its own for a stream
+    Simulation start() {
+        return restart(new Simulation(false));
+    }
+
+    // makes the simulation start over at the beginning of the input
+    Simulation restart(Simulation simulation) {
+        simulation.reset();
+        for (int state : nfa.startStates) {
+            simulation.addBits(state, 0, 1L);
+        }
+        simulation.closure();
+        simulation.swap();
+        return simulation;
+    }
+
+    MatchStats matchesWithStats(CharSequence input) {
+        Simulation simulation = restart(new Simulation(true));
+        // the start closure is not part of the match
+        simulation.expansions = 0;
+        int peak = simulation.activeCount;
+        long total = simulation.activeCount;
+        int consumed = 0;
+        for (; consumed < input.length() && !simulation.dead(); consumed++) {
+            simulation.step(input.charAt(consumed));
+            peak = Math.max(peak, simulation.activeCount);
+            total += simulation.activeCount;
+        }
+        return new MatchStats(simulation.accepting(), consumed, peak, total,
+                simulation.expansions, simulation.transitions);
+    }
+
+    boolean matches(CharSequence input) {
+        return matches(input, null);
+    }
+
+    // budget is charged the number of active states at every step, unless it is null
+    boolean matches(CharSequence input, MatchBudget budget) {
+        // buffers per call: a simulation kept per thread would keep the machine alive with it
+        Simulation simulation = restart(new Simulation(false));
+        for (int i = 0; i < input.length() && !simulation.dead(); i++) {
+            if (budget != null) {
+                budget.charge(simulation.activeCount);
+            }
+            simulation.step(input.charAt(i));
+        }
+        return simulation.accepting();
+    }
+}
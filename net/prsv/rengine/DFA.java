@@ -0,0 +1,448 @@
+package net.prsv.rengine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Table-driven DFA compiled ahead of time from the NFA by subset construction and then
+ * minimized with Hopcroft's algorithm.
+ *
+ * The alphabet is compressed into symbol classes (see Alphabet) before the construction,
+ * so the table has one column per class. Matching reads one entry of the transition table
+ * per input character and does not allocate.
+ */
+final class DFA {
+
+    // upper bound on the size of the transition table during subset construction
+    private static final long MAX_TABLE_CELLS = 1L << 24;
+
+    private final int stateCount;
+    private final int classCount;
+    private final int start;
+    private final int dead;
+    private final boolean[] accepting;
+    // table[state * classCount + symbolClass]
+    private final int[] table;
+
+    private final Alphabet alphabet;
+
+    private final int unminimizedStateCount;
+
+    private DFA(int stateCount, int classCount, int start, int dead, boolean[] accepting,
+                int[] table, Alphabet alphabet, int unminimizedStateCount) {
+        this.stateCount = stateCount;
+        this.classCount = classCount;
+        this.start = start;
+        this.dead = dead;
+        this.accepting = accepting;
+        this.table = table;
+        this.alphabet = alphabet;
+        this.unminimizedStateCount = unminimizedStateCount;
+    }
+
+    private static final class StateSet {
+        private final int[] states;
+        private final int hash;
+
+        StateSet(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(states, ((StateSet) o).states);
+        }
+    }
+
+    /*
+     * Builds the minimal DFA for the NFA, or returns null if subset construction produces
+     * more than stateLimit states.
+     */
+    static DFA build(CompiledNFA nfa, int stateLimit) {
+        Alphabet alphabet = Alphabet.of(nfa);
+        int classCount = alphabet.classCount();
+
+        // subset construction over closed sets of NFA states
+        HashMap<StateSet, Integer> ids = new HashMap<>();
+        List<int[]> sets = new ArrayList<>();
+        List<int[]> rows = new ArrayList<>();
+        Deque<Integer> pending = new ArrayDeque<>();
+        ids.put(new StateSet(nfa.startClosure), 0);
+        sets.add(nfa.startClosure);
+        pending.add(0);
+
+        int[] buffer = new int[nfa.stateCount];
+        int[] marks = new int[nfa.stateCount];
+        int[] stack = nfa.newStack();
+        int generation = 0;
+        while (!pending.isEmpty()) {
+            int id = pending.poll();
+            int[] set = sets.get(id);
+            int[] row = new int[classCount];
+            for (int symbolClass = 0; symbolClass < classCount; symbolClass++) {
+                int size = nfa.step(set, set.length, alphabet.representative(symbolClass),
+                        buffer, marks, ++generation, stack);
+                int[] next = Arrays.copyOf(buffer, size);
+                Arrays.sort(next);
+                StateSet key = new StateSet(next);
+                Integer nextId = ids.get(key);
+                if (nextId == null) {
+                    if (sets.size() >= stateLimit
+                            || (long) (sets.size() + 1) * classCount > MAX_TABLE_CELLS) {
+                        return null;
+                    }
+                    nextId = sets.size();
+                    ids.put(key, nextId);
+                    sets.add(next);
+                    pending.add(nextId);
+                }
+                row[symbolClass] = nextId;
+            }
+            // states are numbered in the order they are queued, so this is row number id
+            rows.add(row);
+        }
+
+        int stateCount = sets.size();
+        boolean[] accepting = new boolean[stateCount];
+        int[] table = new int[stateCount * classCount];
+        int dead = -1;
+        for (int state = 0; state < stateCount; state++) {
+            int[] set = sets.get(state);
+            accepting[state] = nfa.anyAccepting(set, set.length);
+            if (set.length == 0) {
+                dead = state;
+            }
+            System.arraycopy(rows.get(state), 0, table, state * classCount, classCount);
+        }
+
+        return minimize(stateCount, classCount, 0, dead, accepting, table, alphabet);
+    }
+
+    /*
+     * Hopcroft's partition refinement. Blocks of equivalent states are kept as contiguous
+     * ranges of the elements array; marking a state moves it to the front of its block.
+     */
+    private static DFA minimize(int stateCount, int classCount, int start, int dead,
+                                boolean[] accepting, int[] table, Alphabet alphabet) {
+        // inverse transitions: predecessors of state t on class c are
+        // inverse[inverseIndex[c * stateCount + t] .. inverseIndex[c * stateCount + t + 1])
+        int[] inverseIndex = new int[classCount * stateCount + 1];
+        for (int state = 0; state < stateCount; state++) {
+            for (int c = 0; c < classCount; c++) {
+                inverseIndex[c * stateCount + table[state * classCount + c] + 1]++;
+            }
+        }
+        for (int i = 1; i < inverseIndex.length; i++) {
+            inverseIndex[i] += inverseIndex[i - 1];
+        }
+        int[] inverse = new int[stateCount * classCount];
+        int[] fill = Arrays.copyOf(inverseIndex, inverseIndex.length - 1);
+        for (int state = 0; state < stateCount; state++) {
+            for (int c = 0; c < classCount; c++) {
+                inverse[fill[c * stateCount + table[state * classCount + c]]++] = state;
+            }
+        }
+
+        int[] elements = new int[stateCount];
+        int[] location = new int[stateCount];
+        int[] blockOf = new int[stateCount];
+        int[] first = new int[stateCount];
+        int[] end = new int[stateCount];
+        int[] mid = new int[stateCount];
+        boolean[] inWorklist = new boolean[stateCount];
+        int blockCount = 0;
+
+        // initial partition: accepting and non-accepting states
+        int position = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            int blockStart = position;
+            for (int state = 0; state < stateCount; state++) {
+                if (accepting[state] == (pass == 0)) {
+                    elements[position] = state;
+                    location[state] = position;
+                    blockOf[state] = blockCount;
+                    position++;
+                }
+            }
+            if (position > blockStart) {
+                first[blockCount] = blockStart;
+                end[blockCount] = position;
+                mid[blockCount] = blockStart;
+                blockCount++;
+            }
+        }
+
+        Deque<Integer> worklist = new ArrayDeque<>();
+        for (int block = 0; block < blockCount; block++) {
+            worklist.add(block);
+            inWorklist[block] = true;
+        }
+
+        int[] splitter = new int[stateCount];
+        int[] touched = new int[stateCount];
+        while (!worklist.isEmpty()) {
+            int block = worklist.poll();
+            inWorklist[block] = false;
+            int splitterSize = end[block] - first[block];
+            System.arraycopy(elements, first[block], splitter, 0, splitterSize);
+
+            for (int c = 0; c < classCount; c++) {
+                int touchedCount = 0;
+                // mark all predecessors of the splitter on this class
+                for (int k = 0; k < splitterSize; k++) {
+                    int target = splitter[k];
+                    int base = c * stateCount + target;
+                    for (int p = inverseIndex[base]; p < inverseIndex[base + 1]; p++) {
+                        int state = inverse[p];
+                        int b = blockOf[state];
+                        int i = location[state];
+                        if (i < mid[b]) continue; // already marked
+                        if (mid[b] == first[b]) {
+                            touched[touchedCount++] = b;
+                        }
+                        int j = mid[b];
+                        int other = elements[j];
+                        elements[j] = state;
+                        location[state] = j;
+                        elements[i] = other;
+                        location[other] = i;
+                        mid[b]++;
+                    }
+                }
+                // split every touched block into its marked and unmarked parts
+                for (int t = 0; t < touchedCount; t++) {
+                    int b = touched[t];
+                    if (mid[b] == end[b]) {
+                        mid[b] = first[b];
+                        continue;
+                    }
+                    int newBlock = blockCount++;
+                    first[newBlock] = first[b];
+                    end[newBlock] = mid[b];
+                    mid[newBlock] = first[newBlock];
+                    first[b] = mid[b];
+                    for (int i = first[newBlock]; i < end[newBlock]; i++) {
+                        blockOf[elements[i]] = newBlock;
+                    }
+                    if (inWorklist[b]) {
+                        worklist.add(newBlock);
+                        inWorklist[newBlock] = true;
+                    } else {
+                        int smaller = end[newBlock] - first[newBlock] <= end[b] - first[b] ? newBlock : b;
+                        worklist.add(smaller);
+                        inWorklist[smaller] = true;
+                    }
+                }
+            }
+        }
+
+        // one state per block
+        boolean[] minimalAccepting = new boolean[blockCount];
+        int[] minimalTable = new int[blockCount * classCount];
+        for (int block = 0; block < blockCount; block++) {
+            int representative = elements[first[block]];
+            minimalAccepting[block] = accepting[representative];
+            for (int c = 0; c < classCount; c++) {
+                minimalTable[block * classCount + c] = blockOf[table[representative * classCount + c]];
+            }
+        }
+        return new DFA(blockCount, classCount, blockOf[start], dead < 0 ? -1 : blockOf[dead],
+                minimalAccepting, minimalTable, alphabet, stateCount);
+    }
+
+    boolean matches(CharSequence input) {
+        int state = start;
+        for (int i = 0; i < input.length(); i++) {
+            state = table[state * classCount + alphabet.classOf(input.charAt(i))];
+            if (state == dead) {
+                return false;
+            }
+        }
+        return accepting[state];
+    }
+
+    // characters walked between two charges of a budget
+    private static final int BUDGET_BLOCK = 4096;
+
+    // same as matches(), charging the budget one unit per character
+    boolean matches(CharSequence input, MatchBudget budget) {
+        int state = start;
+        for (int from = 0; from < input.length() && state != dead; from += BUDGET_BLOCK) {
+            int to = Math.min(input.length(), from + BUDGET_BLOCK);
+            budget.charge(to - from);
+            state = walk(state, input, from, to);
+        }
+        return accepting[state];
+    }
+
+    // the state reached from state after reading the characters [from, to) of the input
+    private int walk(int state, CharSequence input, int from, int to) {
+        for (int i = from; i < to && state != dead; i++) {
+            state = table[state * classCount + alphabet.classOf(input.charAt(i))];
+        }
+        return state;
+    }
+
+    /*
+     * The transfer function of the characters [from, to): the state every state leads to
+     * after reading them. All states are run at once, and states which reach the same state
+     * are merged, so the cost per character is the number of distinct states still running,
+     * which usually drops to one or two after a few characters.
+     */
+    int[] transfer(CharSequence input, int from, int to) {
+        // runs[k] is the current state of run k, and startsTo[s] the run which started in s
+        int[] runs = new int[stateCount];
+        int[] startsTo = new int[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            runs[state] = state;
+            startsTo[state] = state;
+        }
+        int runCount = stateCount;
+        int[] merged = new int[stateCount];
+        int[] marks = new int[stateCount];
+        int[] runOf = new int[stateCount];
+        int generation = 0;
+        int i = from;
+        for (; i < to && runCount > 1; i++) {
+            int symbolClass = alphabet.classOf(input.charAt(i));
+            generation++;
+            int nextCount = 0;
+            for (int k = 0; k < runCount; k++) {
+                int next = table[runs[k] * classCount + symbolClass];
+                if (marks[next] != generation) {
+                    marks[next] = generation;
+                    runOf[next] = nextCount;
+                    runs[nextCount++] = next;
+                }
+                merged[k] = runOf[next];
+            }
+            if (nextCount < runCount) {
+                // runs are renumbered in order, so only a merge changes the numbering
+                for (int state = 0; state < stateCount; state++) {
+                    startsTo[state] = merged[startsTo[state]];
+                }
+                runCount = nextCount;
+            }
+        }
+        if (runCount == 1) {
+            runs[0] = walk(runs[0], input, i, to);
+        }
+        int[] result = new int[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            result[state] = runs[startsTo[state]];
+        }
+        return result;
+    }
+
+    // reduction of the transfer functions of consecutive chunks
+    private final class TransferTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence input;
+        private final int from;
+        private final int to;
+        private final int chunkLength;
+
+        TransferTask(CharSequence input, int from, int to, int chunkLength) {
+            this.input = input;
+            this.from = from;
+            this.to = to;
+            this.chunkLength = chunkLength;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= chunkLength) {
+                return transfer(input, from, to);
+            }
+            int middle = from + (to - from) / 2;
+            TransferTask left = new TransferTask(input, from, middle, chunkLength);
+            left.fork();
+            int[] right = new TransferTask(input, middle, to, chunkLength).compute();
+            int[] first = left.join();
+            for (int state = 0; state < stateCount; state++) {
+                first[state] = right[first[state]];
+            }
+            return first;
+        }
+    }
+
+    /*
+     * Like matches(), but uses the pool: the first chunk of the input is run from the start
+     * state while the transfer functions of the rest are computed in parallel and composed.
+     */
+    boolean matchesParallel(CharSequence input, ForkJoinPool pool, int chunkLength) {
+        int length = input.length();
+        int firstEnd = Math.min(length, chunkLength);
+        TransferTask rest = new TransferTask(input, firstEnd, length, chunkLength);
+        if (firstEnd < length) {
+            pool.execute(rest);
+        }
+        int state = walk(start, input, 0, firstEnd);
+        if (firstEnd < length) {
+            if (state == dead) {
+                // the rest cannot matter; chunks which already started still run to the end
+                rest.cancel(false);
+                return false;
+            }
+            state = rest.join()[state];
+        }
+        return accepting[state];
+    }
+
+    int start() {
+        return start;
+    }
+
+    int next(int state, char symbol) {
+        return table[state * classCount + alphabet.classOf(symbol)];
+    }
+
+    // the state reached from state on the characters of the symbol class
+    int target(int state, int symbolClass) {
+        return table[state * classCount + symbolClass];
+    }
+
+    Alphabet alphabet() {
+        return alphabet;
+    }
+
+    boolean isAccepting(int state) {
+        return accepting[state];
+    }
+
+    // whether no input can lead from the state to a match
+    boolean isDead(int state) {
+        return state == dead;
+    }
+
+    int stateCount() {
+        return stateCount;
+    }
+
+    long estimatedBytes() {
+        return 4L * table.length + accepting.length;
+    }
+
+    int unminimizedStateCount() {
+        return unminimizedStateCount;
+    }
+
+    int classCount() {
+        return classCount;
+    }
+}
@@ -0,0 +1,289 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Unanchored search with the compiled NFA.
+ *
+ * The search makes a single pass over the input. Every active state remembers the leftmost
+ * position a thread reaching it started from, which is all that matters because threads in
+ * the same state have the same future. New threads are seeded at every position until a
+ * match is found. After that only threads which started at or before the match are kept,
+ * and they run until they die, so the result is the leftmost match and, among the matches
+ * starting there, the longest.
+ *
+ * While no thread is active, the search jumps straight to the next position where a match
+ * can start: to the next occurrence of the literal prefix every match begins with, or to
+ * the next character that one of the start states has a transition for.
+ */
+final class Finder {
+
+    private final CompiledNFA nfa;
+
+    // literal every match starts with, possibly empty
+    private final String prefix;
+
+    // characters a match can start with, or null if a match can start with any character
+    // or be empty
+    private final CharClass firstChars;
+
+    private final boolean nullable;
+
+    Finder(CompiledNFA nfa) {
+        this.nfa = nfa;
+        this.nullable = nfa.anyAccepting(nfa.startClosure, nfa.startClosure.length);
+        this.prefix = nullable ? "" : literalPrefix(nfa);
+        this.firstChars = nullable ? null : firstChars(nfa);
+    }
+
+    // rough size in bytes, without the NFA
+    long estimatedBytes() {
+        return 64 + 2L * prefix.length() + (firstChars == null ? 0 : 16 + 4L * firstChars.rangeCount());
+    }
+
+    // follows the chain of states which have exactly one way to go on
+    private static String literalPrefix(CompiledNFA nfa) {
+        StringBuilder sb = new StringBuilder();
+        int[] set = nfa.startClosure;
+        while (set.length == 1 && sb.length() < nfa.stateCount) {
+            int state = set[0];
+            if (nfa.accepting[state]
+                    || nfa.anyCharTargets[state] != CompiledNFA.NO_STATE
+                    || nfa.classTargets[state] != CompiledNFA.NO_STATE
+                    || nfa.transitionIndex[state + 1] - nfa.transitionIndex[state] != 1) {
+                break;
+            }
+            sb.append(nfa.transitionSymbols[nfa.transitionIndex[state]]);
+            set = nfa.closureOf(new int[]{nfa.transitionTargets[nfa.transitionIndex[state]]});
+        }
+        return sb.toString();
+    }
+
+    private static CharClass firstChars(CompiledNFA nfa) {
+        List<char[]> ranges = new ArrayList<>();
+        for (int state : nfa.startClosure) {
+            if (nfa.anyCharTargets[state] != CompiledNFA.NO_STATE) {
+                return null;
+            }
+            for (int e = nfa.transitionIndex[state]; e < nfa.transitionIndex[state + 1]; e++) {
+                ranges.add(new char[]{nfa.transitionSymbols[e], nfa.transitionSymbols[e]});
+            }
+            CharClass stateClass = nfa.stateClasses[state];
+            if (stateClass != null) {
+                for (int i = 0; i < stateClass.rangeCount(); i++) {
+                    ranges.add(new char[]{stateClass.rangeStart(i), stateClass.rangeEnd(i)});
+                }
+            }
+        }
+        return CharClass.of(ranges);
+    }
+
+    String prefix() {
+        return prefix;
+    }
+
+    /*
+     * Returns the first position at or after from where a match can start, or -1 if there
+     * is none.
+     */
+    private int skip(CharSequence input, int from) {
+        if (nullable) {
+            return from;
+        }
+        if (!prefix.isEmpty()) {
+            if (input instanceof String) {
+                return ((String) input).indexOf(prefix, from);
+            }
+            for (int i = from; i + prefix.length() <= input.length(); i++) {
+                if (input.charAt(i) == prefix.charAt(0) && startsWith(input, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        if (firstChars == null) {
+            return from < input.length() ? from : -1;
+        }
+        for (int i = from; i < input.length(); i++) {
+            if (firstChars.contains(input.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(CharSequence input, int offset) {
+        for (int k = 1; k < prefix.length(); k++) {
+            if (input.charAt(offset + k) != prefix.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Working buffers of a search, which can be reused by later searches on the same thread.
+     * A state is in the next set when its mark equals the generation and in the current set
+     * when it equals generation - 1; the starts arrays hold the leftmost start of the threads
+     * in each state.
+     */
+    final class Search {
+        int[] current = new int[nfa.stateCount];
+        int[] next = new int[nfa.stateCount];
+        int[] currentStarts = new int[nfa.stateCount];
+        int[] nextStarts = new int[nfa.stateCount];
+        int currentSize;
+        int nextSize;
+        final int[] marks = new int[nfa.stateCount];
+        int generation = 2;
+        // only used when the closures were not precomputed
+        final int[] stack = nfa.newStack();
+        final int[] visits = stack == null ? null : new int[nfa.stateCount];
+        int visit;
+
+        // adds the start closure to the current set; states already in it keep their start
+        void seed(int start) {
+            for (int state : nfa.startClosure) {
+                if (marks[state] != generation - 1) {
+                    marks[state] = generation - 1;
+                    current[currentSize++] = state;
+                    currentStarts[state] = start;
+                }
+            }
+        }
+
+        void add(int state, int start) {
+            if (marks[state] == generation) {
+                if (start < nextStarts[state]) {
+                    nextStarts[state] = start;
+                }
+                return;
+            }
+            marks[state] = generation;
+            next[nextSize++] = state;
+            nextStarts[state] = start;
+        }
+
+        void addClosure(int state, int start) {
+            if (nfa.closureIndex != null) {
+                for (int k = nfa.closureIndex[state]; k < nfa.closureIndex[state + 1]; k++) {
+                    add(nfa.closureStates[k], start);
+                }
+                return;
+            }
+            // the closures were not precomputed, walk the null transitions instead
+            visit++;
+            int top = 0;
+            stack[top++] = state;
+            while (top > 0) {
+                int s = stack[--top];
+                if (visits[s] == visit) continue;
+                visits[s] = visit;
+                if (nfa.isImportant(s)) {
+                    add(s, start);
+                }
+                for (int k = nfa.nullTransitionIndex[s]; k < nfa.nullTransitionIndex[s + 1]; k++) {
+                    if (visits[nfa.nullTransitionTargets[k]] != visit) {
+                        stack[top++] = nfa.nullTransitionTargets[k];
+                    }
+                }
+            }
+        }
+
+        // forgets the previous search; a search of the given length must not overflow the generation
+        void reset(int length) {
+            currentSize = 0;
+            nextSize = 0;
+            generation += 2;
+            if (generation > Integer.MAX_VALUE - length - 2) {
+                Arrays.fill(marks, 0);
+                generation = 2;
+            }
+            if (visits != null && visit > Integer.MAX_VALUE / 2) {
+                Arrays.fill(visits, 0);
+                visit = 0;
+            }
+        }
+
+        void swap() {
+            int[] states = current;
+            current = next;
+            next = states;
+            int[] starts = currentStarts;
+            currentStarts = nextStarts;
+            nextStarts = starts;
+            currentSize = nextSize;
+            nextSize = 0;
+            generation++;
+        }
+    }
+
+    Search newSearch() {
+        return new Search();
+    }
+
+    Match find(CharSequence input, int from) {
+        return find(input, from, new Search());
+    }
+
+    Match find(CharSequence input, int from, Search search) {
+        search.reset(input.length() - from);
+        int bestStart = -1;
+        int bestEnd = -1;
+        int i = from;
+        while (true) {
+            if (bestStart < 0) {
+                if (search.currentSize == 0) {
+                    i = skip(input, i);
+                    if (i < 0) {
+                        return null;
+                    }
+                }
+                search.seed(i);
+            }
+            for (int k = 0; k < search.currentSize; k++) {
+                int state = search.current[k];
+                int start = search.currentStarts[state];
+                if (nfa.accepting[state] && (bestStart < 0 || start <= bestStart)) {
+                    bestStart = start;
+                    bestEnd = i;
+                }
+            }
+            if (i == input.length()) {
+                break;
+            }
+            char symbol = input.charAt(i);
+            for (int k = 0; k < search.currentSize; k++) {
+                int state = search.current[k];
+                int start = search.currentStarts[state];
+                if (bestStart >= 0 && start > bestStart) {
+                    // cannot lead to a match further left than the one already found
+                    continue;
+                }
+                for (int e = nfa.transitionIndex[state]; e < nfa.transitionIndex[state + 1]; e++) {
+                    char edgeSymbol = nfa.transitionSymbols[e];
+                    if (edgeSymbol == symbol) {
+                        search.addClosure(nfa.transitionTargets[e], start);
+                    } else if (edgeSymbol > symbol) {
+                        break;
+                    }
+                }
+                if (nfa.anyCharTargets[state] != CompiledNFA.NO_STATE) {
+                    search.addClosure(nfa.anyCharTargets[state], start);
+                }
+                if (nfa.classTargets[state] != CompiledNFA.NO_STATE
+                        && nfa.stateClasses[state].contains(symbol)) {
+                    search.addClosure(nfa.classTargets[state], start);
+                }
+            }
+            search.swap();
+            i++;
+            if (bestStart >= 0 && search.currentSize == 0) {
+                break;
+            }
+        }
+        return bestStart < 0 ? null : new Match(bestStart, bestEnd);
+    }
+}
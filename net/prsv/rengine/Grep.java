@@ -0,0 +1,409 @@
+package net.prsv.rengine;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/*
+ * Batch mode of the matcher: prints the lines of files which contain a match of a pattern,
+ * or only counts them.
+ *
+ * Every file is memory-mapped and cut into chunks of about chunkBytes which end at a line
+ * break, so a chunk can be searched on its own. The chunks are searched in parallel and
+ * their results are reported in file order. The files are read as UTF-8; a line break
+ * never occurs inside a multi-byte sequence, so the line breaks are found in the bytes and
+ * every line is handled on its own, without decoding the chunk first. A line which must
+ * match as a whole is matched on its bytes (see runUtf8()); otherwise it is decoded and
+ * searched with buffers which are kept for the whole chunk.
+ *
+ * When the pattern has a required literal, a chunk is not split into lines up front:
+ * the UTF-8 bytes of the literal are searched for in the whole chunk and only the lines
+ * containing them are run through the machine.
+ */
+final class Grep implements AutoCloseable {
+
+    static final int DEFAULT_CHUNK_BYTES = 16 << 20;
+
+    private static final int BOUNDARY_READ_BYTES = 64 << 10;
+
+    private static final int WINDOW_BYTES = 64 << 10;
+
+    private final StateMachine machine;
+    private final boolean wholeLine;
+    private final int chunkBytes;
+    private final int threads;
+    private final ExecutorService executor;
+    // UTF-8 bytes of the required literal, or null
+    private final byte[] literal;
+
+    /*
+     * wholeLine selects whether a line must match the pattern as a whole (like run()) or
+     * only contain a match (like find()).
+     */
+    Grep(StateMachine machine, boolean wholeLine, int threads, int chunkBytes) {
+        if (threads < 1 || chunkBytes < 1) {
+            throw new IllegalArgumentException("Invalid thread count or chunk size: "
+                    + threads + ", " + chunkBytes);
+        }
+        this.machine = machine;
+        this.wholeLine = wholeLine;
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "grep-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<String> literals = machine.requiredLiterals();
+        this.literal = literals.isEmpty() ? null : literalBytes(literals.get(0));
+    }
+
+    // the matching lines of one chunk, or only their number
+    private static final class ChunkResult {
+        final long count;
+        final List<String> lines;
+
+        ChunkResult(long count, List<String> lines) {
+            this.count = count;
+            this.lines = lines;
+        }
+    }
+
+    /*
+     * Searches a file and returns the number of matching lines. If lines is not null, it is
+     * given every matching line in order, on the calling thread.
+     */
+    long search(Path file, Consumer<String> lines) throws IOException {
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // keep a few chunks per thread in flight, so the output of a huge file is not
+            // held in memory all at once
+            Deque<Future<ChunkResult>> pending = new ArrayDeque<>();
+            long size = channel.size();
+            long start = 0;
+            while (start < size) {
+                long end = chunkEnd(channel, Math.min(size, start + chunkBytes), size);
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException(file + ": line at offset " + start + " is too long");
+                }
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                pending.add(executor.submit(() -> searchChunk(chunk, lines != null)));
+                if (pending.size() >= 2 * threads) {
+                    count += report(pending.remove(), lines);
+                }
+                start = end;
+            }
+            while (!pending.isEmpty()) {
+                count += report(pending.remove(), lines);
+            }
+        }
+        return count;
+    }
+
+    private static long report(Future<ChunkResult> future, Consumer<String> lines) throws IOException {
+        ChunkResult result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while searching", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        if (lines != null) {
+            result.lines.forEach(lines);
+        }
+        return result.count;
+    }
+
+    // the position just after the first line break at or after from - 1, or size
+    private static long chunkEnd(FileChannel channel, long from, long size) throws IOException {
+        if (from >= size) {
+            return size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_READ_BYTES);
+        long position = from - 1;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /*
+     * A malformed byte sequence never swallows the bytes of a well-formed character, so the
+     * bytes of the literal are in a line exactly when its decoded text contains the literal.
+     * That does not hold for a literal with the replacement character or an unpaired
+     * surrogate, which then filters nothing.
+     */
+    private static byte[] literalBytes(String literal) {
+        byte[] bytes = literal.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || literal.indexOf('\uFFFD') >= 0
+                || !new String(bytes, StandardCharsets.UTF_8).equals(literal)) {
+            return null;
+        }
+        return bytes;
+    }
+
+    // position of the first occurrence of the bytes in [from, to), or -1
+    private static int indexOf(byte[] buffer, byte[] bytes, int from, int to) {
+        byte first = bytes[0];
+        for (int i = from; i <= to - bytes.length; i++) {
+            if (buffer[i] != first) continue;
+            int k = 1;
+            while (k < bytes.length && buffer[i + k] == bytes[k]) {
+                k++;
+            }
+            if (k == bytes.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // position of the first line break in [from, to), or to
+    private static int lineEnd(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /*
+     * Whether the bytes are well-formed UTF-8 by the rules of Utf8DFA: no stray
+     * continuation bytes, overlong forms, encoded surrogates, code points past U+10FFFF
+     * or truncated sequences.
+     */
+    private static boolean wellFormed(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            int length = b < 0xC2 ? 0 : b < 0xE0 ? 2 : b < 0xF0 ? 3 : b < 0xF5 ? 4 : 0;
+            if (length == 0 || i + length > to) {
+                return false;
+            }
+            int second = bytes[i + 1] & 0xFF;
+            int low = b == 0xE0 ? 0xA0 : b == 0xF0 ? 0x90 : 0x80;
+            int high = b == 0xED ? 0x9F : b == 0xF4 ? 0x8F : 0xBF;
+            if (second < low || second > high) {
+                return false;
+            }
+            for (int k = 2; k < length; k++) {
+                if ((bytes[i + k] & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+            i += length;
+        }
+        return true;
+    }
+
+    /*
+     * Searches a chunk through a window of WINDOW_BYTES copied out of it in bulk, grown to
+     * the longest line, so the line breaks and the literal are found in an array and a
+     * line is matched where it lies in the window. Only the complete lines in the window
+     * are searched; the rest is moved to its front before the next part is read.
+     */
+    private ChunkResult searchChunk(MappedByteBuffer chunk, boolean collect) {
+        List<String> lines = collect ? new ArrayList<>() : null;
+        long count = 0;
+        int limit = chunk.limit();
+        // the search buffers are kept for every line of the chunk
+        StateMachine.Searcher searcher = wholeLine ? null : machine.newSearcher();
+        byte[] window = new byte[Math.min(WINDOW_BYTES, Math.max(limit, 1))];
+        // the window holds the bytes [base, base + filled) of the chunk
+        int base = 0;
+        int filled = 0;
+        int position = 0;
+        while (true) {
+            boolean last = base + filled == limit;
+            int end = filled;
+            if (!last) {
+                while (end > position && window[end - 1] != '\n') {
+                    end--;
+                }
+            }
+            while (position < end) {
+                int lineStart;
+                if (literal != null) {
+                    // jump to the next line which contains the literal
+                    int found = indexOf(window, literal, position, end);
+                    if (found < 0) {
+                        position = end;
+                        break;
+                    }
+                    lineStart = found;
+                    while (lineStart > position && window[lineStart - 1] != '\n') {
+                        lineStart--;
+                    }
+                } else {
+                    lineStart = position;
+                }
+                int lineEnd = lineEnd(window, lineStart, end);
+                if (matches(window, lineStart, lineEnd, searcher)) {
+                    count++;
+                    if (collect) {
+                        lines.add(decode(window, lineStart, lineEnd));
+                    }
+                }
+                position = lineEnd + 1;
+            }
+            if (last) {
+                break;
+            }
+            int rest = filled - position;
+            if (rest == window.length) {
+                window = Arrays.copyOf(window, 2 * window.length);
+            } else {
+                System.arraycopy(window, position, window, 0, rest);
+                base += position;
+                position = 0;
+            }
+            int read = Math.min(window.length - rest, limit - base - rest);
+            chunk.get(base + rest, window, rest, read);
+            filled = rest + read;
+        }
+        return new ChunkResult(count, lines);
+    }
+
+    /*
+     * Whether the line [from, to) of the window matches. A line which must match as a whole
+     * is matched on its bytes; runUtf8() rejects malformed bytes, which decode to U+FFFD and
+     * may match, so only a malformed line is decoded for it.
+     */
+    private boolean matches(byte[] window, int from, int to, StateMachine.Searcher searcher) {
+        if (wholeLine) {
+            return machine.runUtf8(window, from, to - from)
+                    || !wellFormed(window, from, to) && machine.run(decode(window, from, to));
+        }
+        return searcher.find(decode(window, from, to)) != null;
+    }
+
+    private static String decode(byte[] window, int from, int to) {
+        return new String(window, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static void printUsage(PrintStream err) {
+        err.println("Usage: Main [-c] [-x] [-j threads] pattern file...");
+        err.println("  -c  only print the number of matching lines");
+        err.println("  -x  select lines which match the pattern as a whole");
+        err.println("  -j  number of threads, defaults to the number of processors");
+    }
+
+    /*
+     * Runs the batch mode with command line arguments and returns the exit status: 0 if a
+     * line matched, 1 if none did, 2 on errors.
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        boolean countOnly = false;
+        boolean wholeLine = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-") && args[i].length() > 1) {
+            switch (args[i]) {
+                case "-c":
+                    countOnly = true;
+                    break;
+                case "-x":
+                    wholeLine = true;
+                    break;
+                case "-j":
+                    if (i + 1 == args.length) {
+                        printUsage(err);
+                        return 2;
+                    }
+                    try {
+                        threads = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        threads = 0;
+                    }
+                    if (threads < 1) {
+                        err.println("Invalid thread count: " + args[i]);
+                        return 2;
+                    }
+                    break;
+                default:
+                    err.println("Unknown option: " + args[i]);
+                    printUsage(err);
+                    return 2;
+            }
+            i++;
+        }
+        if (args.length - i < 2) {
+            printUsage(err);
+            return 2;
+        }
+        StateMachine machine;
+        try {
+            machine = StateMachine.compile(args[i]);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return 2;
+        }
+        List<String> files = List.of(args).subList(i + 1, args.length);
+        boolean matched = false;
+        boolean failed = false;
+        try (Grep grep = new Grep(machine, wholeLine, threads, DEFAULT_CHUNK_BYTES)) {
+            for (String file : files) {
+                String prefix = files.size() > 1 ? file + ":" : "";
+                try {
+                    if (!Files.isRegularFile(Path.of(file))) {
+                        err.println(file + ": not a regular file");
+                        failed = true;
+                        continue;
+                    }
+                    long count = grep.search(Path.of(file),
+                            countOnly ? null : line -> out.println(prefix + line));
+                    if (countOnly) {
+                        out.println(prefix + count);
+                    }
+                    matched |= count > 0;
+                } catch (IOException e) {
+                    err.println(file + ": " + e.getMessage());
+                    failed = true;
+                }
+            }
+        }
+        out.flush();
+        return failed ? 2 : matched ? 0 : 1;
+    }
+}
@@ -0,0 +1,289 @@
+package net.prsv.rengine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * DFA which is built on the fly from the compiled NFA while matching.
+ *
+ * Every DFA state stands for a closed set of NFA states. Transitions are computed the first
+ * time they are taken and cached on the state in a row indexed by symbol class (see
+ * Alphabet), so a repeated step costs the class lookup of the character and one array
+ * lookup, and a transition computed for one character serves its whole class.
+ *
+ * The cache is bounded: when the estimated size of the cached states would exceed the
+ * configured limit, the whole cache is dropped and states are rebuilt on demand (the same
+ * policy RE2 uses). If the cache has to be flushed a second time during one match before
+ * it has paid for itself, the rest of the input is matched by simulating the NFA, so a
+ * pattern whose DFA keeps exploding degrades to NFA speed instead of thrashing.
+ *
+ * Instances are shared by all callers of the owning machine, and matching takes no lock
+ * once the states it needs are cached. A state never changes after it is created except
+ * for its row, whose entries go from null to a state once; since all the fields of a state
+ * are final, a thread which reads an entry another thread has just written sees the whole
+ * state, or null and computes the transition itself. Computing a transition uses scratch
+ * space of the current call, and only looking up, adding and linking the resulting state
+ * is done under the lock of the cache.
+ */
+final class LazyDFA {
+
+    // rough cost of a cached state without its transition row: the object itself and the
+    // entry in the cache map; the row and the NFA state list are added on top of that
+    private static final int STATE_OVERHEAD_BYTES = 48 + 16 + 64;
+
+    // a flush is wasteful if fewer characters than this per cached state were consumed
+    // since the previous flush of the same match
+    private static final int MIN_CHARS_PER_STATE = 10;
+
+    private static final class DState {
+        final int[] nfaStates;
+        final boolean accepting;
+        final boolean dead;
+        // flushes of the cache before this state was created; states of an earlier
+        // generation are no longer in the cache and are not linked any more
+        final long generation;
+        // transitions by symbol class, null until taken
+        final DState[] next;
+
+        DState(int[] nfaStates, boolean accepting, long generation, int classCount) {
+            this.nfaStates = nfaStates;
+            this.accepting = accepting;
+            this.dead = nfaStates.length == 0;
+            this.generation = generation;
+            this.next = new DState[classCount];
+        }
+    }
+
+    // working space for computing transitions during one call
+    private static final class Scratch {
+        final int[] buffer;
+        final int[] marks;
+        final int[] stack;
+        int generation;
+        // set when the cache was flushed by the last transition this call added
+        boolean flushed;
+
+        Scratch(CompiledNFA nfa) {
+            this.buffer = new int[nfa.stateCount];
+            this.marks = new int[nfa.stateCount];
+            this.stack = nfa.newStack();
+        }
+    }
+
+    private static final class StateSet {
+        private final int[] states;
+        private final int hash;
+
+        StateSet(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(states, ((StateSet) o).states);
+        }
+    }
+
+    private final CompiledNFA nfa;
+    private final Alphabet alphabet;
+    private final long maxCacheBytes;
+    // cost of a cached state with its transition row, without the NFA state list
+    private final long stateBytes;
+
+    // guarded by this, except that start is read without the lock
+    private final HashMap<StateSet, DState> cache = new HashMap<>();
+    private volatile DState start;
+    private long cacheBytes;
+    private long flushes;
+
+    LazyDFA(CompiledNFA nfa, long maxCacheBytes) {
+        this.nfa = nfa;
+        this.alphabet = Alphabet.of(nfa);
+        this.maxCacheBytes = maxCacheBytes;
+        this.stateBytes = STATE_OVERHEAD_BYTES + 16 + 4L * alphabet.classCount();
+    }
+
+    boolean matches(CharSequence input) {
+        return walk(input, null).accepting;
+    }
+
+    /*
+     * Same as matches(), charging the budget one unit per character, plus the size of the
+     * NFA state set for every transition which has to be computed.
+     */
+    boolean matches(CharSequence input, MatchBudget budget) {
+        return walk(input, budget).accepting;
+    }
+
+    /*
+     * Returns the sorted set of NFA states the machine is in after reading the whole input.
+     * The array must not be modified.
+     */
+    int[] finalStates(CharSequence input) {
+        return walk(input, null).nfaStates;
+    }
+
+    private DState walk(CharSequence input, MatchBudget budget) {
+        DState state = start;
+        if (state == null) {
+            state = start();
+        }
+        Scratch scratch = null;
+        int length = input.length();
+        // index at which the cache was last flushed during this match, or -1
+        int lastFlush = -1;
+        for (int i = 0; i < length; i++) {
+            if (state.dead) {
+                break;
+            }
+            if (budget != null) {
+                budget.charge(1);
+            }
+            char symbol = input.charAt(i);
+            int symbolClass = alphabet.classOf(symbol);
+            DState next = state.next[symbolClass];
+            if (next == null) {
+                if (budget != null) {
+                    budget.charge(state.nfaStates.length);
+                }
+                if (scratch == null) {
+                    scratch = new Scratch(nfa);
+                }
+                next = computeTransition(state, symbol, symbolClass,
+                        lastFlush < 0 ? Long.MAX_VALUE : i - lastFlush, scratch);
+                if (next == null) {
+                    // the cache is thrashing, finish this input on the NFA
+                    return walkRemainderOnNFA(state.nfaStates, input, i, budget);
+                }
+                if (scratch.flushed) {
+                    lastFlush = i;
+                }
+            }
+            state = next;
+        }
+        return state;
+    }
+
+    private synchronized DState start() {
+        DState state = start;
+        if (state == null) {
+            state = intern(nfa.startClosure);
+            start = state;
+        }
+        return state;
+    }
+
+    /*
+     * Computes and caches the transition of a state on a symbol of the class. consumed is the number of
+     * characters matched since the cache was last flushed during the current match; null is
+     * returned when the cache would have to be flushed again too soon.
+     */
+    private DState computeTransition(DState from, char symbol, int symbolClass, long consumed, Scratch scratch) {
+        if (++scratch.generation == Integer.MAX_VALUE) {
+            Arrays.fill(scratch.marks, 0);
+            scratch.generation = 1;
+        }
+        int size = nfa.step(from.nfaStates, from.nfaStates.length, symbol,
+                scratch.buffer, scratch.marks, scratch.generation, scratch.stack);
+        int[] states = Arrays.copyOf(scratch.buffer, size);
+        Arrays.sort(states);
+        scratch.flushed = false;
+        return addTransition(from, symbolClass, new StateSet(states), consumed, scratch);
+    }
+
+    private synchronized DState addTransition(DState from, int symbolClass, StateSet key, long consumed,
+                                              Scratch scratch) {
+        int[] states = key.states;
+        DState next = cache.get(key);
+        long cost = next == null ? stateBytes + 4L * states.length : 0;
+        if (cacheBytes + cost > maxCacheBytes && !cache.isEmpty()) {
+            if (consumed < (long) MIN_CHARS_PER_STATE * cache.size()) {
+                flush();
+                return null;
+            }
+            flush();
+            scratch.flushed = true;
+            // the source state is not in the cache any more, so do not link it
+            next = newState(states);
+            cache.put(key, next);
+            cacheBytes += stateBytes + 4L * states.length;
+            return next;
+        }
+        if (next == null) {
+            next = newState(states);
+            cache.put(key, next);
+        }
+        cacheBytes += cost;
+        // a state from before a flush, reached by another call, stays out of the new cache
+        if (from.generation == flushes) {
+            from.next[symbolClass] = next;
+        }
+        return next;
+    }
+
+    private DState intern(int[] states) {
+        StateSet key = new StateSet(states);
+        DState state = cache.get(key);
+        if (state == null) {
+            state = newState(states);
+            cache.put(key, state);
+            cacheBytes += stateBytes + 4L * states.length;
+        }
+        return state;
+    }
+
+    private DState newState(int[] states) {
+        return new DState(states, nfa.anyAccepting(states, states.length), flushes, alphabet.classCount());
+    }
+
+    private void flush() {
+        cache.clear();
+        cacheBytes = 0;
+        start = null;
+        flushes++;
+    }
+
+    // the returned state is not cached
+    private DState walkRemainderOnNFA(int[] states, CharSequence input, int from, MatchBudget budget) {
+        int[] current = Arrays.copyOf(states, nfa.stateCount);
+        int[] next = new int[nfa.stateCount];
+        int[] stepMarks = new int[nfa.stateCount];
+        int[] stepStack = nfa.newStack();
+        int stepGeneration = 0;
+        int currentSize = states.length;
+        for (int i = from; i < input.length() && currentSize > 0; i++) {
+            if (budget != null) {
+                budget.charge(currentSize);
+            }
+            int nextSize = nfa.step(current, currentSize, input.charAt(i), next,
+                    stepMarks, ++stepGeneration, stepStack);
+            int[] tmp = current;
+            current = next;
+            next = tmp;
+            currentSize = nextSize;
+        }
+        int[] remaining = Arrays.copyOf(current, currentSize);
+        Arrays.sort(remaining);
+        return new DState(remaining, nfa.anyAccepting(remaining, remaining.length), -1, 0);
+    }
+
+    synchronized int cachedStates() {
+        return cache.size();
+    }
+
+    synchronized long cacheBytes() {
+        return cacheBytes;
+    }
+
+    synchronized long flushes() {
+        return flushes;
+    }
+}
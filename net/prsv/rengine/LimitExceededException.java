@@ -0,0 +1,33 @@
+package net.prsv.rengine;
+
+/*
+ * Thrown when compiling or matching a pattern goes over one of the limits set in
+ * CompileOptions or passed to StateMachine.run(), or when the matching thread is
+ * interrupted. The machine stays usable; only the call which threw is abandoned.
+ */
+public final class LimitExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Limit {
+        // CompileOptions.withStateLimit()
+        STATES,
+        // CompileOptions.withMatchWorkLimit()
+        WORK,
+        // the timeout passed to StateMachine.run()
+        DEADLINE,
+        // the matching thread was interrupted
+        INTERRUPTED
+    }
+
+    private final Limit limit;
+
+    LimitExceededException(Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+
+    public Limit limit() {
+        return limit;
+    }
+}
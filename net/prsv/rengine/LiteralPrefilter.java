@@ -0,0 +1,276 @@
+package net.prsv.rengine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Literals every match of a pattern must contain, used to reject inputs before running
+ * an automaton.
+ *
+ * The literals are extracted from the postfix token stream. For every subexpression the
+ * analysis keeps the literal all its matches start with, the literal they all end with, the
+ * whole string if the subexpression matches exactly one, and a set of literals all its
+ * matches contain. Concatenation joins the suffix of the left side with the prefix of the
+ * right side into a new required literal, which is how "error" is found in
+ * .*(fatal )?error [0-9]+.* even though no single token spells it.
+ */
+final class LiteralPrefilter {
+
+    // literals longer than this are cut, which keeps them valid but bounds the work
+    private static final int MAX_LITERAL_LENGTH = 256;
+
+    // at most this many literals are checked, the longest ones
+    private static final int MAX_LITERALS = 3;
+
+    private static final class Info {
+        // the only string the subexpression matches, or null
+        final String exact;
+        final String prefix;
+        final String suffix;
+        final Set<String> required;
+
+        Info(String exact, String prefix, String suffix, Set<String> required) {
+            if (exact != null && exact.length() > MAX_LITERAL_LENGTH) {
+                exact = null;
+            }
+            this.exact = exact;
+            this.prefix = prefix.length() > MAX_LITERAL_LENGTH
+                    ? prefix.substring(0, MAX_LITERAL_LENGTH) : prefix;
+            this.suffix = suffix.length() > MAX_LITERAL_LENGTH
+                    ? suffix.substring(suffix.length() - MAX_LITERAL_LENGTH) : suffix;
+            this.required = required;
+        }
+
+        static Info literal(String s) {
+            return new Info(s, s, s, new LinkedHashSet<>());
+        }
+
+        // for subexpressions that can match the empty string or any single character
+        static Info unknown() {
+            return new Info(null, "", "", new LinkedHashSet<>());
+        }
+
+        // every literal this subexpression guarantees, including its prefix and suffix
+        Set<String> all() {
+            Set<String> all = new LinkedHashSet<>(required);
+            for (String s : new String[]{exact, prefix, suffix}) {
+                if (s != null && !s.isEmpty()) {
+                    all.add(s);
+                }
+            }
+            return all;
+        }
+    }
+
+    private final String prefix;
+    private final String suffix;
+    private final List<String> literals;
+
+    private LiteralPrefilter(String prefix, String suffix, List<String> literals) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.literals = literals;
+    }
+
+    // keeps the required sets small; dropping a required literal is always safe
+    private static Set<String> prune(Set<String> required) {
+        if (required.size() <= 4 * MAX_LITERALS) {
+            return required;
+        }
+        List<String> sorted = new ArrayList<>(required);
+        sorted.sort(Comparator.comparingInt(String::length).reversed());
+        return new LinkedHashSet<>(sorted.subList(0, 2 * MAX_LITERALS));
+    }
+
+    // the operands are not used afterwards, so their sets are reused
+    private static Info concatenate(Info left, Info right) {
+        Set<String> required = left.required;
+        required.addAll(right.required);
+        if (left.exact == null || right.exact == null) {
+            String junction = left.suffix + right.prefix;
+            if (!junction.isEmpty()) {
+                required.add(junction);
+            }
+        }
+        return new Info(left.exact != null && right.exact != null ? left.exact + right.exact : null,
+                left.exact != null ? left.exact + right.prefix : left.prefix,
+                right.exact != null ? left.suffix + right.exact : right.suffix,
+                prune(required));
+    }
+
+    private static Info union(Info left, Info right) {
+        Set<String> required = left.all();
+        required.retainAll(right.all());
+        int prefixLength = 0;
+        while (prefixLength < Math.min(left.prefix.length(), right.prefix.length())
+                && left.prefix.charAt(prefixLength) == right.prefix.charAt(prefixLength)) {
+            prefixLength++;
+        }
+        int suffixLength = 0;
+        while (suffixLength < Math.min(left.suffix.length(), right.suffix.length())
+                && left.suffix.charAt(left.suffix.length() - 1 - suffixLength)
+                == right.suffix.charAt(right.suffix.length() - 1 - suffixLength)) {
+            suffixLength++;
+        }
+        return new Info(left.exact != null && left.exact.equals(right.exact) ? left.exact : null,
+                left.prefix.substring(0, prefixLength),
+                left.suffix.substring(left.suffix.length() - suffixLength),
+                required);
+    }
+
+    // operand repeated at least min times, at most max times (-1 for no limit)
+    private static Info repeat(Info operand, int min, int max) {
+        if (min == 0) {
+            return Info.unknown();
+        }
+        Set<String> required = operand.required;
+        if (operand.exact != null) {
+            // every match starts and ends with min copies of the string
+            int copies = Math.min(min, MAX_LITERAL_LENGTH / operand.exact.length() + 1);
+            String repeated = operand.exact.repeat(copies);
+            return new Info(max == min && copies == min ? repeated : null, repeated, repeated, required);
+        }
+        if (min >= 2 && !(operand.suffix + operand.prefix).isEmpty()) {
+            required.add(operand.suffix + operand.prefix);
+        }
+        return new Info(null, operand.prefix, operand.suffix, required);
+    }
+
+    /*
+     * Extracts the required literals from a postfix token stream, or returns null if every
+     * input might match.
+     */
+    static LiteralPrefilter of(List<RToken> postfix) {
+        Deque<Info> stack = new ArrayDeque<>();
+        for (RToken t : postfix) {
+            switch (t.type) {
+                case LITERAL:
+                    stack.push(Info.literal(String.valueOf(t.literal)));
+                    break;
+                case CHAR_CLASS:
+                    CharClass c = t.charClass;
+                    stack.push(c.rangeCount() == 1 && c.rangeStart(0) == c.rangeEnd(0)
+                            ? Info.literal(String.valueOf(c.rangeStart(0)))
+                            : Info.unknown());
+                    break;
+                case ANY_CHAR:
+                    stack.push(Info.unknown());
+                    break;
+                case CONCAT:
+                    Info right = stack.pop();
+                    stack.push(concatenate(stack.pop(), right));
+                    break;
+                case UNION:
+                    Info alternative = stack.pop();
+                    stack.push(union(stack.pop(), alternative));
+                    break;
+                case QMARK:
+                case STAR:
+                    stack.pop();
+                    stack.push(Info.unknown());
+                    break;
+                case PLUS:
+                    stack.push(repeat(stack.pop(), 1, -1));
+                    break;
+                case QUANTIFIER:
+                    stack.push(repeat(stack.pop(), t.min, t.max));
+                    break;
+                default:
+                    return null;
+            }
+        }
+        Info pattern = stack.pop();
+
+        // drop literals which are part of a longer one, and keep the longest
+        List<String> candidates = new ArrayList<>(pattern.all());
+        candidates.sort(Comparator.comparingInt(String::length).reversed());
+        List<String> literals = new ArrayList<>();
+        for (String candidate : candidates) {
+            boolean covered = false;
+            for (String literal : literals) {
+                if (literal.contains(candidate)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered && literals.size() < MAX_LITERALS) {
+                literals.add(candidate);
+            }
+        }
+        if (literals.isEmpty()) {
+            return null;
+        }
+        return new LiteralPrefilter(pattern.prefix, pattern.suffix, literals);
+    }
+
+    List<String> literals() {
+        return literals;
+    }
+
+    private static int indexOf(CharSequence input, String literal, int from) {
+        if (input instanceof String) {
+            return ((String) input).indexOf(literal, from);
+        }
+        if (input instanceof StringBuilder) {
+            return ((StringBuilder) input).indexOf(literal, from);
+        }
+        char first = literal.charAt(0);
+        outer:
+        for (int i = from; i + literal.length() <= input.length(); i++) {
+            if (input.charAt(i) != first) continue;
+            for (int k = 1; k < literal.length(); k++) {
+                if (input.charAt(i + k) != literal.charAt(k)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence input, int offset, String literal) {
+        if (offset < 0 || offset + literal.length() > input.length()) {
+            return false;
+        }
+        for (int k = 0; k < literal.length(); k++) {
+            if (input.charAt(offset + k) != literal.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // false if the whole input cannot match the pattern
+    boolean mayMatch(CharSequence input) {
+        if (!regionMatches(input, 0, prefix)
+                || !regionMatches(input, input.length() - suffix.length(), suffix)) {
+            return false;
+        }
+        return mayContainMatch(input, 0);
+    }
+
+    // false if no part of the input starting at or after from can match the pattern
+    boolean mayContainMatch(CharSequence input, int from) {
+        for (String literal : literals) {
+            if (indexOf(input, literal, from) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String literal : literals) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append('"').append(literal).append('"');
+        }
+        return sb.toString();
+    }
+}
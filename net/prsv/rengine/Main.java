@@ -1,5 +1,9 @@
 package net.prsv.rengine;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
 import java.util.Scanner;
 
 public class Main {
@@ -32,6 +36,15 @@ public class Main {
 
     public static void main(String[] args) {
 
+        // with a pattern and files on the command line, search the files in batch mode
+        if (args.length > 0) {
+            PrintStream out = new PrintStream(
+                    new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+            int status = Grep.run(args, out, System.err);
+            out.flush();
+            System.exit(status);
+        }
+
         boolean quit = false;
         setNewPattern();
         while(!quit) {
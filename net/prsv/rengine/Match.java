@@ -0,0 +1,48 @@
+package net.prsv.rengine;
+
+/*
+ * Position of a match in the input: the characters [start, end).
+ */
+public final class Match {
+
+    private final int start;
+    private final int end;
+
+    public Match(int start, int end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid match bounds: " + start + ", " + end);
+        }
+        this.start = start;
+        this.end = end;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int end() {
+        return end;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * start + end;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Match that = (Match) o;
+        return this.start == that.start && this.end == that.end;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + ")";
+    }
+}
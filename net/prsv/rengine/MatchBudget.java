@@ -0,0 +1,50 @@
+package net.prsv.rengine;
+
+/*
+ * The work, time and interruption checks of one match. Engines call charge() with the work
+ * of every step; the clock and the interrupt flag are only looked at once enough work has
+ * been done since the last look, so a check costs an addition and a comparison.
+ */
+final class MatchBudget {
+
+    // work between two looks at the clock and the interrupt flag
+    private static final long CHECK_INTERVAL = 1 << 14;
+
+    private final long workLimit;
+    // System.nanoTime() value after which the match is stopped, if hasDeadline
+    private final long deadline;
+    private final boolean hasDeadline;
+    private long work;
+    private long nextCheck;
+
+    MatchBudget(long workLimit, long timeoutNanos) {
+        this.workLimit = workLimit;
+        this.hasDeadline = timeoutNanos != Long.MAX_VALUE;
+        this.deadline = hasDeadline ? System.nanoTime() + timeoutNanos : 0;
+        // the first charge looks, so a match which starts too late fails at once
+        this.nextCheck = 0;
+    }
+
+    void charge(long units) {
+        work += units;
+        if (work >= nextCheck) {
+            check();
+        }
+    }
+
+    private void check() {
+        if (work > workLimit) {
+            throw new LimitExceededException(LimitExceededException.Limit.WORK,
+                    "Match exceeds the work limit of " + workLimit);
+        }
+        nextCheck = Math.min(work + CHECK_INTERVAL, workLimit + 1);
+        if (Thread.currentThread().isInterrupted()) {
+            throw new LimitExceededException(LimitExceededException.Limit.INTERRUPTED,
+                    "Match interrupted");
+        }
+        if (hasDeadline && System.nanoTime() - deadline > 0) {
+            throw new LimitExceededException(LimitExceededException.Limit.DEADLINE,
+                    "Match exceeds its deadline");
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package net.prsv.rengine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/*
+ * Flight Recorder event for one call of StateMachine.run(). Only calls which take longer
+ * than the threshold are recorded, 1 ms unless the recording sets another one.
+ */
+@Name("net.prsv.rengine.Match")
+@Label("Regex Match")
+@Category("Regex")
+@Description("An input was matched against a pattern")
+@StackTrace(false)
+@Threshold("1 ms")
+final class MatchEvent extends Event {
+
+    @Label("Pattern")
+    String pattern;
+
+    @Label("Engine")
+    String engine;
+
+    @Label("Input Length")
+    int inputLength;
+
+    @Label("Matched")
+    boolean matched;
+}
@@ -0,0 +1,65 @@
+package net.prsv.rengine;
+
+/*
+ * What the NFA did while matching one input, see StateMachine.runWithStats().
+ *
+ * The active set is the set of NFA states the input can be in; it is observed once before
+ * the first character and once after each one, so a pattern whose active set keeps growing
+ * shows a high peak and average. A transition is an edge on the input character which was
+ * followed, and a closure expansion is a state reached while following the null
+ * transitions (and counter edges) from the targets of those edges.
+ */
+public final class MatchStats {
+
+    private final boolean matched;
+    private final long charsConsumed;
+    private final int peakActiveStates;
+    private final long activeStateTotal;
+    private final long closureExpansions;
+    private final long transitionsTaken;
+
+    MatchStats(boolean matched, long charsConsumed, int peakActiveStates, long activeStateTotal,
+               long closureExpansions, long transitionsTaken) {
+        this.matched = matched;
+        this.charsConsumed = charsConsumed;
+        this.peakActiveStates = peakActiveStates;
+        this.activeStateTotal = activeStateTotal;
+        this.closureExpansions = closureExpansions;
+        this.transitionsTaken = transitionsTaken;
+    }
+
+    public boolean matched() {
+        return matched;
+    }
+
+    // less than the input length if the active set became empty before its end
+    public long charsConsumed() {
+        return charsConsumed;
+    }
+
+    public int peakActiveStates() {
+        return peakActiveStates;
+    }
+
+    public double averageActiveStates() {
+        return (double) activeStateTotal / (charsConsumed + 1);
+    }
+
+    public long closureExpansions() {
+        return closureExpansions;
+    }
+
+    public long transitionsTaken() {
+        return transitionsTaken;
+    }
+
+    @Override
+    public String toString() {
+        return "matched=" + matched
+                + ", charsConsumed=" + charsConsumed
+                + ", peakActiveStates=" + peakActiveStates
+                + ", averageActiveStates=" + String.format("%.2f", averageActiveStates())
+                + ", closureExpansions=" + closureExpansions
+                + ", transitionsTaken=" + transitionsTaken;
+    }
+}
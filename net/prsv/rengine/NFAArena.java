@@ -0,0 +1,251 @@
+package net.prsv.rengine;
+
+import java.util.Arrays;
+
+/*
+ * Append-only store of NFA states and transitions.
+ *
+ * States are plain ints handed out in order, and every transition is appended to one
+ * growable edge list, so adding a state or a transition is amortized O(1) and building a
+ * machine never copies what has already been built. compile() turns the arena into the
+ * CSR layout used for matching. Null transitions keep the order in which they were added.
+ *
+ * The arena can also hold counters (see CountingNFA): a counter repeats a body whose states
+ * are a contiguous range, and its entry, increment and exit edges are kept in a separate
+ * list instead of as null transitions.
+ */
+final class NFAArena {
+
+    static final byte CHAR = 0;
+    static final byte NULL = 1;
+    static final byte ANY = 2;
+    static final byte CLASS = 3;
+
+    private int stateCount;
+    private int edgeCount;
+    private byte[] kinds = new byte[16];
+    private int[] sources = new int[16];
+    private int[] targets = new int[16];
+    private char[] symbols = new char[16];
+    private CharClass[] classes = new CharClass[16];
+
+    // per counter: entry, exit, body start, body accept, first body state, end of the body
+    // states, min and max (-1 when unbounded)
+    private static final int COUNTER_FIELDS = 8;
+    private int counterCount;
+    private int[] counters = new int[0];
+
+    // states newState() may hand out, see CompileOptions.withStateLimit()
+    private final int stateLimit;
+
+    NFAArena() {
+        this(Integer.MAX_VALUE);
+    }
+
+    NFAArena(int stateLimit) {
+        this.stateLimit = stateLimit;
+    }
+
+    int newState() {
+        checkStateLimit(1);
+        return stateCount++;
+    }
+
+    private void checkStateLimit(int newStates) {
+        if (!hasRoomFor(newStates)) {
+            throw new LimitExceededException(LimitExceededException.Limit.STATES,
+                    "Compilation error: NFA exceeds the limit of " + stateLimit + " states");
+        }
+    }
+
+    int stateCount() {
+        return stateCount;
+    }
+
+    // whether newState() may hand out this many more states
+    boolean hasRoomFor(long newStates) {
+        return newStates <= stateLimit - stateCount;
+    }
+
+    int edgeCount() {
+        return edgeCount;
+    }
+
+    private void addEdge(byte kind, int from, int to, char symbol, CharClass charClass) {
+        if (edgeCount == kinds.length) {
+            int capacity = edgeCount * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            sources = Arrays.copyOf(sources, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            classes = Arrays.copyOf(classes, capacity);
+        }
+        kinds[edgeCount] = kind;
+        sources[edgeCount] = from;
+        targets[edgeCount] = to;
+        symbols[edgeCount] = symbol;
+        classes[edgeCount] = charClass;
+        edgeCount++;
+    }
+
+    void addTransition(int from, char symbol, int to) {
+        addEdge(CHAR, from, to, symbol, null);
+    }
+
+    void addNullTransition(int from, int to) {
+        addEdge(NULL, from, to, '\0', null);
+    }
+
+    void addAnyCharTransition(int from, int to) {
+        addEdge(ANY, from, to, '\0', null);
+    }
+
+    void addClassTransition(int from, CharClass charClass, int to) {
+        addEdge(CLASS, from, to, '\0', charClass);
+    }
+
+    /*
+     * Adds a counter which repeats the body with states [firstState, stateEnd), start state
+     * bodyStart and accept state bodyAccept between min and max times (max == -1 for no
+     * upper limit), going from entry to exit. The body must not contain other counters.
+     */
+    void addCounter(int entry, int exit, int bodyStart, int bodyAccept,
+                    int firstState, int stateEnd, int min, int max) {
+        if ((counterCount + 1) * COUNTER_FIELDS > counters.length) {
+            counters = Arrays.copyOf(counters, Math.max(COUNTER_FIELDS, counters.length * 2));
+        }
+        int base = counterCount++ * COUNTER_FIELDS;
+        counters[base] = entry;
+        counters[base + 1] = exit;
+        counters[base + 2] = bodyStart;
+        counters[base + 3] = bodyAccept;
+        counters[base + 4] = firstState;
+        counters[base + 5] = stateEnd;
+        counters[base + 6] = min;
+        counters[base + 7] = max;
+    }
+
+    int counterCount() {
+        return counterCount;
+    }
+
+    // whether a counter has been added since the given state was created
+    boolean hasCounterSince(int firstState) {
+        return counterCount > 0 && counters[(counterCount - 1) * COUNTER_FIELDS] >= firstState;
+    }
+
+    /*
+     * Appends a copy of the states [firstState, stateEnd) and the edges [firstEdge, edgeEnd),
+     * which must only connect those states to each other, together with the counters among
+     * those states. Returns the offset that maps an original state to its copy.
+     */
+    int copy(int firstState, int stateEnd, int firstEdge, int edgeEnd) {
+        checkStateLimit(stateEnd - firstState);
+        int delta = stateCount - firstState;
+        for (int e = firstEdge; e < edgeEnd; e++) {
+            addEdge(kinds[e], sources[e] + delta, targets[e] + delta, symbols[e], classes[e]);
+        }
+        int copiedCounters = counterCount;
+        for (int c = 0; c < copiedCounters; c++) {
+            int base = c * COUNTER_FIELDS;
+            if (counters[base] >= firstState && counters[base] < stateEnd) {
+                addCounter(counters[base] + delta, counters[base + 1] + delta,
+                        counters[base + 2] + delta, counters[base + 3] + delta,
+                        counters[base + 4] + delta, counters[base + 5] + delta,
+                        counters[base + 6], counters[base + 7]);
+            }
+        }
+        stateCount += stateEnd - firstState;
+        return delta;
+    }
+
+    CompiledNFA compile(int[] startStates, boolean[] accepting) {
+        if (counterCount > 0) {
+            throw new IllegalStateException("The arena has counters, use compileCounting()");
+        }
+        return compileTransitions(startStates, accepting);
+    }
+
+    CountingNFA compileCounting(int[] startStates, boolean[] accepting) {
+        return new CountingNFA(compileTransitions(startStates, accepting),
+                Arrays.copyOf(counters, counterCount * COUNTER_FIELDS));
+    }
+
+    // compiles everything except the counters
+    private CompiledNFA compileTransitions(int[] startStates, boolean[] accepting) {
+        int[] transitionIndex = new int[stateCount + 1];
+        int[] nullTransitionIndex = new int[stateCount + 1];
+        int[] anyCharTargets = new int[stateCount];
+        int[] classTargets = new int[stateCount];
+        CharClass[] stateClasses = new CharClass[stateCount];
+        Arrays.fill(anyCharTargets, CompiledNFA.NO_STATE);
+        Arrays.fill(classTargets, CompiledNFA.NO_STATE);
+
+        for (int e = 0; e < edgeCount; e++) {
+            switch (kinds[e]) {
+                case CHAR:
+                    transitionIndex[sources[e] + 1]++;
+                    break;
+                case NULL:
+                    nullTransitionIndex[sources[e] + 1]++;
+                    break;
+                case ANY:
+                    if (anyCharTargets[sources[e]] != CompiledNFA.NO_STATE) {
+                        throw new IllegalStateException("State " + sources[e] + " has two any-char transitions");
+                    }
+                    anyCharTargets[sources[e]] = targets[e];
+                    break;
+                default:
+                    if (classTargets[sources[e]] != CompiledNFA.NO_STATE) {
+                        throw new IllegalStateException("State " + sources[e] + " has two class transitions");
+                    }
+                    classTargets[sources[e]] = targets[e];
+                    stateClasses[sources[e]] = classes[e];
+                    break;
+            }
+        }
+        for (int state = 0; state < stateCount; state++) {
+            transitionIndex[state + 1] += transitionIndex[state];
+            nullTransitionIndex[state + 1] += nullTransitionIndex[state];
+        }
+
+        char[] transitionSymbols = new char[transitionIndex[stateCount]];
+        int[] transitionTargets = new int[transitionIndex[stateCount]];
+        int[] nullTransitionTargets = new int[nullTransitionIndex[stateCount]];
+        int[] transitionFill = Arrays.copyOf(transitionIndex, stateCount);
+        int[] nullTransitionFill = Arrays.copyOf(nullTransitionIndex, stateCount);
+        for (int e = 0; e < edgeCount; e++) {
+            if (kinds[e] == CHAR) {
+                int position = transitionFill[sources[e]]++;
+                transitionSymbols[position] = symbols[e];
+                transitionTargets[position] = targets[e];
+            } else if (kinds[e] == NULL) {
+                nullTransitionTargets[nullTransitionFill[sources[e]]++] = targets[e];
+            }
+        }
+
+        // matching relies on the character transitions of a state being sorted by symbol;
+        // states rarely have more than one, so insertion sort is enough
+        for (int state = 0; state < stateCount; state++) {
+            for (int i = transitionIndex[state] + 1; i < transitionIndex[state + 1]; i++) {
+                char symbol = transitionSymbols[i];
+                int target = transitionTargets[i];
+                int j = i - 1;
+                while (j >= transitionIndex[state]
+                        && (transitionSymbols[j] > symbol
+                        || (transitionSymbols[j] == symbol && transitionTargets[j] > target))) {
+                    transitionSymbols[j + 1] = transitionSymbols[j];
+                    transitionTargets[j + 1] = transitionTargets[j];
+                    j--;
+                }
+                transitionSymbols[j + 1] = symbol;
+                transitionTargets[j + 1] = target;
+            }
+        }
+
+        return new CompiledNFA(stateCount, startStates.clone(), accepting.clone(),
+                transitionIndex, transitionSymbols, transitionTargets,
+                nullTransitionIndex, nullTransitionTargets, anyCharTargets,
+                stateClasses, classTargets);
+    }
+}
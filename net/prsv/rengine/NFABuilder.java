@@ -2,305 +2,243 @@ package net.prsv.rengine;
 
 import java.util.*;
 
+/*
+ * Thompson construction over a single append-only NFAArena.
+ *
+ * A fragment is only a handle: its start and accept states plus the first state and the
+ * first transition it owns in the arena. Because the token stream is postfix, the fragment
+ * on top of the stack always owns everything appended since its first state and transition,
+ * so operators never copy or merge transition maps and building takes time linear in the
+ * size of the resulting machine. Explicit quantifiers copy the arena range of their operand,
+ * unless the copies would be large: then the operand is kept once and repeated by a counter
+ * (see CountingNFA).
+ */
 public class NFABuilder {
 
-    private static final class StateAllocator {
-        private int counter;
-
-        String next() {
-            return "q" + counter++;
-        }
-    }
-
-    static class Fragment {
-        private final HashSet<String> states;
-        private final String acceptState;
-        private final String startState;
-        private final HashMap<Pair, HashSet<String>> transitions;
-        private final HashMap<String, HashSet<String>> nullTransitions;
-
-        private final HashMap<String, String> anyCharTransitions;
-
-        public Fragment(HashSet<String> states,
-                        String startState, String acceptState,
-                        HashMap<Pair, HashSet<String>> transitions,
-                        HashMap<String, HashSet<String>> nullTransitions,
-                        HashMap<String, String> anyCharTransitions) {
-            this.states = states;
-            this.acceptState = acceptState;
-            this.transitions = transitions;
-            this.nullTransitions = nullTransitions;
-            this.anyCharTransitions = anyCharTransitions;
+    /*
+     * A quantifier whose copies would add more states than COUNTER_THRESHOLD becomes a
+     * counter, and so does a bounded one whose optional copies would add more than
+     * OPTIONAL_COUNTER_THRESHOLD. Copies which must all be matched keep as few states active
+     * as the operand itself, so the expanded NFA is faster than a counter until it gets
+     * large, while every optional copy can be active at once, which a counter handles with a
+     * few word-wide operations. A quantifier whose copies would exceed the state limit of
+     * the options becomes a counter whatever its size.
+     */
+    static final int COUNTER_THRESHOLD = 1 << 14;
+    static final int OPTIONAL_COUNTER_THRESHOLD = 1024;
+
+    static final class Fragment {
+        final int startState;
+        final int acceptState;
+        // the fragment owns the states and transitions from these up to the end of the arena
+        // at the time it is on top of the stack
+        final int firstState;
+        final int firstEdge;
+        // whether the fragment matches the empty string
+        final boolean nullable;
+
+        Fragment(int startState, int acceptState, int firstState, int firstEdge, boolean nullable) {
             this.startState = startState;
-        }
-
-        public HashSet<String> getStates() {
-            return states;
-        }
-
-        public String getAcceptState() {
-            return acceptState;
-        }
-
-        public String getStartState() {
-            return startState;
-        }
-
-        public HashMap<Pair, HashSet<String>> getTransitions() {
-            return transitions;
-        }
-
-        public HashMap<String, HashSet<String>> getNullTransitions() {
-            return nullTransitions;
-        }
-
-        public HashMap<String, String> getAnyCharTransitions() {
-            return anyCharTransitions;
+            this.acceptState = acceptState;
+            this.firstState = firstState;
+            this.firstEdge = firstEdge;
+            this.nullable = nullable;
         }
     }
 
-    private static void addNullTransition(HashMap<String, HashSet<String>> nullTransitions,
-                                          String fromState,
-                                          String toState) {
-        nullTransitions.computeIfAbsent(fromState, ignored -> new HashSet<>()).add(toState);
+    private static Fragment concatenate(NFAArena arena, Fragment left, Fragment right) {
+        arena.addNullTransition(left.acceptState, right.startState);
+        return new Fragment(left.startState, right.acceptState, left.firstState, left.firstEdge,
+                left.nullable && right.nullable);
     }
 
-    private static HashMap<Pair, HashSet<String>> copyTransitions(
-            HashMap<Pair, HashSet<String>> source) {
-        HashMap<Pair, HashSet<String>> copy = new HashMap<>();
-        for (Map.Entry<Pair, HashSet<String>> entry : source.entrySet()) {
-            copy.put(entry.getKey(), new HashSet<>(entry.getValue()));
-        }
-        return copy;
+    private static Fragment union(NFAArena arena, Fragment left, Fragment right) {
+        int startState = arena.newState();
+        int acceptState = arena.newState();
+        arena.addNullTransition(startState, left.startState);
+        arena.addNullTransition(startState, right.startState);
+        arena.addNullTransition(left.acceptState, acceptState);
+        arena.addNullTransition(right.acceptState, acceptState);
+        return new Fragment(startState, acceptState, left.firstState, left.firstEdge,
+                left.nullable || right.nullable);
     }
 
-    private static HashMap<String, HashSet<String>> copyNullTransitions(
-            HashMap<String, HashSet<String>> source) {
-        HashMap<String, HashSet<String>> copy = new HashMap<>();
-        for (Map.Entry<String, HashSet<String>> entry : source.entrySet()) {
-            copy.put(entry.getKey(), new HashSet<>(entry.getValue()));
-        }
-        return copy;
+    private static Fragment optional(NFAArena arena, Fragment operand) {
+        int startState = arena.newState();
+        int acceptState = arena.newState();
+        arena.addNullTransition(startState, operand.startState);
+        arena.addNullTransition(startState, acceptState);
+        arena.addNullTransition(operand.acceptState, acceptState);
+        return new Fragment(startState, acceptState, operand.firstState, operand.firstEdge, true);
     }
 
-    private static void mergeTransitions(HashMap<Pair, HashSet<String>> destination,
-                                         HashMap<Pair, HashSet<String>> source) {
-        for (Map.Entry<Pair, HashSet<String>> entry : source.entrySet()) {
-            destination.computeIfAbsent(entry.getKey(), ignored -> new HashSet<>())
-                    .addAll(entry.getValue());
-        }
+    private static Fragment star(NFAArena arena, Fragment operand) {
+        int startState = arena.newState();
+        int acceptState = arena.newState();
+        arena.addNullTransition(startState, operand.startState);
+        arena.addNullTransition(startState, acceptState);
+        arena.addNullTransition(operand.acceptState, startState);
+        return new Fragment(startState, acceptState, operand.firstState, operand.firstEdge, true);
     }
 
-    private static void mergeNullTransitions(HashMap<String, HashSet<String>> destination,
-                                             HashMap<String, HashSet<String>> source) {
-        for (Map.Entry<String, HashSet<String>> entry : source.entrySet()) {
-            destination.computeIfAbsent(entry.getKey(), ignored -> new HashSet<>())
-                    .addAll(entry.getValue());
-        }
+    private static Fragment oneOrMore(NFAArena arena, Fragment operand) {
+        int startState = arena.newState();
+        int acceptState = arena.newState();
+        arena.addNullTransition(startState, operand.startState);
+        arena.addNullTransition(operand.acceptState, acceptState);
+        arena.addNullTransition(acceptState, startState);
+        return new Fragment(startState, acceptState, operand.firstState, operand.firstEdge,
+                operand.nullable);
     }
 
-    private static Fragment concatenate(Fragment left, Fragment right) {
-        HashSet<String> states = new HashSet<>(left.getStates());
-        states.addAll(right.getStates());
-
-        HashMap<Pair, HashSet<String>> transitions = copyTransitions(left.getTransitions());
-        mergeTransitions(transitions, right.getTransitions());
-
-        HashMap<String, HashSet<String>> nullTransitions =
-                copyNullTransitions(left.getNullTransitions());
-        mergeNullTransitions(nullTransitions, right.getNullTransitions());
-        addNullTransition(nullTransitions, left.getAcceptState(), right.getStartState());
-
-        HashMap<String, String> anyCharTransitions =
-                new HashMap<>(left.getAnyCharTransitions());
-        anyCharTransitions.putAll(right.getAnyCharTransitions());
+    private static Fragment epsilon(NFAArena arena) {
+        int state = arena.newState();
+        return new Fragment(state, state, state, arena.edgeCount(), true);
+    }
 
-        return new Fragment(states,
-                left.getStartState(),
-                right.getAcceptState(),
-                transitions,
-                nullTransitions,
-                anyCharTransitions);
+    /*
+     * Appends a fresh copy of a template whose arena range ends at stateEnd and edgeEnd.
+     */
+    private static Fragment copyOf(NFAArena arena, Fragment template, int stateEnd, int edgeEnd) {
+        int firstEdge = arena.edgeCount();
+        int delta = arena.copy(template.firstState, stateEnd, template.firstEdge, edgeEnd);
+        return new Fragment(template.startState + delta, template.acceptState + delta,
+                template.firstState + delta, firstEdge, template.nullable);
     }
 
-    private static Fragment concatenateAll(List<Fragment> fragments) {
-        if (fragments.isEmpty()) {
-            throw new IllegalArgumentException("Cannot concatenate an empty fragment list");
+    private static Fragment repeat(NFAArena arena, Fragment template, RToken quantifier,
+                                   boolean useCounters) {
+        // the template is on top of the stack, so its range ends at the current end of the arena
+        int stateEnd = arena.stateCount();
+        int edgeEnd = arena.edgeCount();
+        int copies = quantifier.isUnbounded() ? quantifier.min + 1 : quantifier.max;
+        long size = stateEnd - template.firstState;
+        int optional = quantifier.isUnbounded() ? 0 : quantifier.max - quantifier.min;
+        if (useCounters && copies > 1 && !template.nullable
+                && !arena.hasCounterSince(template.firstState)
+                && (size * (copies - 1) > COUNTER_THRESHOLD || size * optional > OPTIONAL_COUNTER_THRESHOLD
+                || !arena.hasRoomFor(size * (copies - 1)))) {
+            return counter(arena, template, stateEnd, quantifier);
         }
+        Fragment result = null;
+        boolean templateUsed = false;
 
-        HashSet<String> states = new HashSet<>();
-        HashMap<Pair, HashSet<String>> transitions = new HashMap<>();
-        HashMap<String, HashSet<String>> nullTransitions = new HashMap<>();
-        HashMap<String, String> anyCharTransitions = new HashMap<>();
+        for (int i = 0; i < quantifier.min; i++) {
+            Fragment copy = templateUsed ? copyOf(arena, template, stateEnd, edgeEnd) : template;
+            templateUsed = true;
+            result = result == null ? copy : concatenate(arena, result, copy);
+        }
 
-        Fragment previous = null;
-        for (Fragment fragment : fragments) {
-            states.addAll(fragment.getStates());
-            mergeTransitions(transitions, fragment.getTransitions());
-            mergeNullTransitions(nullTransitions, fragment.getNullTransitions());
-            anyCharTransitions.putAll(fragment.getAnyCharTransitions());
-            if (previous != null) {
-                addNullTransition(nullTransitions,
-                        previous.getAcceptState(),
-                        fragment.getStartState());
+        if (quantifier.isUnbounded()) {
+            Fragment copy = templateUsed ? copyOf(arena, template, stateEnd, edgeEnd) : template;
+            Fragment repetition = star(arena, copy);
+            result = result == null ? repetition : concatenate(arena, result, repetition);
+        } else {
+            for (int i = quantifier.min; i < quantifier.max; i++) {
+                Fragment copy = templateUsed ? copyOf(arena, template, stateEnd, edgeEnd) : template;
+                templateUsed = true;
+                Fragment repetition = optional(arena, copy);
+                result = result == null ? repetition : concatenate(arena, result, repetition);
             }
-            previous = fragment;
         }
 
-        return new Fragment(states,
-                fragments.get(0).getStartState(),
-                fragments.get(fragments.size() - 1).getAcceptState(),
-                transitions,
-                nullTransitions,
-                anyCharTransitions);
-    }
-
-    private static Fragment optional(Fragment operand, StateAllocator allocator) {
-        String startState = allocator.next();
-        String acceptState = allocator.next();
-        HashSet<String> states = new HashSet<>(operand.getStates());
-        states.add(startState);
-        states.add(acceptState);
-
-        HashMap<String, HashSet<String>> nullTransitions =
-                copyNullTransitions(operand.getNullTransitions());
-        addNullTransition(nullTransitions, startState, operand.getStartState());
-        addNullTransition(nullTransitions, startState, acceptState);
-        addNullTransition(nullTransitions, operand.getAcceptState(), acceptState);
-
-        return new Fragment(states,
-                startState,
-                acceptState,
-                copyTransitions(operand.getTransitions()),
-                nullTransitions,
-                new HashMap<>(operand.getAnyCharTransitions()));
+        if (result == null) {
+            // {0}: the template stays in the arena but is unreachable
+            Fragment empty = epsilon(arena);
+            return new Fragment(empty.startState, empty.acceptState,
+                    template.firstState, template.firstEdge, true);
+        }
+        // the copies were appended after the template, so the result owns its whole range
+        return new Fragment(result.startState, result.acceptState,
+                template.firstState, template.firstEdge, result.nullable);
     }
 
-    private static Fragment star(Fragment operand, StateAllocator allocator) {
-        String startState = allocator.next();
-        String acceptState = allocator.next();
-        HashSet<String> states = new HashSet<>(operand.getStates());
-        states.add(startState);
-        states.add(acceptState);
-
-        HashMap<String, HashSet<String>> nullTransitions =
-                copyNullTransitions(operand.getNullTransitions());
-        addNullTransition(nullTransitions, startState, operand.getStartState());
-        addNullTransition(nullTransitions, startState, acceptState);
-        addNullTransition(nullTransitions, operand.getAcceptState(), startState);
-
-        return new Fragment(states,
-                startState,
-                acceptState,
-                copyTransitions(operand.getTransitions()),
-                nullTransitions,
-                new HashMap<>(operand.getAnyCharTransitions()));
+    private static Fragment counter(NFAArena arena, Fragment body, int stateEnd, RToken quantifier) {
+        int entry = arena.newState();
+        int exit = arena.newState();
+        arena.addCounter(entry, exit, body.startState, body.acceptState,
+                body.firstState, stateEnd, quantifier.min, quantifier.max);
+        if (quantifier.min == 0) {
+            arena.addNullTransition(entry, exit);
+        }
+        return new Fragment(entry, exit, body.firstState, body.firstEdge, quantifier.min == 0);
     }
 
-    private static Fragment oneOrMore(Fragment operand, StateAllocator allocator) {
-        String startState = allocator.next();
-        String acceptState = allocator.next();
-        HashSet<String> states = new HashSet<>(operand.getStates());
-        states.add(startState);
-        states.add(acceptState);
-
-        HashMap<String, HashSet<String>> nullTransitions =
-                copyNullTransitions(operand.getNullTransitions());
-        addNullTransition(nullTransitions, startState, operand.getStartState());
-        addNullTransition(nullTransitions, operand.getAcceptState(), acceptState);
-        addNullTransition(nullTransitions, acceptState, startState);
-
-        return new Fragment(states,
-                startState,
-                acceptState,
-                copyTransitions(operand.getTransitions()),
-                nullTransitions,
-                new HashMap<>(operand.getAnyCharTransitions()));
+    public static StateMachine build(List<RToken> tokenStream) {
+        return build(tokenStream, CompileOptions.defaults());
     }
 
-    private static Fragment epsilon(StateAllocator allocator) {
-        String state = allocator.next();
-        return new Fragment(new HashSet<>(Collections.singleton(state)),
-                state,
-                state,
-                new HashMap<>(),
-                new HashMap<>(),
-                new HashMap<>());
+    public static StateMachine build(List<RToken> tokenStream, CompileOptions options) {
+        return build(tokenStream, options, null);
     }
 
-    private static Fragment copyOf(Fragment source, StateAllocator allocator) {
-        HashMap<String, String> stateMapping = new HashMap<>();
-        for (String state : source.getStates()) {
-            stateMapping.put(state, allocator.next());
+    // source is the text the tokens were parsed from, or null if it is not known
+    static StateMachine build(List<RToken> tokenStream, CompileOptions options, String source) {
+        // the DFA engines work on plain sets of states, so they need every quantifier expanded
+        boolean useCounters = options.getEngine() != CompileOptions.Engine.LAZY_DFA
+                && options.getEngine() != CompileOptions.Engine.DFA;
+        NFAArena arena = new NFAArena(options.getStateLimit());
+        Fragment pattern = construct(arena, tokenStream, useCounters);
+        int[] startStates = {pattern.startState};
+        boolean[] accepting = new boolean[arena.stateCount()];
+        accepting[pattern.acceptState] = true;
+        if (arena.counterCount() > 0) {
+            return new StateMachine(arena.compileCounting(startStates, accepting), tokenStream, options, source);
         }
+        return new StateMachine(arena.compile(startStates, accepting), tokenStream, options, source);
+    }
 
-        HashMap<Pair, HashSet<String>> transitions = new HashMap<>();
-        for (Map.Entry<Pair, HashSet<String>> entry : source.getTransitions().entrySet()) {
-            Pair oldTransition = entry.getKey();
-            Pair newTransition = new Pair(stateMapping.get(oldTransition.getState()),
-                    oldTransition.getSymbol());
-            HashSet<String> destinations = new HashSet<>();
-            for (String destination : entry.getValue()) {
-                destinations.add(stateMapping.get(destination));
-            }
-            transitions.put(newTransition, destinations);
-        }
+    // compiles the token stream with every quantifier expanded
+    static CompiledNFA compile(List<RToken> tokenStream, int stateLimit) {
+        NFAArena arena = new NFAArena(stateLimit);
+        Fragment pattern = construct(arena, tokenStream, false);
+        boolean[] accepting = new boolean[arena.stateCount()];
+        accepting[pattern.acceptState] = true;
+        return arena.compile(new int[]{pattern.startState}, accepting);
+    }
 
-        HashMap<String, HashSet<String>> nullTransitions = new HashMap<>();
-        for (Map.Entry<String, HashSet<String>> entry : source.getNullTransitions().entrySet()) {
-            HashSet<String> destinations = new HashSet<>();
-            for (String destination : entry.getValue()) {
-                destinations.add(stateMapping.get(destination));
-            }
-            nullTransitions.put(stateMapping.get(entry.getKey()), destinations);
+    /*
+     * Builds several patterns into one NFA which starts in the start states of all of them.
+     * The accept state of the i-th pattern is stored in acceptStates[i].
+     */
+    static CompiledNFA compileSet(List<List<RToken>> tokenStreams, int[] acceptStates, int stateLimit) {
+        NFAArena arena = new NFAArena(stateLimit);
+        int[] startStates = new int[tokenStreams.size()];
+        for (int i = 0; i < tokenStreams.size(); i++) {
+            Fragment pattern = construct(arena, tokenStreams.get(i), false);
+            startStates[i] = pattern.startState;
+            acceptStates[i] = pattern.acceptState;
         }
-
-        HashMap<String, String> anyCharTransitions = new HashMap<>();
-        for (Map.Entry<String, String> entry : source.getAnyCharTransitions().entrySet()) {
-            anyCharTransitions.put(stateMapping.get(entry.getKey()),
-                    stateMapping.get(entry.getValue()));
+        boolean[] accepting = new boolean[arena.stateCount()];
+        for (int state : acceptStates) {
+            accepting[state] = true;
         }
-
-        return new Fragment(new HashSet<>(stateMapping.values()),
-                stateMapping.get(source.getStartState()),
-                stateMapping.get(source.getAcceptState()),
-                transitions,
-                nullTransitions,
-                anyCharTransitions);
+        return arena.compile(startStates, accepting);
     }
 
-    public static StateMachine build(List<RToken> tokenStream) {
+    private static Fragment construct(NFAArena arena, List<RToken> tokenStream, boolean useCounters) {
         Deque<Fragment> stack = new ArrayDeque<>();
-        StateAllocator allocator = new StateAllocator();
-        HashSet<String> states;
-        String startState;
-        String acceptState;
-        HashMap<Pair, HashSet<String>> transitions;
-        HashMap<String, HashSet<String>> nullTransitions;
-        HashMap<String, String> anyCharTransitions;
-        Fragment fragment;
+        int startState;
+        int acceptState;
         Fragment e1, e2, e;
         for (RToken t : tokenStream) {
-            states = new HashSet<>();
-            transitions = new HashMap<>();
-            nullTransitions = new HashMap<>();
-            anyCharTransitions = new HashMap<>();
             switch (t.type) {
                 case ANY_CHAR:
                 case LITERAL:
+                case CHAR_CLASS:
                     // create a new fragment which has two states and one transition
-                    startState = allocator.next();
-                    acceptState = allocator.next();
-                    states.add(startState);
-                    states.add(acceptState);
+                    int firstEdge = arena.edgeCount();
+                    startState = arena.newState();
+                    acceptState = arena.newState();
                     if (t.type == RToken.RTokenType.LITERAL) {
-                        transitions.put(new Pair(startState, t.literal), new HashSet<>(Collections.singleton(acceptState)));
+                        arena.addTransition(startState, t.literal, acceptState);
+                    } else if (t.type == RToken.RTokenType.CHAR_CLASS) {
+                        arena.addClassTransition(startState, t.charClass, acceptState);
                     } else {
-                        anyCharTransitions.put(startState, acceptState);
+                        arena.addAnyCharTransition(startState, acceptState);
                     }
-                    fragment = new Fragment(states, startState, acceptState, transitions, nullTransitions, anyCharTransitions);
                     // push the fragment onto the stack
-                    stack.push(fragment);
+                    stack.push(new Fragment(startState, acceptState, startState, firstEdge, false));
                     break;
                 case CONCAT:
                     // pop two fragments from the stack
@@ -309,7 +247,7 @@ public class NFABuilder {
                     }
                     e2 = stack.pop();
                     e1 = stack.pop();
-                    stack.push(concatenate(e1, e2));
+                    stack.push(concatenate(arena, e1, e2));
                     break;
                 case UNION:
                     // pop two fragments from the stack
@@ -318,38 +256,7 @@ public class NFABuilder {
                     }
                     e2 = stack.pop();
                     e1 = stack.pop();
-                    // create a new start state and a new accept state
-                    startState = allocator.next();
-                    acceptState = allocator.next();
-                    states.add(startState);
-                    states.add(acceptState);
-                    states.addAll(e1.getStates());
-                    states.addAll(e2.getStates());
-                    transitions = e1.getTransitions();
-                    transitions.putAll(e2.getTransitions());
-                    anyCharTransitions = e1.getAnyCharTransitions();
-                    anyCharTransitions.putAll(e2.getAnyCharTransitions());
-                    nullTransitions = e1.getNullTransitions();
-                    nullTransitions.putAll(e2.getNullTransitions());
-                    // create new null transitions from the new start state to start states of e1 and e2
-                    nullTransitions.put(startState, new HashSet<>(List.of(e1.getStartState(), e2.getStartState())));
-
-                    // create a new null transition from the accept state of e1 to the new accept state
-                    if (!nullTransitions.containsKey(e1.getAcceptState())) {
-                        nullTransitions.put(e1.getAcceptState(), new HashSet<>(Collections.singleton(acceptState)));
-                    } else {
-                        nullTransitions.get(e1.getAcceptState()).add(acceptState);
-                    }
-                    // create a new null transition from the accept state of e2 to the new accept state
-                    if (!nullTransitions.containsKey(e2.getAcceptState())) {
-                        nullTransitions.put(e2.getAcceptState(), new HashSet<>(Collections.singleton(acceptState)));
-                    } else {
-                        nullTransitions.get(e2.getAcceptState()).add(acceptState);
-                    }
-                    fragment = new Fragment(states, startState, acceptState, transitions, nullTransitions, anyCharTransitions);
-
-                    // push the resulting fragment onto the stack
-                    stack.push(fragment);
+                    stack.push(union(arena, e1, e2));
                     break;
                 case QMARK:
                 case STAR:
@@ -361,59 +268,29 @@ public class NFABuilder {
                     }
                     e = stack.pop();
                     stack.push(t.type == RToken.RTokenType.QMARK
-                            ? optional(e, allocator)
-                            : star(e, allocator));
+                            ? optional(arena, e)
+                            : star(arena, e));
                     break;
                 case PLUS:
                     // pop a fragment from the stack
                     if (stack.isEmpty()) {
                         throw new IllegalArgumentException("Compilation error: PLUS requires an operand");
                     }
-                    stack.push(oneOrMore(stack.pop(), allocator));
+                    stack.push(oneOrMore(arena, stack.pop()));
                     break;
                 case QUANTIFIER:
                     if (stack.isEmpty()) {
                         throw new IllegalArgumentException(
                                 "Compilation error: QUANTIFIER requires an operand");
                     }
-                    Fragment template = stack.pop();
-                    List<Fragment> repetitions = new ArrayList<>();
-                    boolean templateUsed = false;
-
-                    for (int i = 0; i < t.min; i++) {
-                        Fragment copy = templateUsed ? copyOf(template, allocator) : template;
-                        templateUsed = true;
-                        repetitions.add(copy);
-                    }
-
-                    if (t.isUnbounded()) {
-                        Fragment copy = templateUsed ? copyOf(template, allocator) : template;
-                        repetitions.add(star(copy, allocator));
-                    } else {
-                        for (int i = t.min; i < t.max; i++) {
-                            Fragment copy = templateUsed ? copyOf(template, allocator) : template;
-                            templateUsed = true;
-                            repetitions.add(optional(copy, allocator));
-                        }
-                    }
-
-                    stack.push(repetitions.isEmpty()
-                            ? epsilon(allocator)
-                            : concatenateAll(repetitions));
+                    stack.push(repeat(arena, stack.pop(), t, useCounters));
                     break;
             }
         }
         if (stack.size() != 1) {
             throw new IllegalArgumentException("Compilation error: malformed regex pattern");
         }
-        Fragment finalFragment = stack.pop();
-        // create a new state machine using info from the final fragment
-        return new StateMachine(finalFragment.getStates(),
-                new HashSet<>(Collections.singleton(finalFragment.getStartState())),
-                new HashSet<>(Collections.singleton(finalFragment.getAcceptState())),
-                finalFragment.getTransitions(),
-                finalFragment.getNullTransitions(),
-                finalFragment.getAnyCharTransitions());
+        return stack.pop();
     }
 
 }
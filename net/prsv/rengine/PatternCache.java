@@ -0,0 +1,246 @@
+package net.prsv.rengine;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Bounded cache of compiled machines, keyed by pattern text and compile options.
+ *
+ * A hit is a lookup in a ConcurrentHashMap and takes no lock; it only sets the referenced
+ * bit of the entry, and only when the bit is clear. Entries are evicted in second-chance
+ * (clock) order while the estimated footprint of all cached machines is over the limit:
+ * the sweep takes entries from the head of a queue in insertion order, and an entry whose
+ * bit is set has it cleared and goes back to the tail instead of being evicted. So an entry
+ * used since the sweep last passed it survives, and an eviction costs amortized constant
+ * time. Insertion and eviction are done under the lock of the cache. A machine larger than
+ * the whole limit is returned but not cached.
+ *
+ * Machines grow when parts are built on demand (see StateMachine.estimatedBytes()); a hit
+ * which finds that its machine has grown adds the difference to the footprint, evicting
+ * other entries if need be.
+ *
+ * Compilation is single-flight: when several threads miss on the same key at the same time,
+ * one of them compiles the pattern and the others wait for its result. Patterns which fail
+ * to compile are not cached, so every call reports the error.
+ */
+public final class PatternCache {
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final PatternCache SHARED = new PatternCache(DEFAULT_MAX_BYTES);
+
+    private static final class Key {
+        final String pattern;
+        final CompileOptions options;
+        final int hash;
+
+        Key(String pattern, CompileOptions options) {
+            this.pattern = Objects.requireNonNull(pattern);
+            this.options = Objects.requireNonNull(options);
+            this.hash = 31 * pattern.hashCode() + options.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return pattern.equals(that.pattern) && options.equals(that.options);
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final StateMachine machine;
+        // footprint of the machine counted in the total; written under the lock of the cache
+        volatile long bytes;
+        // set by a hit, cleared by the sweep of evict()
+        volatile boolean referenced;
+
+        Entry(Key key, StateMachine machine, long bytes) {
+            this.key = key;
+            this.machine = machine;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long maxBytes;
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    // the entries in sweep order, and ones removed since; guarded by this
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    // guarded by this
+    private long bytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // compilations in progress
+    private final ConcurrentHashMap<Key, CompletableFuture<StateMachine>> pending = new ConcurrentHashMap<>();
+
+    public PatternCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    // the cache used by StateMachine.compile()
+    public static PatternCache shared() {
+        return SHARED;
+    }
+
+    public StateMachine get(String pattern) {
+        return get(pattern, CompileOptions.defaults());
+    }
+
+    public StateMachine get(String pattern, CompileOptions options) {
+        Key key = new Key(pattern, options);
+        StateMachine machine = lookup(key);
+        if (machine != null) {
+            return machine;
+        }
+        CompletableFuture<StateMachine> compilation = new CompletableFuture<>();
+        CompletableFuture<StateMachine> running = pending.putIfAbsent(key, compilation);
+        if (running != null) {
+            hits.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            // another thread may have compiled and cached the pattern since the first lookup
+            machine = lookup(key);
+            if (machine == null) {
+                misses.increment();
+                machine = StateMachine.compileUncached(pattern, options);
+                insert(key, machine);
+            }
+            compilation.complete(machine);
+            return machine;
+        } catch (RuntimeException | Error e) {
+            compilation.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(key, compilation);
+        }
+    }
+
+    private StateMachine lookup(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        hits.increment();
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        if (entry.machine.estimatedBytes() != entry.bytes) {
+            resize(key, entry);
+        }
+        return entry.machine;
+    }
+
+    private synchronized void insert(Key key, StateMachine machine) {
+        long size = machine.estimatedBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(key, machine, size);
+        Entry previous = entries.put(key, entry);
+        queue.addLast(entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += size;
+        evict();
+    }
+
+    // counts what the machine has built since it was last counted
+    private synchronized void resize(Key key, Entry entry) {
+        if (entries.get(key) != entry) {
+            return;
+        }
+        long size = entry.machine.estimatedBytes();
+        bytes += size - entry.bytes;
+        entry.bytes = size;
+        if (size > maxBytes) {
+            entries.remove(key);
+            bytes -= size;
+            evictions.increment();
+        }
+        evict();
+    }
+
+    // sweeps the queue from its head until the total fits in the limit
+    private void evict() {
+        while (bytes > maxBytes && !queue.isEmpty()) {
+            Entry entry = queue.pollFirst();
+            if (entries.get(entry.key) != entry) {
+                // replaced or removed since it was queued
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                queue.addLast(entry);
+            } else if (entries.remove(entry.key, entry)) {
+                bytes -= entry.bytes;
+                evictions.increment();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        queue.clear();
+        bytes = 0;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public synchronized long estimatedBytes() {
+        return bytes;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries=" + entries.size()
+                + ", bytes=" + bytes
+                + ", maxBytes=" + maxBytes
+                + ", hits=" + hits.sum()
+                + ", misses=" + misses.sum()
+                + ", evictions=" + evictions.sum();
+    }
+}
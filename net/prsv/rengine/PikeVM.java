@@ -0,0 +1,403 @@
+package net.prsv.rengine;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/*
+ * Matcher which reports where the capture groups of a pattern matched, by running a Pike
+ * VM: the NFA is simulated one character at a time like in CompiledNFA, but every active
+ * state is a thread which carries the positions of the groups it has passed.
+ *
+ * The program is built from a postfix stream with GROUP tokens (see
+ * RegexParser.infixToPostfixWithGroups()) the same way NFABuilder builds its arena, except
+ * that a split keeps its two branches in order: the first is the greedy or the left one.
+ * Threads are kept in that priority order, and a state which is reached by a higher
+ * priority thread is not entered again during the same step, so there are never more
+ * threads than states and the match takes time linear in the input. Among the ways the
+ * whole input can match, the one reported is the one a backtracking matcher would find
+ * first: quantifiers take as much as they can and alternations prefer their left side,
+ * and a group which is repeated reports its last iteration.
+ *
+ * The group positions of the threads live in two int arrays of threads * slots entries,
+ * which are swapped after every step, so nothing is allocated per character.
+ */
+final class PikeVM {
+
+    // operations; the consuming ones go to out1 when they match
+    private static final int CHAR = 0;
+    private static final int ANY = 1;
+    private static final int CLASS = 2;
+    // goes to out1
+    private static final int NOP = 3;
+    // goes to out1 first, then to out2
+    private static final int SPLIT = 4;
+    // stores the position in slot arg, then goes to out1
+    private static final int SAVE = 5;
+    private static final int MATCH = 6;
+
+    private static final int NONE = -1;
+
+    private final int[] ops;
+    private final int[] out1;
+    private final int[] out2;
+    private final int[] args;
+    private final CharClass[] classes;
+    private final int start;
+    private final int slotCount;
+
+    private PikeVM(Program program, int start, int groupCount) {
+        this.ops = Arrays.copyOf(program.ops, program.size);
+        this.out1 = Arrays.copyOf(program.out1, program.size);
+        this.out2 = Arrays.copyOf(program.out2, program.size);
+        this.args = Arrays.copyOf(program.args, program.size);
+        this.classes = Arrays.copyOf(program.classes, program.size);
+        this.start = start;
+        this.slotCount = 2 * (groupCount + 1);
+    }
+
+    // growable program, appended to like NFAArena
+    private static final class Program {
+        private final int limit;
+        int size;
+        int[] ops = new int[16];
+        int[] out1 = new int[16];
+        int[] out2 = new int[16];
+        int[] args = new int[16];
+        CharClass[] classes = new CharClass[16];
+
+        Program(int limit) {
+            this.limit = limit;
+        }
+
+        int add(int op, int next, int alternative, int arg, CharClass charClass) {
+            if (size == limit) {
+                throw new LimitExceededException(LimitExceededException.Limit.STATES,
+                        "Compilation error: program exceeds the limit of " + limit + " states");
+            }
+            if (size == ops.length) {
+                int capacity = 2 * size;
+                ops = Arrays.copyOf(ops, capacity);
+                out1 = Arrays.copyOf(out1, capacity);
+                out2 = Arrays.copyOf(out2, capacity);
+                args = Arrays.copyOf(args, capacity);
+                classes = Arrays.copyOf(classes, capacity);
+            }
+            ops[size] = op;
+            out1[size] = next;
+            out2[size] = alternative;
+            args[size] = arg;
+            classes[size] = charClass;
+            return size++;
+        }
+
+        // the accept state of a fragment is a NOP whose target is filled in by the next operator
+        int accept() {
+            return add(NOP, NONE, NONE, 0, null);
+        }
+    }
+
+    // states [first, end of the program) belong to the fragment while it is on top of the stack
+    private static final class Fragment {
+        final int start;
+        final int accept;
+        final int first;
+
+        Fragment(int start, int accept, int first) {
+            this.start = start;
+            this.accept = accept;
+            this.first = first;
+        }
+    }
+
+    /*
+     * Compiles a postfix stream in which groups 1 to groupCount may be closed by GROUP
+     * tokens. Group 0 is the whole match. The program may have at most stateLimit states.
+     */
+    static PikeVM compile(List<RToken> postfix, int groupCount, int stateLimit) {
+        Program p = new Program(stateLimit);
+        Deque<Fragment> stack = new ArrayDeque<>();
+        for (RToken t : postfix) {
+            switch (t.type) {
+                case LITERAL:
+                case ANY_CHAR:
+                case CHAR_CLASS: {
+                    int first = p.size;
+                    int accept = p.accept();
+                    int op = t.type == RToken.RTokenType.LITERAL ? CHAR
+                            : t.type == RToken.RTokenType.ANY_CHAR ? ANY : CLASS;
+                    int state = p.add(op, accept, NONE, t.literal, t.charClass);
+                    stack.push(new Fragment(state, accept, first));
+                    break;
+                }
+                case CONCAT: {
+                    Fragment right = pop(stack, "CONCAT");
+                    Fragment left = pop(stack, "CONCAT");
+                    p.out1[left.accept] = right.start;
+                    stack.push(new Fragment(left.start, right.accept, left.first));
+                    break;
+                }
+                case UNION: {
+                    Fragment right = pop(stack, "UNION");
+                    Fragment left = pop(stack, "UNION");
+                    int accept = p.accept();
+                    p.out1[left.accept] = accept;
+                    p.out1[right.accept] = accept;
+                    int state = p.add(SPLIT, left.start, right.start, 0, null);
+                    stack.push(new Fragment(state, accept, left.first));
+                    break;
+                }
+                case QMARK:
+                    stack.push(optional(p, pop(stack, "QMARK")));
+                    break;
+                case STAR:
+                    stack.push(star(p, pop(stack, "STAR")));
+                    break;
+                case PLUS:
+                    stack.push(plus(p, pop(stack, "PLUS")));
+                    break;
+                case QUANTIFIER:
+                    stack.push(repeat(p, pop(stack, "QUANTIFIER"), t));
+                    break;
+                case GROUP: {
+                    Fragment operand = pop(stack, "GROUP");
+                    if (t.group > groupCount) {
+                        throw new IllegalArgumentException("Compilation error: unexpected group " + t.group);
+                    }
+                    int accept = p.accept();
+                    // add() may grow the arrays, so it is called before out1 is read
+                    int end = p.add(SAVE, accept, NONE, 2 * t.group + 1, null);
+                    p.out1[operand.accept] = end;
+                    int state = p.add(SAVE, operand.start, NONE, 2 * t.group, null);
+                    stack.push(new Fragment(state, accept, operand.first));
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Compilation error: unexpected " + t.type + " token");
+            }
+        }
+        if (stack.size() != 1) {
+            throw new IllegalArgumentException("Compilation error: malformed regex pattern");
+        }
+        Fragment pattern = stack.pop();
+        int match = p.add(MATCH, NONE, NONE, 0, null);
+        p.out1[pattern.accept] = match;
+        return new PikeVM(p, pattern.start, groupCount);
+    }
+
+    private static Fragment pop(Deque<Fragment> stack, String operator) {
+        if (stack.isEmpty()) {
+            throw new IllegalArgumentException("Compilation error: " + operator + " requires an operand");
+        }
+        return stack.pop();
+    }
+
+    private static Fragment optional(Program p, Fragment operand) {
+        int accept = p.accept();
+        p.out1[operand.accept] = accept;
+        int state = p.add(SPLIT, operand.start, accept, 0, null);
+        return new Fragment(state, accept, operand.first);
+    }
+
+    private static Fragment star(Program p, Fragment operand) {
+        int accept = p.accept();
+        int state = p.add(SPLIT, operand.start, accept, 0, null);
+        p.out1[operand.accept] = state;
+        return new Fragment(state, accept, operand.first);
+    }
+
+    private static Fragment plus(Program p, Fragment operand) {
+        int accept = p.accept();
+        int state = p.add(SPLIT, operand.start, accept, 0, null);
+        p.out1[operand.accept] = state;
+        return new Fragment(operand.start, accept, operand.first);
+    }
+
+    // appends a copy of the fragment, which must be the last one in the program
+    private static Fragment copyOf(Program p, Fragment template, int end) {
+        int delta = p.size - template.first;
+        for (int s = template.first; s < end; s++) {
+            p.add(p.ops[s], p.out1[s] == NONE ? NONE : p.out1[s] + delta,
+                    p.out2[s] == NONE ? NONE : p.out2[s] + delta, p.args[s], p.classes[s]);
+        }
+        return new Fragment(template.start + delta, template.accept + delta, template.first + delta);
+    }
+
+    private static Fragment concatenate(Program p, Fragment left, Fragment right) {
+        if (left == null) {
+            return right;
+        }
+        p.out1[left.accept] = right.start;
+        return new Fragment(left.start, right.accept, left.first);
+    }
+
+    private static Fragment repeat(Program p, Fragment template, RToken quantifier) {
+        int end = p.size;
+        int count = quantifier.isUnbounded() ? quantifier.min + 1 : quantifier.max;
+        if (count == 0) {
+            // {0}: the template stays in the program but is unreachable
+            int accept = p.accept();
+            return new Fragment(accept, accept, template.first);
+        }
+        // linking a fragment sets the target of its accept state, so every copy is made first
+        Fragment[] copies = new Fragment[count];
+        copies[0] = template;
+        for (int i = 1; i < count; i++) {
+            copies[i] = copyOf(p, template, end);
+        }
+        Fragment result = null;
+        for (int i = 0; i < quantifier.min; i++) {
+            result = concatenate(p, result, copies[i]);
+        }
+        if (quantifier.isUnbounded()) {
+            result = concatenate(p, result, star(p, copies[quantifier.min]));
+        } else if (quantifier.max > quantifier.min) {
+            // nested so that a later copy is only tried after the earlier ones: x{0-2} is (x(x)?)?
+            Fragment tail = optional(p, copies[count - 1]);
+            for (int i = count - 2; i >= quantifier.min; i--) {
+                tail = optional(p, concatenate(p, copies[i], tail));
+            }
+            result = concatenate(p, result, tail);
+        }
+        return new Fragment(result.start, result.accept, template.first);
+    }
+
+    int stateCount() {
+        return ops.length;
+    }
+
+    // rough size of the program in bytes; character classes are shared with the tokens
+    long estimatedBytes() {
+        return 16L * ops.length + 8L * classes.length;
+    }
+
+    /*
+     * Returns the group positions of the match of the whole input, or null if it does not
+     * match: slots 2g and 2g + 1 are the start and the end of group g, both -1 if the group
+     * did not take part in the match. The budget, if not null, is charged the number of
+     * threads at every step.
+     */
+    int[] match(CharSequence input, MatchBudget budget) {
+        int n = ops.length;
+        Threads current = new Threads(n, slotCount);
+        Threads next = new Threads(n, slotCount);
+        int[] marks = new int[n];
+        // pairs of a state to enter and 0, or of -2 - slot and the value to put back in the slot
+        int[] stack = new int[4 * n + 4];
+        int[] slots = new int[slotCount];
+        Arrays.fill(slots, -1);
+        slots[0] = 0;
+        int generation = 1;
+        add(current, start, 0, slots, marks, generation, stack);
+        int length = input.length();
+        for (int i = 0; i < length && current.size > 0; i++) {
+            if (budget != null) {
+                budget.charge(current.size);
+            }
+            char symbol = input.charAt(i);
+            generation++;
+            next.size = 0;
+            for (int k = 0; k < current.size; k++) {
+                int state = current.states[k];
+                boolean matches;
+                switch (ops[state]) {
+                    case CHAR:
+                        matches = args[state] == symbol;
+                        break;
+                    case ANY:
+                        matches = true;
+                        break;
+                    case CLASS:
+                        matches = classes[state].contains(symbol);
+                        break;
+                    default:
+                        // a thread which reached MATCH before the end of the input
+                        matches = false;
+                        break;
+                }
+                if (matches) {
+                    System.arraycopy(current.slots, k * slotCount, slots, 0, slotCount);
+                    add(next, out1[state], i + 1, slots, marks, generation, stack);
+                }
+            }
+            Threads tmp = current;
+            current = next;
+            next = tmp;
+        }
+        for (int k = 0; k < current.size; k++) {
+            if (ops[current.states[k]] == MATCH) {
+                int[] result = Arrays.copyOfRange(current.slots, k * slotCount, (k + 1) * slotCount);
+                result[1] = length;
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Adds the threads for every consuming state and the match state reachable from state
+     * without consuming input, in priority order, skipping states already entered in this
+     * generation. slots is restored to its contents on entry before returning.
+     */
+    private void add(Threads threads, int state, int position, int[] slots,
+                     int[] marks, int generation, int[] stack) {
+        int top = 0;
+        stack[top++] = state;
+        stack[top++] = 0;
+        while (top > 0) {
+            int value = stack[--top];
+            int s = stack[--top];
+            if (s < 0) {
+                slots[-2 - s] = value;
+                continue;
+            }
+            if (marks[s] == generation) {
+                continue;
+            }
+            marks[s] = generation;
+            switch (ops[s]) {
+                case NOP:
+                    stack[top++] = out1[s];
+                    stack[top++] = 0;
+                    break;
+                case SPLIT:
+                    stack[top++] = out2[s];
+                    stack[top++] = 0;
+                    stack[top++] = out1[s];
+                    stack[top++] = 0;
+                    break;
+                case SAVE:
+                    // the old value is put back once everything reached from here has been added
+                    stack[top++] = -2 - args[s];
+                    stack[top++] = slots[args[s]];
+                    slots[args[s]] = position;
+                    stack[top++] = out1[s];
+                    stack[top++] = 0;
+                    break;
+                default:
+                    threads.add(s, slots);
+                    break;
+            }
+        }
+    }
+
+    private static final class Threads {
+        final int[] states;
+        final int[] slots;
+        private final int slotCount;
+        int size;
+
+        Threads(int stateCount, int slotCount) {
+            this.states = new int[stateCount];
+            this.slots = new int[stateCount * slotCount];
+            this.slotCount = slotCount;
+        }
+
+        void add(int state, int[] threadSlots) {
+            states[size] = state;
+            System.arraycopy(threadSlots, 0, slots, size * slotCount, slotCount);
+            size++;
+        }
+    }
+}
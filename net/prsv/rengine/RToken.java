@@ -14,7 +14,10 @@ public class RToken {
         QMARK,
         STAR,
         PLUS,
-        QUANTIFIER
+        QUANTIFIER,
+        CHAR_CLASS,
+        // closes a capture group; only produced by RegexParser.infixToPostfixWithGroups()
+        GROUP
     }
 
     public final RTokenType type;
@@ -24,15 +27,40 @@ public class RToken {
     public final int min;
     public final int max;
 
+    // set of characters matched by a CHAR_CLASS token, null for every other type
+    public final CharClass charClass;
+
+    // number of the capture group closed by a GROUP token, 0 for every other type
+    public final int group;
 
     public RToken(RTokenType type, char symbol) {
         if (type == RTokenType.QUANTIFIER) {
             throw new IllegalArgumentException("Use the other constructor to create a QUANTIFIER token");
         }
+        if (type == RTokenType.CHAR_CLASS) {
+            throw new IllegalArgumentException("Use the CharClass constructor to create a CHAR_CLASS token");
+        }
+        if (type == RTokenType.GROUP) {
+            throw new IllegalArgumentException("Use RToken.group() to create a GROUP token");
+        }
         this.type = type;
         literal = symbol;
         this.min = 0;
         this.max = 0;
+        this.charClass = null;
+        this.group = 0;
+    }
+
+    public RToken(CharClass charClass) {
+        if (charClass == null || charClass.isEmpty()) {
+            throw new IllegalArgumentException("A CHAR_CLASS token requires a non-empty class");
+        }
+        this.type = RTokenType.CHAR_CLASS;
+        this.charClass = charClass;
+        this.literal = '\0';
+        this.min = 0;
+        this.max = 0;
+        this.group = 0;
     }
 
     /*
@@ -49,6 +77,24 @@ public class RToken {
         this.min = min;
         this.max = max;
         this.literal = '\0';
+        this.charClass = null;
+        this.group = 0;
+    }
+
+    private RToken(int group) {
+        this.type = RTokenType.GROUP;
+        this.group = group;
+        this.literal = '\0';
+        this.min = 0;
+        this.max = 0;
+        this.charClass = null;
+    }
+
+    public static RToken group(int number) {
+        if (number < 1) {
+            throw new IllegalArgumentException("Group numbers start at 1");
+        }
+        return new RToken(number);
     }
 
     public boolean isUnbounded() {
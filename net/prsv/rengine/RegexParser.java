@@ -133,11 +133,13 @@ public class RegexParser {
 
         boolean inRange = false;
         List<RToken> tokens = new ArrayList<>();
+        List<char[]> ranges = new ArrayList<>();
         int idx = 0;
 
         /*
-         * The parser handles character ranges by transforming them into groups/unions:
-         * e.g. [abc] is transformed into (a|b|c) and [a-e] is transformed into (a|b|c|d|e)
+         * Bracket expressions are turned into a single CHAR_CLASS token holding the set of
+         * characters they match, e.g. [a-e] becomes one token for the range a..e and [abc]
+         * becomes one token for the ranges a..a, b..b and c..c
          */
         while (idx < temporaryTokenStream.size()) {
             RToken t = temporaryTokenStream.get(idx);
@@ -146,20 +148,16 @@ public class RegexParser {
                     throw new IllegalArgumentException("Parsing error: unbalanced [");
                 }
                 inRange = true;
-                // create the bracket/union expression
-                tokens.add(new RToken(RTokenType.L_PAR, '('));
+                ranges.clear();
             } else if (t.type == RTokenType.RANGE_END) {
                 if (!inRange) {
                     throw new IllegalArgumentException("Parsing error: unbalanced ]");
                 }
                 inRange = false;
-                // if the last token before the closing bracket is a union, remove it
-                if (tokens.get(tokens.size() - 1).type == RTokenType.UNION) {
-                    tokens.remove(tokens.size() - 1);
+                if (ranges.isEmpty()) {
+                    throw new IllegalArgumentException("Parsing error: empty brackets");
                 }
-                // close the bracket
-                t = new RToken(RTokenType.R_PAR, ')');
-                tokens.add(t);
+                tokens.add(new RToken(CharClass.of(ranges)));
             } else if (inRange) {
                 if (t.literal == '-' && idx > 0 && idx + 1 < temporaryTokenStream.size()) {
                     RToken next = temporaryTokenStream.get(idx + 1);
@@ -170,18 +168,13 @@ public class RegexParser {
                         if (fromChar > toChar) {
                             throw new IllegalArgumentException("Parsing error: invalid range " + fromChar + "-" + toChar);
                         }
-                        for (int code = fromChar; code <= toChar; code++) { // use int to prevent overflow
-                            tokens.add(new RToken(RTokenType.LITERAL, (char) code));
-                            tokens.add(new RToken(RTokenType.UNION, '|'));
-                        }
+                        ranges.add(new char[]{fromChar, toChar});
                         idx += 1;
                     } else {
-                        tokens.add(t);
-                        tokens.add(new RToken(RTokenType.UNION, '|'));
+                        ranges.add(new char[]{t.literal, t.literal});
                     }
                 } else {
-                    tokens.add(new RToken(RTokenType.LITERAL, t.literal));
-                    tokens.add(new RToken(RTokenType.UNION, '|'));
+                    ranges.add(new char[]{t.literal, t.literal});
                 }
             } else {
                 tokens.add(t);
@@ -214,17 +207,35 @@ public class RegexParser {
     }
 
     public static List<RToken> infixToPostfix(List<RToken> tokens) {
+        return infixToPostfix(tokens, false);
+    }
+
+    /*
+     * Same as infixToPostfix(), but the operand of every pair of parentheses is followed by a
+     * GROUP token with its number. Groups are numbered from 1 in the order of their opening
+     * parentheses. Only the capturing engine understands GROUP tokens.
+     */
+    public static List<RToken> infixToPostfixWithGroups(List<RToken> tokens) {
+        return infixToPostfix(tokens, true);
+    }
+
+    private static List<RToken> infixToPostfix(List<RToken> tokens, boolean groups) {
         Deque<RToken> stack = new ArrayDeque<>();
         List<RToken> postfixStream = new ArrayList<>();
+        // numbers of the groups which are open
+        Deque<Integer> openGroups = new ArrayDeque<>();
+        int groupCount = 0;
 
         for (RToken t : tokens) {
             switch (t.type) {
                 case LITERAL:
                 case ANY_CHAR:
+                case CHAR_CLASS:
                     postfixStream.add(t);
                     break;
                 case L_PAR:
                     stack.push(t);
+                    openGroups.push(++groupCount);
                     break;
                 case R_PAR:
                     while (true) {
@@ -235,6 +246,10 @@ public class RegexParser {
                         postfixStream.add(stack.pop());
                     }
                     stack.pop();
+                    int group = openGroups.pop();
+                    if (groups) {
+                        postfixStream.add(RToken.group(group));
+                    }
                     break;
 
                 default:
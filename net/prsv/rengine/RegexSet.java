@@ -0,0 +1,90 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/*
+ * A set of patterns matched against an input in a single pass.
+ *
+ * All patterns are built into one NFA which starts in the start states of every pattern,
+ * and the accept state of each pattern is tagged with its index. The NFA is run as a lazy
+ * DFA, so once the cache is warm every character costs one table lookup no matter how many
+ * patterns there are. The states reached at the end of the input tell which patterns
+ * matched.
+ *
+ * Like StateMachine.run(), a pattern matches if it matches the whole input. Quantifiers are
+ * always expanded because the lazy DFA works on plain sets of states. A set can be shared
+ * between threads, which match in parallel once the states they need are cached.
+ */
+public final class RegexSet {
+
+    private static final int NO_PATTERN = -1;
+
+    private final List<String> patterns;
+    private final LazyDFA lazyDFA;
+
+    // index of the pattern whose accept state this is, or NO_PATTERN
+    private final int[] patternOf;
+
+    private RegexSet(List<String> patterns, CompiledNFA nfa, int[] acceptStates,
+                     CompileOptions options) {
+        this.patterns = patterns;
+        this.lazyDFA = new LazyDFA(nfa, options.getLazyDfaCacheBytes());
+        this.patternOf = new int[nfa.stateCount];
+        Arrays.fill(patternOf, NO_PATTERN);
+        for (int i = 0; i < acceptStates.length; i++) {
+            patternOf[acceptStates[i]] = i;
+        }
+    }
+
+    public static RegexSet compile(String... patterns) {
+        return compile(Arrays.asList(patterns));
+    }
+
+    public static RegexSet compile(List<String> patterns) {
+        return compile(patterns, CompileOptions.defaults());
+    }
+
+    // only the lazy DFA cache size and the state limit of the options are used
+    public static RegexSet compile(List<String> patterns, CompileOptions options) {
+        List<String> copy = List.copyOf(patterns);
+        List<List<RToken>> tokenStreams = new ArrayList<>(copy.size());
+        for (String pattern : copy) {
+            tokenStreams.add(RegexParser.infixToPostfix(RegexParser.tokenize(pattern)));
+        }
+        int[] acceptStates = new int[copy.size()];
+        CompiledNFA nfa = NFABuilder.compileSet(tokenStreams, acceptStates, options.getStateLimit());
+        return new RegexSet(copy, nfa, acceptStates, options);
+    }
+
+    public int size() {
+        return patterns.size();
+    }
+
+    public String pattern(int index) {
+        return patterns.get(index);
+    }
+
+    // the indices of the patterns which match the whole input
+    public BitSet matches(CharSequence input) {
+        BitSet result = new BitSet(patterns.size());
+        for (int state : lazyDFA.finalStates(input)) {
+            if (patternOf[state] != NO_PATTERN) {
+                result.set(patternOf[state]);
+            }
+        }
+        return result;
+    }
+
+    // like matches(input), as a sorted array
+    public int[] matchingIndices(CharSequence input) {
+        return matches(input).stream().toArray();
+    }
+
+    public boolean matchesAny(CharSequence input) {
+        return lazyDFA.matches(input);
+    }
+
+}
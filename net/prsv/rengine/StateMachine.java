@@ -1,55 +1,377 @@
 package net.prsv.rengine;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
+/*
+ * A compiled pattern. Instances are immutable once constructed and can be shared freely
+ * between threads: the engines keep their working state per call, the lazily built parts
+ * (the String-based form, the expanded NFA, the finders and the DFAs for runParallel() and
+ * runUtf8()) are published through volatile fields and are the same whichever thread
+ * builds them, and the lazy DFA reads its cached states without a lock and only locks its
+ * cache to add one.
+ *
+ * With the AUTO and DFA engines, a pattern without counters can have its DFA turned into
+ * bytecode once it has been run often enough (see CompileOptions.withCodegenThreshold(),
+ * off by default). The code is generated on the common ForkJoinPool, and run() keeps using
+ * the other engines until it is ready. The count of runs is not synchronized, so the code
+ * may be generated a few runs later than the threshold when several threads share the
+ * machine.
+ *
+ * run() takes the first engine that applies: the generated code, Aho-Corasick for a plain
+ * alternation of words, the bit-parallel automaton for a pattern of at most 63 positions,
+ * the DFA or the lazy DFA of the chosen engine, and the NFA with counters. Otherwise the
+ * AUTO engine matches inputs which are short for the size of the NFA by backtracking (see
+ * BoundedBacktracker), which skips the setup of the active state sets, and simulates the
+ * NFA on longer ones.
+ */
 public class StateMachine {
-    private final HashSet<String> states;
-    private final HashSet<String> acceptStates;
-    private final HashMap<Pair, HashSet<String>> transitions;
-    private final HashMap<String, HashSet<String>> nullTransitions;
 
-    private final HashMap<String, String> anyCharTransitions;
+    // the String-based form of the NFA, used by config() and interpret(); never modified
+    private static final class StringForm {
+        final HashSet<String> states;
+        final HashSet<String> acceptStates;
+        final HashMap<Pair, HashSet<String>> transitions;
+        final HashMap<String, HashSet<String>> nullTransitions;
+        final HashMap<String, String> anyCharTransitions;
+        // source state -> (character class, target state)
+        final HashMap<String, Map.Entry<CharClass, String>> classTransitions;
+        final HashSet<String> startStates;
 
-    private final HashSet<String> startStates;
+        StringForm(HashSet<String> states,
+                   HashSet<String> startStates, HashSet<String> acceptStates,
+                   HashMap<Pair, HashSet<String>> transitions,
+                   HashMap<String, HashSet<String>> nullTransitions,
+                   HashMap<String, String> anyCharTransitions,
+                   HashMap<String, Map.Entry<CharClass, String>> classTransitions) {
+            this.states = states;
+            this.startStates = startStates;
+            this.acceptStates = acceptStates;
+            this.transitions = transitions;
+            this.nullTransitions = nullTransitions;
+            this.anyCharTransitions = anyCharTransitions;
+            this.classTransitions = classTransitions;
+        }
+
+        // deep copy of maps handed in by a caller, who might still modify them
+        static StringForm copyOf(HashSet<String> states,
+                                 HashSet<String> startStates, HashSet<String> acceptStates,
+                                 HashMap<Pair, HashSet<String>> transitions,
+                                 HashMap<String, HashSet<String>> nullTransitions,
+                                 HashMap<String, String> anyCharTransitions,
+                                 HashMap<String, Map.Entry<CharClass, String>> classTransitions) {
+            HashMap<Pair, HashSet<String>> transitionsCopy = new HashMap<>();
+            transitions.forEach((key, targets) -> transitionsCopy.put(key, new HashSet<>(targets)));
+            HashMap<String, HashSet<String>> nullTransitionsCopy = new HashMap<>();
+            nullTransitions.forEach((key, targets) -> nullTransitionsCopy.put(key, new HashSet<>(targets)));
+            return new StringForm(new HashSet<>(states), new HashSet<>(startStates),
+                    new HashSet<>(acceptStates), transitionsCopy, nullTransitionsCopy,
+                    new HashMap<>(anyCharTransitions), new HashMap<>(classTransitions));
+        }
+
+        // state s of the compiled NFA is named "q" + s
+        static StringForm of(CompiledNFA nfa) {
+            HashSet<String> states = new HashSet<>();
+            HashSet<String> startStates = new HashSet<>();
+            HashSet<String> acceptStates = new HashSet<>();
+            HashMap<Pair, HashSet<String>> transitions = new HashMap<>();
+            HashMap<String, HashSet<String>> nullTransitions = new HashMap<>();
+            HashMap<String, String> anyCharTransitions = new HashMap<>();
+            HashMap<String, Map.Entry<CharClass, String>> classTransitions = new HashMap<>();
+            for (int state = 0; state < nfa.stateCount; state++) {
+                String name = "q" + state;
+                states.add(name);
+                if (nfa.accepting[state]) {
+                    acceptStates.add(name);
+                }
+                for (int e = nfa.transitionIndex[state]; e < nfa.transitionIndex[state + 1]; e++) {
+                    transitions.computeIfAbsent(new Pair(name, nfa.transitionSymbols[e]),
+                            ignored -> new HashSet<>()).add("q" + nfa.transitionTargets[e]);
+                }
+                for (int e = nfa.nullTransitionIndex[state]; e < nfa.nullTransitionIndex[state + 1]; e++) {
+                    nullTransitions.computeIfAbsent(name, ignored -> new HashSet<>())
+                            .add("q" + nfa.nullTransitionTargets[e]);
+                }
+                if (nfa.anyCharTargets[state] != CompiledNFA.NO_STATE) {
+                    anyCharTransitions.put(name, "q" + nfa.anyCharTargets[state]);
+                }
+                if (nfa.classTargets[state] != CompiledNFA.NO_STATE) {
+                    classTransitions.put(name,
+                            Map.entry(nfa.stateClasses[state], "q" + nfa.classTargets[state]));
+                }
+            }
+            for (int state : nfa.startStates) {
+                startStates.add("q" + state);
+            }
+            return new StringForm(states, startStates, acceptStates,
+                    transitions, nullTransitions, anyCharTransitions, classTransitions);
+        }
+
+        // roughly a hundred bytes for every entry of the maps and sets, with its strings
+        long estimatedBytes() {
+            long entries = states.size() + startStates.size() + acceptStates.size()
+                    + anyCharTransitions.size() + classTransitions.size();
+            for (HashSet<String> targets : transitions.values()) {
+                entries += 2 + targets.size();
+            }
+            for (HashSet<String> targets : nullTransitions.values()) {
+                entries += 2 + targets.size();
+            }
+            return 96 * entries;
+        }
+    }
+
+    // derived from compiled on first use for machines built by NFABuilder
+    private volatile StringForm stringForm;
+
+    // estimated size of the parts built with the machine, and of those built on demand so
+    // far; see estimatedBytes()
+    private final long baseBytes;
+    private final AtomicLong builtBytes = new AtomicLong();
+
+    // integer-indexed form of the NFA; used by run() and summary(). When the pattern has
+    // large quantifiers it is only built on demand, by expanding them
+    private volatile CompiledNFA compiled;
+
+    // null unless the pattern has quantifiers which are matched with counters
+    private final CountingNFA counting;
+
+    private final List<RToken> postfix;
+
+    // created by the first call to find(), the second one for a pattern with counters
+    private volatile Finder finder;
+    private volatile CountingFinder countingFinder;
+
+    // program which records group positions for match(), created by its first call
+    private volatile PikeVM pikeVM;
+
+    // DFA for runParallel() when the engine did not build one, created by its first call;
+    // parallelUnavailable is set if the DFA exceeds the state limit
+    private volatile DFA parallelDFA;
+    private volatile boolean parallelUnavailable;
+
+    // literals every match contains, checked before running an engine; null if there are
+    // none or the machine was assembled by hand
+    private final LiteralPrefilter prefilter;
+
+    private final CompileOptions options;
+
+    // null unless the machine was compiled from a pattern
+    private final String pattern;
+
+    // null unless the LAZY_DFA engine was selected
+    private final LazyDFA lazyDFA;
+
+    // null unless the DFA engine was selected and the DFA fits in the state limit
+    private final DFA dfa;
+
+    // null unless the AUTO or BIT_PARALLEL engine was selected and the pattern is small enough
+    private final BitParallelMatcher bitParallel;
+
+    // null unless the AUTO engine was selected and the pattern is an alternation of words
+    private final AhoCorasick ahoCorasick;
+
+    // whether run() may match short inputs with a BoundedBacktracker instead of the compiled NFA
+    private final boolean backtrack;
+
+    // runs after which run() switches to generated code, or -1 if it never does
+    private final int codegenThreshold;
+    private int runs;
+    // set once generation has been started; generated stays null if the DFA is too large
+    private volatile boolean codegenStarted;
+    // the generation in progress on the common pool, or null
+    private volatile CompletableFuture<Void> codegenTask;
+    private volatile BytecodeMatcher generated;
+
+    // DFA over UTF-8 bytes for runUtf8(), created by its first call; utf8Unavailable is set if
+    // the pattern has counters or its DFA or byte table exceeds the limits
+    private volatile Utf8DFA utf8DFA;
+    private volatile boolean utf8Unavailable;
 
     public StateMachine(HashSet<String> states,
                         HashSet<String> startStates, HashSet<String> acceptStates,
                         HashMap<Pair, HashSet<String>> transitions,
                         HashMap<String, HashSet<String>> nullTransitions,
                         HashMap<String, String> anyCharTransitions) {
-        this.states = states;
-        this.acceptStates = acceptStates;
-        this.transitions = transitions;
-        this.nullTransitions = nullTransitions;
-        this.startStates = startStates;
-        this.anyCharTransitions = anyCharTransitions;
+        this(states, startStates, acceptStates, transitions, nullTransitions, anyCharTransitions,
+                new HashMap<>());
+    }
+
+    public StateMachine(HashSet<String> states,
+                        HashSet<String> startStates, HashSet<String> acceptStates,
+                        HashMap<Pair, HashSet<String>> transitions,
+                        HashMap<String, HashSet<String>> nullTransitions,
+                        HashMap<String, String> anyCharTransitions,
+                        HashMap<String, Map.Entry<CharClass, String>> classTransitions) {
+        this(CompiledNFA.of(states, startStates, acceptStates,
+                        transitions, nullTransitions, anyCharTransitions, classTransitions),
+                null, CompileOptions.defaults(), null);
+        this.stringForm = StringForm.copyOf(states, startStates, acceptStates,
+                transitions, nullTransitions, anyCharTransitions, classTransitions);
+    }
+
+    /*
+     * postfix is the token stream the machine was built from, or null if the machine was
+     * assembled by hand; engines which work on the token stream are only available with it.
+     * pattern is the text of the pattern, reported to Flight Recorder, or null if unknown.
+     */
+    StateMachine(CompiledNFA compiled, List<RToken> postfix, CompileOptions options, String pattern) {
+        this(compiled, null, postfix, options, pattern);
+    }
+
+    StateMachine(CountingNFA counting, List<RToken> postfix, CompileOptions options, String pattern) {
+        this(null, counting, postfix, options, pattern);
+    }
+
+    private StateMachine(CompiledNFA compiled, CountingNFA counting,
+                         List<RToken> postfix, CompileOptions options, String pattern) {
+        this.pattern = pattern;
+        this.compiled = compiled;
+        this.counting = counting;
+        this.postfix = postfix;
+        this.options = options;
+        this.prefilter = postfix != null ? LiteralPrefilter.of(postfix) : null;
+        this.lazyDFA = options.getEngine() == CompileOptions.Engine.LAZY_DFA
+                ? new LazyDFA(compiled, options.getLazyDfaCacheBytes())
+                : null;
+        if (options.getEngine() == CompileOptions.Engine.DFA) {
+            this.dfa = DFA.build(compiled, options.getDfaStateLimit());
+            if (dfa == null && !options.isDfaFallback()) {
+                throw new IllegalArgumentException("Compilation error: DFA exceeds the limit of "
+                        + options.getDfaStateLimit() + " states");
+            }
+        } else {
+            this.dfa = null;
+        }
+        if (postfix != null && (options.getEngine() == CompileOptions.Engine.AUTO
+                || options.getEngine() == CompileOptions.Engine.BIT_PARALLEL)) {
+            this.bitParallel = BitParallelMatcher.compile(postfix);
+        } else {
+            this.bitParallel = null;
+        }
+        this.ahoCorasick = postfix != null && options.getEngine() == CompileOptions.Engine.AUTO
+                ? AhoCorasick.of(postfix)
+                : null;
+        // the NFA engine is left to simulate the NFA, as its name says
+        this.backtrack = counting == null && options.getEngine() == CompileOptions.Engine.AUTO;
+        // a pattern matched with counters would have to be expanded first, and its DFA
+        // rarely fits in the state limit
+        this.codegenThreshold = counting == null && (options.getEngine() == CompileOptions.Engine.AUTO
+                || options.getEngine() == CompileOptions.Engine.DFA)
+                ? options.getCodegenThreshold()
+                : -1;
+        this.baseBytes = baseBytes();
+        if (codegenThreshold == 0) {
+            codegenStarted = true;
+            generate();
+        }
+    }
+
+    private StringForm stringForm() {
+        StringForm form = stringForm;
+        if (form == null) {
+            form = StringForm.of(compiled());
+            stringForm = form;
+            built(form.estimatedBytes());
+        }
+        return form;
+    }
+
+    public CompileOptions options() {
+        return options;
+    }
+
+    /*
+     * Rough memory footprint of the machine in bytes, used by PatternCache. A lazy DFA is
+     * counted at its cache limit, and parts which are only built on demand are added as they
+     * are built, so the footprint of a machine can grow while it is in use. When two threads
+     * race to build the same part, both are counted although only one is kept.
+     */
+    long estimatedBytes() {
+        return baseBytes + builtBytes.get();
+    }
+
+    private long baseBytes() {
+        long bytes = 256 + 32L * (postfix == null ? 0 : postfix.size());
+        bytes += counting != null ? counting.estimatedBytes() : compiled.estimatedBytes();
+        if (lazyDFA != null) {
+            bytes += options.getLazyDfaCacheBytes();
+        }
+        if (dfa != null) {
+            bytes += dfa.estimatedBytes();
+        }
+        if (bitParallel != null) {
+            bytes += bitParallel.estimatedBytes();
+        }
+        if (ahoCorasick != null) {
+            bytes += ahoCorasick.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    // literals every match contains, longest first; empty if none are known
+    List<String> requiredLiterals() {
+        return prefilter == null ? List.of() : prefilter.literals();
+    }
+
+    CompiledNFA compiled() {
+        CompiledNFA nfa = compiled;
+        if (nfa == null) {
+            nfa = NFABuilder.compile(postfix, options.getStateLimit());
+            compiled = nfa;
+            built(nfa.estimatedBytes());
+        }
+        return nfa;
+    }
+
+    private void built(long bytes) {
+        builtBytes.addAndGet(bytes);
     }
 
     public String config() {
         Comparator<String> stateOrder = Comparator.comparingInt(
                 state -> Integer.parseInt(state.substring(1))
         );
+        StringForm form = stringForm();
         StringBuilder sb = new StringBuilder();
         sb.append("===== NFA configuration =====\n");
         sb.append("States: ");
-        states.stream()
+        form.states.stream()
                 .sorted(stateOrder)
                 .forEach(state -> sb.append(state).append(" "));
         sb.append("\nStart states: ");
-        startStates.stream()
+        form.startStates.stream()
                 .sorted(stateOrder)
                 .forEach(state -> sb.append(state).append(" "));
         sb.append("\nAccept states: ");
-        acceptStates.stream()
+        form.acceptStates.stream()
                 .sorted(stateOrder)
                 .forEach(state -> sb.append(state).append(" "));
         sb.append("\nTransitions:\n");
-        transitions.entrySet().stream()
+        form.transitions.entrySet().stream()
                 .sorted(Map.Entry.comparingByKey())
                 .forEach(entry -> {
                     sb.append("(").append(entry.getKey()).append(") -> ");
@@ -58,9 +380,9 @@ public class StateMachine {
                             .forEach(state -> sb.append(state).append(" "));
                     sb.append("\n");
                 });
-        if (!nullTransitions.isEmpty()) {
+        if (!form.nullTransitions.isEmpty()) {
             sb.append("\nNull transitions:\n");
-            nullTransitions.entrySet().stream()
+            form.nullTransitions.entrySet().stream()
                     .sorted(Map.Entry.comparingByKey(stateOrder))
                     .forEach(entry -> {
                         sb.append(entry.getKey()).append(" -> ");
@@ -70,23 +392,94 @@ public class StateMachine {
                         sb.append("\n");
                     });
         }
+        if (!form.classTransitions.isEmpty()) {
+            sb.append("\nClass transitions:\n");
+            form.classTransitions.entrySet().stream()
+                    .sorted(Map.Entry.comparingByKey(stateOrder))
+                    .forEach(entry -> sb.append("(").append(entry.getKey()).append(", ")
+                            .append(entry.getValue().getKey()).append(") -> ")
+                            .append(entry.getValue().getValue()).append(" \n"));
+        }
         return sb.toString();
     }
 
     public String summary() {
+        // the first line counts like the String-based form: transitions are (state, symbol)
+        // keys and null transitions are states with at least one null transition
+        CompiledNFA compiled = counting != null ? counting.nfa : this.compiled;
+        int acceptStates = 0;
+        int transitionKeys = 0;
+        int nullTransitionSources = 0;
+        for (int state = 0; state < compiled.stateCount; state++) {
+            if (compiled.accepting[state]) acceptStates++;
+            for (int e = compiled.transitionIndex[state]; e < compiled.transitionIndex[state + 1]; e++) {
+                if (e == compiled.transitionIndex[state]
+                        || compiled.transitionSymbols[e] != compiled.transitionSymbols[e - 1]) {
+                    transitionKeys++;
+                }
+            }
+            if (compiled.nullTransitionIndex[state] < compiled.nullTransitionIndex[state + 1]) {
+                nullTransitionSources++;
+            }
+        }
         return "===== NFA summary =====\n" +
                 "States: " +
-                states.size() +
+                compiled.stateCount() +
                 ", accept states: " +
-                acceptStates.size() +
+                acceptStates +
                 ", transitions: " +
-                transitions.size() +
+                transitionKeys +
                 ", null transitions: " +
-                nullTransitions.size() +
+                nullTransitionSources +
+                ", class transitions: " +
+                compiled.classTransitionCount() +
+                "\n" +
+                "Compiled: " +
+                compiled.stateCount() +
+                " states, " +
+                compiled.transitionCount() +
+                " transitions, " +
+                compiled.classTransitionCount() +
+                " class transitions, " +
+                compiled.nullTransitionCount() +
+                " null transitions, " +
+                (compiled.closureEntryCount() < 0
+                        ? "closures not precomputed"
+                        : compiled.closureEntryCount() + " closure entries") +
+                (counting == null ? "" : ", counters: " + counting.counterCount()) +
+                "\n" +
+                "Engine: " +
+                options.getEngine() +
+                (lazyDFA == null
+                        ? ""
+                        : ", cached DFA states: " + lazyDFA.cachedStates() +
+                        " (" + lazyDFA.cacheBytes() + " of " + options.getLazyDfaCacheBytes() +
+                        " bytes), cache flushes: " + lazyDFA.flushes()) +
+                (options.getEngine() != CompileOptions.Engine.DFA
+                        ? ""
+                        : dfa == null
+                        ? ", DFA exceeds " + options.getDfaStateLimit() + " states, using the NFA"
+                        : ", DFA states: " + dfa.unminimizedStateCount() +
+                        " (" + dfa.stateCount() + " after minimization), symbol classes: " +
+                        dfa.classCount()) +
+                (bitParallel == null
+                        ? ""
+                        : ", bit-parallel positions: " + bitParallel.positionCount()) +
+                (ahoCorasick == null
+                        ? ""
+                        : ", Aho-Corasick words: " + ahoCorasick.wordCount() +
+                        ", states: " + ahoCorasick.stateCount()) +
+                (generated == null
+                        ? ""
+                        : ", generated code: " + generated.codeBytes() + " bytes") +
+                "\n" +
+                "Required literals: " +
+                (prefilter == null ? "none" : prefilter.toString()) +
                 "\n";
     }
 
-    private HashSet<String> followNullTransitions(String state) {
+    private static HashSet<String> followNullTransitions(HashMap<String, HashSet<String>> nullTransitions,
+                                                         String state) {
         HashSet<String> result = new HashSet<>();
         HashSet<String> visited = new HashSet<>();
         Deque<String> candidates = new ArrayDeque<>();
@@ -108,20 +501,549 @@ public class StateMachine {
         return result;
     }
 
-    public boolean run(String input) {
+    public boolean run(CharSequence input) {
+        long workLimit = options.getMatchWorkLimit();
+        return run(input, workLimit == Long.MAX_VALUE ? null : new MatchBudget(workLimit, Long.MAX_VALUE));
+    }
+
+    /*
+     * Same as run(), but gives up with a LimitExceededException once the timeout has passed
+     * or the calling thread is interrupted (its interrupt flag is left set). The clock and
+     * the flag are checked every few thousand units of work, see
+     * CompileOptions.withMatchWorkLimit(), which also applies.
+     */
+    public boolean run(CharSequence input, Duration timeout) {
+        long nanos;
+        try {
+            nanos = timeout.toNanos();
+        } catch (ArithmeticException e) {
+            // hundreds of years; the same as no deadline
+            nanos = Long.MAX_VALUE;
+        }
+        return run(input, new MatchBudget(options.getMatchWorkLimit(), nanos));
+    }
+
+    private boolean run(CharSequence input, MatchBudget budget) {
+        // unless a recording enables the event, this costs a check and the JIT drops the rest
+        MatchEvent event = new MatchEvent();
+        event.begin();
+        boolean matched = budget == null ? runEngine(input) : runEngine(input, budget);
+        if (event.shouldCommit()) {
+            event.pattern = pattern;
+            event.engine = engineName(input.length());
+            event.inputLength = input.length();
+            event.matched = matched;
+            event.commit();
+        }
+        return matched;
+    }
+
+    private boolean runEngine(CharSequence input) {
+        BytecodeMatcher code = generated;
+        if (code == null && codegenThreshold >= 0 && !codegenStarted && ++runs >= codegenThreshold) {
+            startCodegen();
+        }
+        if (prefilter != null && !prefilter.mayMatch(input)) {
+            return false;
+        }
+        if (code != null) {
+            return code.matches(input);
+        }
+        if (ahoCorasick != null) {
+            return ahoCorasick.matches(input);
+        }
+        if (bitParallel != null) {
+            return bitParallel.matches(input);
+        }
+        if (dfa != null) {
+            return dfa.matches(input);
+        }
+        if (lazyDFA != null) {
+            return lazyDFA.matches(input);
+        }
+        if (counting != null) {
+            return counting.matches(input);
+        }
+        if (backtrack && BoundedBacktracker.fits(compiled, input.length())) {
+            return BoundedBacktracker.matches(compiled, input, null);
+        }
+        return compiled.matches(input);
+    }
+
+    /*
+     * run() under a budget. The engines whose work grows with the pattern charge it as they
+     * go; Aho-Corasick stops after as many characters as its longest word and is not
+     * charged, and the generated code is left for the DFA it was made from.
+     */
+    private boolean runEngine(CharSequence input, MatchBudget budget) {
+        // the clock and the interrupt flag are checked before anything else
+        budget.charge(0);
+        if (prefilter != null && !prefilter.mayMatch(input)) {
+            return false;
+        }
+        if (ahoCorasick != null) {
+            return ahoCorasick.matches(input);
+        }
+        if (bitParallel != null) {
+            return bitParallel.matches(input, budget);
+        }
+        DFA d = dfa != null ? dfa : generated != null ? parallelDFA : null;
+        if (d != null) {
+            return d.matches(input, budget);
+        }
+        if (lazyDFA != null) {
+            return lazyDFA.matches(input, budget);
+        }
+        if (counting != null) {
+            return counting.matches(input, budget);
+        }
+        if (backtrack && BoundedBacktracker.fits(compiled, input.length())) {
+            return BoundedBacktracker.matches(compiled, input, budget);
+        }
+        return compiled.matches(input, budget);
+    }
+
+    // the engine run() uses, for MatchEvent
+    private String engineName(int inputLength) {
+        if (generated != null) {
+            return "generated code";
+        }
+        if (ahoCorasick != null) {
+            return "Aho-Corasick";
+        }
+        if (bitParallel != null) {
+            return "bit-parallel";
+        }
+        if (dfa != null) {
+            return "DFA";
+        }
+        if (lazyDFA != null) {
+            return "lazy DFA";
+        }
+        if (backtrack && BoundedBacktracker.fits(compiled, inputLength)) {
+            return "bounded backtracking";
+        }
+        return counting != null ? "NFA with counters" : "NFA";
+    }
+
+    /*
+     * Same result as run(), with counts of what the NFA did on the way (see MatchStats).
+     * The input is always simulated on the NFA, without the prefilter, because its active
+     * sets are what the counts describe; this is slower than run() and meant for finding
+     * out why a pattern is slow, not for matching.
+     */
+    public MatchStats runWithStats(CharSequence input) {
+        return counting != null ? counting.matchesWithStats(input) : compiled.matchesWithStats(input);
+    }
+
+    // number of inputs matched by one task of matchAll()
+    private static final int MATCH_ALL_BATCH = 256;
+
+    // batches of a stream which matchAll() lets wait or run at the same time
+    private static final int MATCH_ALL_PENDING = 4 * Runtime.getRuntime().availableProcessors();
+
+    /*
+     * Runs every input and returns the indices of those which match. The inputs are matched
+     * in batches on the common ForkJoinPool, or on the given executor, which can be any
+     * executor including one that starts a thread per task.
+     */
+    public BitSet matchAll(List<? extends CharSequence> inputs) {
+        return matchAll(inputs, ForkJoinPool.commonPool());
+    }
+
+    public BitSet matchAll(Stream<? extends CharSequence> inputs) {
+        return matchAll(inputs, ForkJoinPool.commonPool());
+    }
+
+    /*
+     * The stream is read in batches as the tasks run, so it is never held in memory at
+     * once: a batch is submitted as soon as it is full, and at most MATCH_ALL_PENDING
+     * batches are waiting or running before the oldest is waited for.
+     */
+    public BitSet matchAll(Stream<? extends CharSequence> inputs, Executor executor) {
+        BitSet result = new BitSet();
+        Deque<CompletableFuture<BitSet>> pending = new ArrayDeque<>();
+        Iterator<? extends CharSequence> it = inputs.iterator();
+        int base = 0;
+        while (it.hasNext()) {
+            List<CharSequence> batch = new ArrayList<>(MATCH_ALL_BATCH);
+            while (batch.size() < MATCH_ALL_BATCH && it.hasNext()) {
+                batch.add(it.next());
+            }
+            int start = base;
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                BitSet matched = new BitSet(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    if (run(batch.get(i))) {
+                        matched.set(start + i);
+                    }
+                }
+                return matched;
+            }, executor));
+            base += batch.size();
+            if (pending.size() >= MATCH_ALL_PENDING) {
+                result.or(join(pending.remove()));
+            }
+        }
+        while (!pending.isEmpty()) {
+            result.or(join(pending.remove()));
+        }
+        return result;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public BitSet matchAll(List<? extends CharSequence> inputs, Executor executor) {
+        List<? extends CharSequence> list = inputs instanceof RandomAccess ? inputs : new ArrayList<>(inputs);
+        // every task writes its own range of the array, and join() makes the writes visible
+        boolean[] matched = new boolean[list.size()];
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int from = 0; from < list.size(); from += MATCH_ALL_BATCH) {
+            int start = from;
+            int end = Math.min(list.size(), from + MATCH_ALL_BATCH);
+            batches.add(CompletableFuture.runAsync(() -> {
+                for (int i = start; i < end; i++) {
+                    matched[i] = run(list.get(i));
+                }
+            }, executor));
+        }
+        join(CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])));
+        BitSet result = new BitSet(matched.length);
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    // inputs are split into chunks of this many characters by runParallel()
+    private static final int PARALLEL_CHUNK_LENGTH = 1 << 20;
+
+    /*
+     * Same result as run(), but a long input is split into chunks which are matched in
+     * parallel on the common ForkJoinPool. Each chunk is turned into the transfer function
+     * of the DFA over it, and the functions are composed. If the DFA exceeds the state limit
+     * of the options, the input is matched by run().
+     */
+    public boolean runParallel(CharSequence input) {
+        return runParallel(input, ForkJoinPool.commonPool());
+    }
+
+    public boolean runParallel(CharSequence input, ForkJoinPool pool) {
+        return runParallel(input, pool, PARALLEL_CHUNK_LENGTH);
+    }
+
+    boolean runParallel(CharSequence input, ForkJoinPool pool, int chunkLength) {
+        if (input.length() <= chunkLength) {
+            return run(input);
+        }
+        if (prefilter != null && !prefilter.mayMatch(input)) {
+            return false;
+        }
+        DFA d = parallelDFA();
+        if (d == null) {
+            return run(input);
+        }
+        return d.matchesParallel(input, pool, chunkLength);
+    }
+
+    // size of the buffer UTF-8 input is decoded into when there is no byte-level DFA
+    private static final int DECODE_CHUNK_LENGTH = 8192;
+
+    /*
+     * Same result as run() on the text the bytes encode in UTF-8, but the bytes are matched
+     * directly by a DFA over them, without decoding. Malformed input never matches. Patterns
+     * with counters, and patterns whose DFA exceeds the state limit of the options, are
+     * matched by decoding the input in small chunks into a stream (see newStream()).
+     */
+    public boolean runUtf8(byte[] input) {
+        return runUtf8(input, 0, input.length);
+    }
+
+    // matches the bytes [offset, offset + length) of the input
+    public boolean runUtf8(byte[] input, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, input.length);
+        Utf8DFA u = utf8DFA();
+        if (u != null) {
+            return u.matches(input, offset, offset + length);
+        }
+        return runDecoding(ByteBuffer.wrap(input, offset, length));
+    }
+
+    // matches the bytes between the position and the limit of a heap or direct buffer; the position is not changed
+    public boolean runUtf8(ByteBuffer input) {
+        Utf8DFA u = utf8DFA();
+        if (u != null) {
+            return u.matches(input);
+        }
+        return runDecoding(input.duplicate());
+    }
+
+    private boolean runDecoding(ByteBuffer input) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate((int) Math.min(DECODE_CHUNK_LENGTH, input.remaining() + 1L));
+        StreamMatcher stream = newStream();
+        CoderResult result;
+        do {
+            result = decoder.decode(input, chars, true);
+            if (result.isError()) {
+                return false;
+            }
+            chars.flip();
+            stream.feed(chars);
+            chars.clear();
+            if (!stream.canMatch()) {
+                return false;
+            }
+        } while (result.isOverflow());
+        return stream.finish();
+    }
+
+    private Utf8DFA utf8DFA() {
+        Utf8DFA u = utf8DFA;
+        if (u == null && !utf8Unavailable) {
+            // expanding the counters would defeat the point of them
+            DFA d = counting == null ? parallelDFA() : null;
+            u = d == null ? null : Utf8DFA.build(d);
+            if (u == null) {
+                utf8Unavailable = true;
+            } else {
+                utf8DFA = u;
+                built(u.estimatedBytes());
+            }
+        }
+        return u;
+    }
+
+    // generates the code on the common pool, so the run which reaches the threshold is not held up
+    private synchronized void startCodegen() {
+        if (!codegenStarted) {
+            codegenStarted = true;
+            codegenTask = CompletableFuture.runAsync(this::generate, ForkJoinPool.commonPool());
+        }
+    }
+
+    // waits for the code generation started by run(), if any; for tests
+    void awaitCodegen() {
+        CompletableFuture<Void> task = codegenTask;
+        if (task != null) {
+            task.join();
+        }
+    }
+
+    /*
+     * Turns the DFA into bytecode for run(), unless it exceeds the state limit of the options
+     * or the code would be too large. The DFA is only kept for runParallel() along with the
+     * code, which run() under a budget leaves to it.
+     */
+    private void generate() {
+        try {
+            DFA d = dfa != null ? dfa : parallelDFA;
+            boolean ownDFA = false;
+            if (d == null && !parallelUnavailable) {
+                d = DFA.build(compiled(), options.getDfaStateLimit());
+                parallelUnavailable = d == null;
+                ownDFA = d != null;
+            }
+            BytecodeMatcher code = d != null ? BytecodeMatcher.compile(d) : null;
+            if (code != null) {
+                if (ownDFA) {
+                    parallelDFA = d;
+                    built(d.estimatedBytes());
+                }
+                generated = code;
+                built(code.estimatedBytes());
+            }
+        } catch (IllegalStateException e) {
+            // the class could not be defined; run() keeps using the other engines
+        }
+    }
+
+    private DFA parallelDFA() {
+        if (dfa != null) {
+            return dfa;
+        }
+        DFA d = parallelDFA;
+        if (d == null && !parallelUnavailable) {
+            d = DFA.build(compiled(), options.getDfaStateLimit());
+            if (d == null) {
+                parallelUnavailable = true;
+            } else {
+                parallelDFA = d;
+                built(d.estimatedBytes());
+            }
+        }
+        return d;
+    }
+
+    /*
+     * Returns a matcher which is fed the input in chunks instead of all at once, see
+     * StreamMatcher.
+     */
+    public StreamMatcher newStream() {
+        if (dfa != null) {
+            return new StreamMatcher(dfa);
+        }
+        if (counting != null) {
+            return new StreamMatcher(counting.start());
+        }
+        return new StreamMatcher(compiled);
+    }
+
+    /*
+     * Matches the whole input like run() and returns where each group of the pattern matched
+     * in it, or null if it does not match. The input is first run by the engines of run(), and
+     * only an input which matches is run again by a Pike VM which records the positions (see
+     * PikeVM). Among several ways to match, the one reported is the one a backtracking
+     * matcher would find first. A machine which was not compiled from the text of a pattern
+     * only reports group 0.
+     */
+    public Captures match(CharSequence input) {
+        long workLimit = options.getMatchWorkLimit();
+        MatchBudget budget = workLimit == Long.MAX_VALUE ? null : new MatchBudget(workLimit, Long.MAX_VALUE);
+        if (!run(input, budget)) {
+            return null;
+        }
+        PikeVM vm = pikeVM();
+        if (vm == null) {
+            return new Captures(new int[]{0, input.length()});
+        }
+        int[] slots = vm.match(input, budget);
+        return slots == null ? null : new Captures(slots);
+    }
+
+    private PikeVM pikeVM() {
+        PikeVM vm = pikeVM;
+        if (vm == null && (pattern != null || postfix != null)) {
+            List<RToken> tokens = pattern != null
+                    ? RegexParser.infixToPostfixWithGroups(RegexParser.tokenize(pattern))
+                    : postfix;
+            int groupCount = 0;
+            for (RToken t : tokens) {
+                groupCount = Math.max(groupCount, t.group);
+            }
+            vm = PikeVM.compile(tokens, groupCount, options.getStateLimit());
+            pikeVM = vm;
+            built(vm.estimatedBytes());
+        }
+        return vm;
+    }
+
+    /*
+     * Returns the leftmost match in the input, preferring the longest one among those that
+     * start at the same position, or null if the pattern does not occur in it.
+     */
+    public Match find(CharSequence input) {
+        return find(input, 0);
+    }
+
+    // like find(input), but only considers matches that start at or after from
+    public Match find(CharSequence input, int from) {
+        return find(input, from, null);
+    }
+
+    private Match find(CharSequence input, int from, Searcher searcher) {
+        if (from < 0 || from > input.length()) {
+            throw new IndexOutOfBoundsException("Invalid start position: " + from);
+        }
+        if (prefilter != null && !prefilter.mayContainMatch(input, from)) {
+            return null;
+        }
+        if (ahoCorasick != null) {
+            return ahoCorasick.find(input, from);
+        }
+        if (counting != null) {
+            CountingFinder cf = countingFinder();
+            if (searcher == null) {
+                return cf.find(input, from);
+            }
+            if (searcher.simulation == null) {
+                searcher.simulation = cf.newSimulation();
+            }
+            return cf.find(input, from, searcher.simulation);
+        }
+        Finder f = finder();
+        if (searcher == null) {
+            return f.find(input, from);
+        }
+        if (searcher.search == null) {
+            searcher.search = f.newSearch();
+        }
+        return f.find(input, from, searcher.search);
+    }
+
+    private Finder finder() {
+        Finder f = finder;
+        if (f == null) {
+            f = new Finder(compiled());
+            finder = f;
+            built(f.estimatedBytes());
+        }
+        return f;
+    }
+
+    private CountingFinder countingFinder() {
+        // expanding the counters would take as much memory as the copies they replace
+        CountingFinder cf = countingFinder;
+        if (cf == null) {
+            cf = new CountingFinder(counting);
+            countingFinder = cf;
+            built(cf.estimatedBytes());
+        }
+        return cf;
+    }
+
+    /*
+     * find() for many inputs on one thread, which keeps the working buffers of the search
+     * between calls instead of allocating them for every input (see Grep). Not thread-safe.
+     */
+    final class Searcher {
+        private Finder.Search search;
+        private CountingNFA.Simulation simulation;
+
+        private Searcher() {
+        }
+
+        Match find(CharSequence input) {
+            return StateMachine.this.find(input, 0, this);
+        }
+    }
+
+    Searcher newSearcher() {
+        return new Searcher();
+    }
+
+    /*
+     * Simulates the String-based form of the NFA directly. This is the original matcher;
+     * it is much slower than run() and is only kept as a reference for debugging and tests.
+     */
+    boolean interpret(String input) {
+        StringForm form = stringForm();
         // if any of the start states have null transitions defined,
         // add them to the working set
         HashSet<String> withNullTransitions = new HashSet<>();
-        for (String startState: startStates) {
-            if (nullTransitions.containsKey(startState)) {
-                withNullTransitions.addAll(followNullTransitions(startState));
+        for (String startState: form.startStates) {
+            if (form.nullTransitions.containsKey(startState)) {
+                withNullTransitions.addAll(followNullTransitions(form.nullTransitions, startState));
             }
         }
 
 //        System.out.print("Start states: ");
-//        startStates.forEach(state -> System.out.print(state + " "));
+//        form.startStates.forEach(state -> System.out.print(state + " "));
 //        System.out.println();
-        HashSet<String> currentStates = new HashSet<>(startStates);
+        HashSet<String> currentStates = new HashSet<>(form.startStates);
         currentStates.addAll(withNullTransitions);
         if(!input.equals("")) {
             for (int i = 0; i < input.length(); i++) {
@@ -135,20 +1057,24 @@ public class StateMachine {
                 char symbol = input.charAt(i);
 //                System.out.print("Current symbol: '" + symbol + "'. ");
                 for (String state : currentStates) {
-                    HashSet<String> states = transitions.get(new Pair(state, symbol));
+                    HashSet<String> states = form.transitions.get(new Pair(state, symbol));
                     if (states != null) {
                         newStates.addAll(states);
                     }
-                    if (anyCharTransitions.containsKey(state)) {
-                        newStates.add(anyCharTransitions.get(state));
+                    if (form.anyCharTransitions.containsKey(state)) {
+                        newStates.add(form.anyCharTransitions.get(state));
+                    }
+                    Map.Entry<CharClass, String> classTransition = form.classTransitions.get(state);
+                    if (classTransition != null && classTransition.getKey().contains(symbol)) {
+                        newStates.add(classTransition.getValue());
                     }
                 }
                 // if any of the current states have null transitions defined,
                 // add them to the current states
                 HashSet<String> tmp = new HashSet<>();
                 for (String state : newStates) {
-                    if (nullTransitions.containsKey(state)) {
-                        tmp.addAll(followNullTransitions(state));
+                    if (form.nullTransitions.containsKey(state)) {
+                        tmp.addAll(followNullTransitions(form.nullTransitions, state));
                     }
                 }
                 newStates.addAll(tmp);
@@ -158,14 +1084,39 @@ public class StateMachine {
 //                System.out.println();
             }
         }
-        currentStates.retainAll(acceptStates);
+        currentStates.retainAll(form.acceptStates);
         boolean result = !currentStates.isEmpty();
         currentStates.clear();
         return result;
     }
 
     public static StateMachine compile(String input) {
-        return NFABuilder.build(RegexParser.infixToPostfix(RegexParser.tokenize(input)));
+        return compile(input, CompileOptions.defaults());
+    }
+
+    /*
+     * Compiled machines are cached in PatternCache.shared(), so compiling the same pattern
+     * with the same options again returns the same machine.
+     */
+    public static StateMachine compile(String input, CompileOptions options) {
+        return PatternCache.shared().get(input, options);
+    }
+
+    // always compiles the pattern, bypassing the cache
+    static StateMachine compileUncached(String input, CompileOptions options) {
+        CompileEvent event = new CompileEvent();
+        event.begin();
+        StateMachine machine = NFABuilder.build(RegexParser.infixToPostfix(RegexParser.tokenize(input)),
+                options, input);
+        if (event.shouldCommit()) {
+            CompiledNFA nfa = machine.counting != null ? machine.counting.nfa : machine.compiled;
+            event.pattern = input;
+            event.engine = options.getEngine().toString();
+            event.nfaStates = nfa.stateCount();
+            event.counters = machine.counting != null ? machine.counting.counterCount() : 0;
+            event.commit();
+        }
+        return machine;
     }
 
 }
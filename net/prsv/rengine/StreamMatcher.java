@@ -0,0 +1,154 @@
+package net.prsv.rengine;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/*
+ * Matches an input which arrives in chunks, such as data read from a socket or a file too
+ * large to hold in memory. Only the active states are kept between calls to feed(), never
+ * the input itself, so memory use does not depend on the length of the input.
+ *
+ * Like StateMachine.run(), the pattern has to match the whole input: isMatch() tells whether
+ * the input fed so far does, and finish() gives the final answer. Once canMatch() returns
+ * false no further input can lead to a match, and feed() returns without looking at it.
+ *
+ * The matcher runs on the DFA if the machine has one and on the NFA otherwise. Instances
+ * are not thread-safe; create one per input with StateMachine.newStream().
+ */
+public final class StreamMatcher {
+
+    // exactly one of dfa, simulation and nfa is set
+    private final DFA dfa;
+    private int dfaState;
+
+    private final CountingNFA.Simulation simulation;
+
+    private final CompiledNFA nfa;
+    private int[] current;
+    private int[] next;
+    private int currentSize;
+    private final int[] marks;
+    private final int[] stack;
+    private int generation = 1;
+
+    private long position;
+    private boolean finished;
+
+    private StreamMatcher(DFA dfa, CountingNFA.Simulation simulation, CompiledNFA nfa) {
+        this.dfa = dfa;
+        this.simulation = simulation;
+        this.nfa = nfa;
+        if (dfa != null) {
+            dfaState = dfa.start();
+        }
+        if (nfa != null) {
+            current = Arrays.copyOf(nfa.startClosure, nfa.stateCount);
+            currentSize = nfa.startClosure.length;
+            next = new int[nfa.stateCount];
+            marks = new int[nfa.stateCount];
+            stack = nfa.newStack();
+        } else {
+            marks = null;
+            stack = null;
+        }
+    }
+
+    StreamMatcher(DFA dfa) {
+        this(dfa, null, null);
+    }
+
+    StreamMatcher(CountingNFA.Simulation simulation) {
+        this(null, simulation, null);
+    }
+
+    StreamMatcher(CompiledNFA nfa) {
+        this(null, null, nfa);
+    }
+
+    public StreamMatcher feed(CharSequence chunk) {
+        return feed(chunk, 0, chunk.length());
+    }
+
+    // feeds the characters [offset, offset + length) of the chunk
+    public StreamMatcher feed(CharSequence chunk, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, chunk.length());
+        checkNotFinished();
+        int end = offset + length;
+        for (int i = offset; i < end && canMatch(); i++) {
+            step(chunk.charAt(i));
+        }
+        position += length;
+        return this;
+    }
+
+    public StreamMatcher feed(char[] chunk, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, chunk.length);
+        checkNotFinished();
+        int end = offset + length;
+        for (int i = offset; i < end && canMatch(); i++) {
+            step(chunk[i]);
+        }
+        position += length;
+        return this;
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("The stream has already been finished");
+        }
+    }
+
+    private void step(char symbol) {
+        if (dfa != null) {
+            dfaState = dfa.next(dfaState, symbol);
+        } else if (simulation != null) {
+            simulation.step(symbol);
+        } else {
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+            int nextSize = nfa.step(current, currentSize, symbol, next, marks, generation, stack);
+            int[] tmp = current;
+            current = next;
+            next = tmp;
+            currentSize = nextSize;
+        }
+    }
+
+    // whether the input fed so far matches the pattern
+    public boolean isMatch() {
+        if (dfa != null) {
+            return dfa.isAccepting(dfaState);
+        }
+        if (simulation != null) {
+            return simulation.accepting();
+        }
+        return nfa.anyAccepting(current, currentSize);
+    }
+
+    // false once no continuation of the input fed so far can match the pattern
+    public boolean canMatch() {
+        if (dfa != null) {
+            return !dfa.isDead(dfaState);
+        }
+        if (simulation != null) {
+            return !simulation.dead();
+        }
+        return currentSize > 0;
+    }
+
+    // number of characters fed so far
+    public long position() {
+        return position;
+    }
+
+    /*
+     * Ends the input and returns whether all of it matches the pattern. The matcher cannot
+     * be fed afterwards.
+     */
+    public boolean finish() {
+        finished = true;
+        return isMatch();
+    }
+}
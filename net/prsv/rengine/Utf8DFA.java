@@ -0,0 +1,291 @@
+package net.prsv.rengine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * DFA over the bytes of UTF-8 encoded input, built from the DFA over its characters, so
+ * byte[] and ByteBuffer input is matched without being decoded first.
+ *
+ * A state is a state of the character DFA together with the part of a UTF-8 sequence
+ * read so far. The states between two characters ("boundary" states) are the states of
+ * the character DFA; the ones inside a sequence hold the payload bits of its leading bytes
+ * and go to a boundary state on its last byte. A four-byte sequence is a supplementary
+ * character, which the character DFA reads as a surrogate pair: its high surrogate is
+ * known after the third byte, so the DFA is stepped there and the state keeps the four
+ * bits that the low surrogate still needs.
+ *
+ * Inner states with the same transitions are merged, so most of them collapse into a few
+ * whenever the pattern treats whole blocks of characters alike. Malformed input (stray
+ * continuation bytes, overlong forms, encoded surrogates, code points past U+10FFFF and
+ * truncated sequences) leads to the dead state or ends inside a sequence, and never
+ * matches.
+ */
+final class Utf8DFA {
+
+    // largest transition table, in entries, the automaton may use
+    private static final int MAX_TABLE_ENTRIES = 1 << 20;
+
+    private static final int DEAD = 0;
+
+    // positions in the input are checked against the dead state once per block of bytes
+    private static final int BLOCK = 64;
+
+    private final int[] table;
+    private final boolean[] accepting;
+    private final int start;
+
+    private Utf8DFA(int[] table, boolean[] accepting, int start) {
+        this.table = table;
+        this.accepting = accepting;
+        this.start = start;
+    }
+
+    // null if the automaton would exceed its table limit
+    static Utf8DFA build(DFA dfa) {
+        if ((long) dfa.stateCount() * 256 > MAX_TABLE_ENTRIES) {
+            return null;
+        }
+        return new Builder(dfa).build();
+    }
+
+    boolean matches(byte[] input, int from, int to) {
+        int state = start;
+        for (int i = from; i < to; ) {
+            int end = Math.min(to, i + BLOCK);
+            for (; i < end; i++) {
+                state = table[(state << 8) | (input[i] & 0xFF)];
+            }
+            if (state == DEAD) {
+                return false;
+            }
+        }
+        return accepting[state];
+    }
+
+    // matches the bytes between the position and the limit of the buffer, which are left unchanged
+    boolean matches(ByteBuffer input) {
+        if (input.hasArray()) {
+            int from = input.arrayOffset() + input.position();
+            return matches(input.array(), from, from + input.remaining());
+        }
+        int state = start;
+        int to = input.limit();
+        for (int i = input.position(); i < to; ) {
+            int end = Math.min(to, i + BLOCK);
+            for (; i < end; i++) {
+                state = table[(state << 8) | (input.get(i) & 0xFF)];
+            }
+            if (state == DEAD) {
+                return false;
+            }
+        }
+        return accepting[state];
+    }
+
+    int stateCount() {
+        return accepting.length;
+    }
+
+    long estimatedBytes() {
+        return 4L * table.length + accepting.length;
+    }
+
+    private static final class Builder {
+
+        private final DFA dfa;
+        private final Alphabet alphabet;
+        // rows of 256 transitions, one per state; row 0 is the dead state
+        private final List<int[]> rows = new ArrayList<>();
+        private final Map<Row, Integer> ids = new HashMap<>();
+        // boundary state of each DFA state, DEAD for the dead one
+        private final int[] boundary;
+        // state after the third byte of a four-byte sequence, by DFA state * 16 + payload bits
+        private final Map<Integer, Integer> lowSurrogate = new HashMap<>();
+        // state before a last byte which leads to the given boundary state whatever it is, or -1
+        private final int[] uniform;
+        private boolean full;
+
+        Builder(DFA dfa) {
+            this.dfa = dfa;
+            this.alphabet = dfa.alphabet();
+            this.boundary = new int[dfa.stateCount()];
+            this.uniform = new int[dfa.stateCount() + 1];
+            Arrays.fill(uniform, -1);
+            rows.add(new int[256]);
+        }
+
+        Utf8DFA build() {
+            int n = dfa.stateCount();
+            // boundary states come first so the rows can refer to each other before they are filled
+            for (int s = 0; s < n; s++) {
+                if (dfa.isDead(s)) {
+                    boundary[s] = DEAD;
+                } else {
+                    boundary[s] = rows.size();
+                    rows.add(null);
+                }
+            }
+            for (int s = 0; s < n && !full; s++) {
+                if (!dfa.isDead(s)) {
+                    rows.set(boundary[s], boundaryRow(s));
+                }
+            }
+            if (full) {
+                return null;
+            }
+            int[] table = new int[rows.size() << 8];
+            boolean[] accepting = new boolean[rows.size()];
+            for (int id = 0; id < rows.size(); id++) {
+                System.arraycopy(rows.get(id), 0, table, id << 8, 256);
+            }
+            for (int s = 0; s < n; s++) {
+                if (!dfa.isDead(s) && dfa.isAccepting(s)) {
+                    accepting[boundary[s]] = true;
+                }
+            }
+            return new Utf8DFA(table, accepting, boundary[dfa.start()]);
+        }
+
+        private int[] boundaryRow(int s) {
+            int[] row = new int[256];
+            for (int b = 0; b < 0x80; b++) {
+                row[b] = boundary[dfa.next(s, (char) b)];
+            }
+            for (int b = 0xC2; b <= 0xDF; b++) {
+                row[b] = lastByte(s, (b & 0x1F) << 6);
+            }
+            for (int b = 0xE0; b <= 0xEF; b++) {
+                row[b] = secondOfThree(s, b & 0x0F);
+            }
+            for (int b = 0xF0; b <= 0xF4; b++) {
+                row[b] = secondOfFour(s, b & 0x07);
+            }
+            return row;
+        }
+
+        // state before the last byte of a sequence whose other bytes give the character bits above the low 6
+        private int lastByte(int s, int high) {
+            int interval = alphabet.intervalOf((char) high);
+            if (interval == alphabet.intervalOf((char) (high | 0x3F))) {
+                // the whole block is in one interval, so in one symbol class
+                int target = boundary[dfa.target(s, alphabet.intervalClass(interval))];
+                if (uniform[target] < 0) {
+                    uniform[target] = intern(continuation(target, 0x80, 0xBF));
+                }
+                return uniform[target];
+            }
+            int[] row = new int[256];
+            for (int b = 0x80; b <= 0xBF; b++) {
+                row[b] = boundary[dfa.next(s, (char) (high | (b & 0x3F)))];
+            }
+            return intern(row);
+        }
+
+        private int secondOfThree(int s, int bits) {
+            // E0 must be followed by A0-BF (no overlong forms), ED by 80-9F (no surrogates)
+            int lo = bits == 0x0 ? 0xA0 : 0x80;
+            int hi = bits == 0xD ? 0x9F : 0xBF;
+            int[] row = new int[256];
+            for (int b = lo; b <= hi && !full; b++) {
+                row[b] = lastByte(s, ((bits << 6) | (b & 0x3F)) << 6);
+            }
+            return intern(row);
+        }
+
+        private int secondOfFour(int s, int bits) {
+            // F0 must be followed by 90-BF (no overlong forms), F4 by 80-8F (nothing past U+10FFFF)
+            int lo = bits == 0 ? 0x90 : 0x80;
+            int hi = bits == 4 ? 0x8F : 0xBF;
+            int[] row = new int[256];
+            for (int b = lo; b <= hi && !full; b++) {
+                row[b] = thirdOfFour(s, (bits << 6) | (b & 0x3F));
+            }
+            return intern(row);
+        }
+
+        // bits are those of the code point from bit 12 up
+        private int thirdOfFour(int s, int bits) {
+            int[] row = new int[256];
+            for (int b = 0x80; b <= 0xBF && !full; b++) {
+                int above10 = (bits << 2) | ((b & 0x3F) >> 4);
+                char high = (char) (Character.MIN_HIGH_SURROGATE + above10 - 0x40);
+                int t = dfa.next(s, high);
+                row[b] = dfa.isDead(t) ? DEAD : fourthOfFour(t, b & 0x0F);
+            }
+            return intern(row);
+        }
+
+        // t is the DFA state after the high surrogate, bits are bits 6-9 of the code point
+        private int fourthOfFour(int t, int bits) {
+            Integer key = t * 16 + bits;
+            Integer id = lowSurrogate.get(key);
+            if (id == null) {
+                id = lastByte(t, Character.MIN_LOW_SURROGATE | (bits << 6));
+                lowSurrogate.put(key, id);
+            }
+            return id;
+        }
+
+        private static int[] continuation(int target, int lo, int hi) {
+            int[] row = new int[256];
+            if (target != DEAD) {
+                Arrays.fill(row, lo, hi + 1, target);
+            }
+            return row;
+        }
+
+        private int intern(int[] row) {
+            Row key = new Row(row);
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = rows.size();
+                if ((long) (id + 1) * 256 > MAX_TABLE_ENTRIES) {
+                    full = true;
+                    return DEAD;
+                }
+                if (key.isEmpty()) {
+                    id = DEAD;
+                } else {
+                    rows.add(row);
+                }
+                ids.put(key, id);
+            }
+            return id;
+        }
+    }
+
+    private static final class Row {
+
+        private final int[] targets;
+        private final int hash;
+
+        Row(int[] targets) {
+            this.targets = targets;
+            this.hash = Arrays.hashCode(targets);
+        }
+
+        boolean isEmpty() {
+            for (int t : targets) {
+                if (t != DEAD) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Row && Arrays.equals(targets, ((Row) o).targets);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
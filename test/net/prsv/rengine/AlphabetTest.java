@@ -0,0 +1,103 @@
+package net.prsv.rengine;
+
+import java.util.Arrays;
+
+public final class AlphabetTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "abc",
+            "[a-cx-z]*",
+            "[a-zA-Z0-9_]+@[a-zA-Z0-9_]+x",
+            "(foo|bar|baz)+",
+            "[^b]*b.",
+            "(a|\u00e9)+[\u00e0-\u00ff\u20ac]*",
+            "[0-9]{3}-[0-9]{4}",
+            "x(ab){60}y|.*c",
+    };
+
+    private AlphabetTest() {
+    }
+
+    private static void check(boolean condition, String message) {
+        assertions++;
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static CompiledNFA nfa(String pattern) {
+        return StateMachine.compileUncached(pattern,
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA)).compiled();
+    }
+
+    private static int[] step(CompiledNFA nfa, int state, char symbol) {
+        int[] next = new int[nfa.stateCount];
+        int size = nfa.step(new int[]{state}, 1, symbol, next, new int[nfa.stateCount], 1, nfa.newStack());
+        int[] result = Arrays.copyOf(next, size);
+        Arrays.sort(result);
+        return result;
+    }
+
+    // every character must lead from every state to the same states as the representative of its class
+    private static void testClassesAreEquivalent() {
+        for (String pattern : PATTERNS) {
+            CompiledNFA nfa = nfa(pattern);
+            Alphabet alphabet = Alphabet.of(nfa);
+            for (int state = 0; state < nfa.stateCount; state++) {
+                int[][] expected = new int[alphabet.classCount()][];
+                for (int symbolClass = 0; symbolClass < alphabet.classCount(); symbolClass++) {
+                    expected[symbolClass] = step(nfa, state, alphabet.representative(symbolClass));
+                }
+                for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                    int symbolClass = alphabet.classOf((char) c);
+                    if (!Arrays.equals(step(nfa, state, (char) c), expected[symbolClass])) {
+                        check(false, "In " + pattern + ", character " + c + " differs from its class "
+                                + symbolClass + " from state " + state);
+                    }
+                }
+                assertions++;
+            }
+            // the intervals cover the whole range in order and agree with classOf()
+            int next = 0;
+            for (int interval = 0; interval < alphabet.intervalCount(); interval++) {
+                char start = alphabet.intervalStart(interval);
+                char end = alphabet.intervalEnd(interval);
+                check(start == next && end >= start && alphabet.intervalOf(start) == interval
+                                && alphabet.classOf(end) == alphabet.intervalClass(interval),
+                        "Inconsistent interval " + interval + " of " + pattern);
+                next = end + 1;
+            }
+            check(next == Character.MAX_VALUE + 1, "The intervals of " + pattern + " do not cover the range");
+        }
+    }
+
+    private static void testIntervalsAreMerged() {
+        int[][] expected = {
+                // pattern index, classes
+                {0, 4},
+                {1, 2},
+                {2, 4},
+                {3, 7},
+                {6, 3},
+        };
+        for (int[] entry : expected) {
+            String pattern = PATTERNS[entry[0]];
+            int classes = Alphabet.of(nfa(pattern)).classCount();
+            check(classes == entry[1], pattern + " has " + classes + " symbol classes, expected " + entry[1]);
+        }
+        // characters in no literal or class share one class, wherever they are
+        Alphabet alphabet = Alphabet.of(nfa("a|m|z"));
+        check(alphabet.classOf('b') == alphabet.classOf('y') && alphabet.classOf('b') == alphabet.classOf('\u20ac')
+                        && alphabet.classOf('a') != alphabet.classOf('m'),
+                "Expected the characters between the literals to share a class");
+    }
+
+    public static void main(String[] args) {
+        testClassesAreEquivalent();
+        testIntervalsAreMerged();
+
+        System.out.println("AlphabetTest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,155 @@
+package net.prsv.rengine;
+
+import java.time.Duration;
+import java.util.Random;
+
+public final class BoundedBacktrackerTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "abc",
+            "(a|b)*abb",
+            "(a*)*b",
+            "(a?){3}a{3}",
+            "(ab|a)*(b|c)*c+",
+            "[a-b]+.c?",
+            "[^a]*(ab|ba){1-2}",
+            ".*a.*b.*c",
+            "(a|b|c){2+}|c",
+    };
+
+    private BoundedBacktrackerTest() {
+    }
+
+    private static void check(boolean condition, String message) {
+        assertions++;
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static CompiledNFA nfa(String pattern) {
+        return StateMachine.compileUncached(pattern,
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA)).compiled();
+    }
+
+    private static String randomAtom(Random random, int depth) {
+        switch (depth > 2 ? random.nextInt(3) : random.nextInt(5)) {
+            case 0:
+                return String.valueOf("abc".charAt(random.nextInt(3)));
+            case 1:
+                return random.nextBoolean() ? "[ab]" : ".";
+            case 2:
+                return "[^b]";
+            case 3:
+                return "(" + randomPattern(random, depth + 1) + ")";
+            default:
+                return "(" + randomPattern(random, depth + 1) + "|" + randomPattern(random, depth + 1) + ")";
+        }
+    }
+
+    private static String randomPattern(Random random, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 1 + random.nextInt(3); k > 0; k--) {
+            sb.append(randomAtom(random, depth));
+            switch (random.nextInt(7)) {
+                case 0:
+                    sb.append('*');
+                    break;
+                case 1:
+                    sb.append('+');
+                    break;
+                case 2:
+                    sb.append('?');
+                    break;
+                case 3:
+                    sb.append("{1-3}");
+                    break;
+                default:
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void checkAgainstNFA(String pattern, CompiledNFA nfa, String input) {
+        boolean expected = nfa.matches(input);
+        check(BoundedBacktracker.matches(nfa, input, null) == expected,
+                "Backtracking " + pattern + " on '" + input + "' disagrees with the NFA, expected " + expected);
+    }
+
+    private static void testKnownPatterns() {
+        for (String pattern : PATTERNS) {
+            CompiledNFA nfa = nfa(pattern);
+            // every input over the alphabet up to six characters
+            for (int length = 0; length <= 6; length++) {
+                int count = 1;
+                for (int i = 0; i < length; i++) {
+                    count *= 4;
+                }
+                for (int n = 0; n < count; n++) {
+                    char[] input = new char[length];
+                    for (int i = 0, m = n; i < length; i++, m /= 4) {
+                        input[i] = "abcx".charAt(m % 4);
+                    }
+                    checkAgainstNFA(pattern, nfa, new String(input));
+                }
+            }
+        }
+    }
+
+    private static void testRandomPatterns() {
+        Random random = new Random(25);
+        for (int n = 0; n < 3000; n++) {
+            String pattern = randomPattern(random, 0);
+            CompiledNFA nfa = nfa(pattern);
+            for (int k = 0; k < 30; k++) {
+                StringBuilder input = new StringBuilder();
+                for (int i = random.nextInt(12); i > 0; i--) {
+                    input.append("abc".charAt(random.nextInt(3)));
+                }
+                if (BoundedBacktracker.fits(nfa, input.length())) {
+                    checkAgainstNFA(pattern, nfa, input.toString());
+                }
+            }
+        }
+    }
+
+    private static void testAutoEngine() {
+        // the NFA is too large for a long input, which run() then simulates as before
+        String pattern = "(a|b)*a(a|b){30}c";
+        CompiledNFA nfa = nfa(pattern);
+        int longest = BoundedBacktracker.MAX_VISITED_BITS / nfa.stateCount - 1;
+        check(BoundedBacktracker.fits(nfa, longest) && !BoundedBacktracker.fits(nfa, longest + 1),
+                "Unexpected threshold for " + pattern + " with " + nfa.stateCount + " states");
+        // too many positions for the bit-parallel automaton, which would take these inputs first
+        StateMachine auto = StateMachine.compileUncached(pattern,
+                CompileOptions.defaults().withCodegenThreshold(-1));
+        for (int length : new int[]{longest - 1, longest, longest + 1, 4 * longest}) {
+            String prefix = "ab".repeat(length).substring(0, length - 32);
+            String matching = prefix + "a" + "ba".repeat(15) + "c";
+            String failing = prefix + "b" + "ba".repeat(15) + "c";
+            check(auto.run(matching) && !auto.run(failing) && auto.run(matching, Duration.ofHours(1)),
+                    "Unexpected result of run() on an input of " + length + " characters");
+        }
+        // the work of the search is charged to the budget
+        StateMachine tight = StateMachine.compileUncached(pattern,
+                CompileOptions.defaults().withCodegenThreshold(-1).withMatchWorkLimit(10));
+        assertions++;
+        try {
+            tight.run("ab".repeat(longest / 2 - 16) + "a".repeat(31) + "c");
+            throw new AssertionError("Expected the work limit to stop the search");
+        } catch (LimitExceededException e) {
+            // Expected.
+        }
+    }
+
+    public static void main(String[] args) {
+        testKnownPatterns();
+        testRandomPatterns();
+        testAutoEngine();
+
+        System.out.println("BoundedBacktrackerTest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,120 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class BytecodeMatcherTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "a",
+            "(a|b)*c",
+            "[a-c]+b",
+            "(ab|c){1-3}x?",
+            "[^b]*",
+            ".*ab.*",
+            "a?b?c?",
+            "(a|\u00e9)+\u20ac*",
+            "[^\u00e9-\u20ac]c",
+            "x*",
+            "(a|b|c|x|y)*(ab|ac|ca|xy)(a|b)?",
+    };
+
+    private static final String SYMBOLS = "abcxy\u00e9\u20ac";
+
+    private BytecodeMatcherTest() {
+    }
+
+    private static List<String> allInputs(int maxLength) {
+        List<String> inputs = new ArrayList<>();
+        inputs.add("");
+        for (int from = 0; from < inputs.size(); from++) {
+            String input = inputs.get(from);
+            if (input.length() < maxLength) {
+                for (int i = 0; i < SYMBOLS.length(); i++) {
+                    inputs.add(input + SYMBOLS.charAt(i));
+                }
+            }
+        }
+        return inputs;
+    }
+
+    private static void testGeneratedCodeAgreesWithDFA() {
+        List<String> inputs = allInputs(5);
+        for (String pattern : PATTERNS) {
+            CompiledNFA nfa = StateMachine.compileUncached(pattern,
+                    CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA)).compiled();
+            DFA dfa = DFA.build(nfa, CompileOptions.DEFAULT_DFA_STATE_LIMIT);
+            BytecodeMatcher code = BytecodeMatcher.compile(dfa);
+            assertions++;
+            if (code == null || code.codeBytes() <= 0) {
+                throw new AssertionError("No code was generated for " + pattern);
+            }
+            for (String input : inputs) {
+                assertions++;
+                if (code.matches(input) != dfa.matches(input)) {
+                    throw new AssertionError("Generated code for " + pattern + " disagrees with the DFA on '"
+                            + input + "'");
+                }
+            }
+        }
+    }
+
+    private static void testLargeDFAIsNotGenerated() {
+        // every state compares the character with many ranges
+        StringBuilder pattern = new StringBuilder("(");
+        for (int i = 0; i < 400; i++) {
+            pattern.append(i == 0 ? "" : "|").append((char) ('\u0100' + 2 * i)).append("a{0-9}");
+        }
+        pattern.append(")*");
+        CompiledNFA nfa = StateMachine.compileUncached(pattern.toString(),
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA)).compiled();
+        DFA dfa = DFA.build(nfa, CompileOptions.DEFAULT_DFA_STATE_LIMIT);
+        assertions++;
+        if (dfa == null || BytecodeMatcher.compile(dfa) != null) {
+            throw new AssertionError("Expected the code of a large DFA to be refused");
+        }
+    }
+
+    private static void testThreshold() {
+        List<String> inputs = allInputs(4);
+        for (String pattern : PATTERNS) {
+            StateMachine reference = StateMachine.compileUncached(pattern,
+                    CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA));
+            StateMachine immediate = StateMachine.compileUncached(pattern,
+                    CompileOptions.defaults().withCodegenThreshold(0));
+            StateMachine later = StateMachine.compileUncached(pattern,
+                    CompileOptions.defaults().withCodegenThreshold(100));
+            StateMachine never = StateMachine.compileUncached(pattern,
+                    CompileOptions.defaults().withCodegenThreshold(-1));
+            assertions++;
+            if (!immediate.summary().contains("generated code")
+                    || later.summary().contains("generated code")) {
+                throw new AssertionError("Unexpected code generation for " + pattern);
+            }
+            for (String input : inputs) {
+                boolean expected = reference.run(input);
+                assertions++;
+                if (immediate.run(input) != expected || later.run(input) != expected
+                        || never.run(input) != expected) {
+                    throw new AssertionError(pattern + " disagrees with the NFA on '" + input + "'");
+                }
+            }
+            // the code is generated on the common pool after the threshold
+            later.awaitCodegen();
+            assertions++;
+            if (!later.summary().contains("generated code") || never.summary().contains("generated code")) {
+                throw new AssertionError("Unexpected code generation after the runs of " + pattern);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        testGeneratedCodeAgreesWithDFA();
+        testLargeDFAIsNotGenerated();
+        testThreshold();
+
+        System.out.println("BytecodeMatcherTest passed (" + assertions + " assertions)");
+    }
+}
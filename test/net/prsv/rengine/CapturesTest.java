@@ -0,0 +1,295 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public final class CapturesTest {
+
+    private static int assertions;
+
+    private CapturesTest() {
+    }
+
+    private static void check(boolean condition, String message) {
+        assertions++;
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /*
+     * Reference matcher for the patterns of randomPattern(): tries the ways to match in
+     * priority order by backtracking, putting back the groups of every attempt which fails.
+     * java.util.regex cannot serve, as it keeps the groups of abandoned iterations.
+     */
+    private static final class Backtracker {
+
+        private interface Next {
+            boolean at(int position);
+        }
+
+        private interface Node {
+            boolean match(int position, Next next);
+        }
+
+        private final String pattern;
+        private final String input;
+        private int index;
+        private int groupCount;
+        private int[] slots;
+
+        private Backtracker(String pattern, String input) {
+            this.pattern = pattern;
+            this.input = input;
+        }
+
+        // the group positions of the match of the whole input, or null
+        static int[] match(String pattern, String input) {
+            Backtracker b = new Backtracker(pattern, input);
+            Node root = b.alternation();
+            b.slots = new int[2 * (b.groupCount + 1)];
+            Arrays.fill(b.slots, -1);
+            if (!root.match(0, position -> position == input.length())) {
+                return null;
+            }
+            b.slots[0] = 0;
+            b.slots[1] = input.length();
+            return b.slots;
+        }
+
+        private Node alternation() {
+            Node left = sequence();
+            if (index < pattern.length() && pattern.charAt(index) == '|') {
+                index++;
+                Node right = alternation();
+                return (position, next) -> left.match(position, next) || right.match(position, next);
+            }
+            return left;
+        }
+
+        private Node sequence() {
+            List<Node> nodes = new ArrayList<>();
+            while (index < pattern.length() && pattern.charAt(index) != '|' && pattern.charAt(index) != ')') {
+                nodes.add(repetition(atom()));
+            }
+            return (position, next) -> sequence(nodes, 0, position, next);
+        }
+
+        private static boolean sequence(List<Node> nodes, int from, int position, Next next) {
+            if (from == nodes.size()) {
+                return next.at(position);
+            }
+            return nodes.get(from).match(position, p -> sequence(nodes, from + 1, p, next));
+        }
+
+        private Node atom() {
+            char c = pattern.charAt(index++);
+            if (c == '(') {
+                int group = ++groupCount;
+                Node body = alternation();
+                index++;
+                return (position, next) -> body.match(position, end -> {
+                    int oldStart = slots[2 * group];
+                    int oldEnd = slots[2 * group + 1];
+                    slots[2 * group] = position;
+                    slots[2 * group + 1] = end;
+                    if (next.at(end)) {
+                        return true;
+                    }
+                    slots[2 * group] = oldStart;
+                    slots[2 * group + 1] = oldEnd;
+                    return false;
+                });
+            }
+            String set;
+            if (c == '[') {
+                int close = pattern.indexOf(']', index);
+                set = pattern.substring(index, close);
+                index = close + 1;
+            } else {
+                set = c == '.' ? null : String.valueOf(c);
+            }
+            return (position, next) -> position < input.length()
+                    && (set == null || set.indexOf(input.charAt(position)) >= 0) && next.at(position + 1);
+        }
+
+        private Node repetition(Node atom) {
+            if (index == pattern.length()) {
+                return atom;
+            }
+            int min;
+            int max;
+            switch (pattern.charAt(index)) {
+                case '*':
+                    min = 0;
+                    max = -1;
+                    break;
+                case '+':
+                    min = 1;
+                    max = -1;
+                    break;
+                case '?':
+                    min = 0;
+                    max = 1;
+                    break;
+                case '{':
+                    int close = pattern.indexOf('}', index);
+                    String bounds = pattern.substring(index + 1, close);
+                    if (bounds.endsWith("+")) {
+                        min = Integer.parseInt(bounds.substring(0, bounds.length() - 1));
+                        max = -1;
+                    } else {
+                        min = Integer.parseInt(bounds.substring(0, bounds.indexOf('-')));
+                        max = Integer.parseInt(bounds.substring(bounds.indexOf('-') + 1));
+                    }
+                    index = close;
+                    break;
+                default:
+                    return atom;
+            }
+            index++;
+            return (position, next) -> repeat(atom, min, max, 0, position, next);
+        }
+
+        // the atom never matches the empty string, so the recursion ends
+        private static boolean repeat(Node atom, int min, int max, int count, int position, Next next) {
+            if (count < min) {
+                return atom.match(position, p -> repeat(atom, min, max, count + 1, p, next));
+            }
+            return ((max < 0 || count < max) && atom.match(position, p -> repeat(atom, min, max, count + 1, p, next)))
+                    || next.at(position);
+        }
+    }
+
+    /*
+     * An atom which cannot match the empty string, so that repetitions always consume input
+     * and the reference matcher needs no special case for empty iterations.
+     */
+    private static String randomAtom(Random random, int depth) {
+        switch (depth > 2 ? random.nextInt(3) : random.nextInt(6)) {
+            case 0:
+                return String.valueOf("abc".charAt(random.nextInt(3)));
+            case 1:
+                return random.nextBoolean() ? "[ab]" : ".";
+            case 2:
+                return "c";
+            case 3:
+                return "(" + randomPattern(random, depth + 1, true) + ")";
+            case 4:
+                return "(" + randomAtom(random, depth + 1) + "|" + randomPattern(random, depth + 1, true) + ")";
+            default:
+                return "(" + randomAtom(random, depth + 1) + randomAtom(random, depth + 1) + ")";
+        }
+    }
+
+    private static String randomPattern(Random random, int depth, boolean nonEmpty) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 1 + random.nextInt(3); k > 0; k--) {
+            String atom = randomAtom(random, depth);
+            // the first atom is never optional in a pattern which must not match the empty string
+            switch (nonEmpty && sb.length() == 0 ? 5 : random.nextInt(8)) {
+                case 0:
+                    atom += "*";
+                    break;
+                case 1:
+                    atom += "+";
+                    break;
+                case 2:
+                    atom += "?";
+                    break;
+                case 3:
+                    atom += "{1-2}";
+                    break;
+                case 4:
+                    atom += "{2+}";
+                    break;
+                default:
+                    break;
+            }
+            sb.append(atom);
+        }
+        return sb.toString();
+    }
+
+    private static void checkAgainstBacktracking(String pattern, String input) {
+        Captures captures = StateMachine.compile(pattern).match(input);
+        int[] expected = Backtracker.match(pattern, input);
+        if (expected == null) {
+            check(captures == null, pattern + " should not match '" + input + "', got " + captures);
+            return;
+        }
+        check(captures != null && captures.equals(new Captures(expected)), "The groups of " + pattern + " on '"
+                + input + "' are " + captures + ", expected " + new Captures(expected));
+    }
+
+    private static void testAgainstBacktracking() {
+        Random random = new Random(24);
+        for (int n = 0; n < 1500; n++) {
+            String pattern = randomPattern(random, 0, false);
+            for (int k = 0; k < 40; k++) {
+                StringBuilder input = new StringBuilder();
+                for (int i = random.nextInt(10); i > 0; i--) {
+                    input.append("abc".charAt(random.nextInt(3)));
+                }
+                checkAgainstBacktracking(pattern, input.toString());
+            }
+        }
+    }
+
+    private static void testKnownCaptures() {
+        Captures date = StateMachine.compile("([0-9]{4})-([0-9]{2})-([0-9]{2})").match("2026-10-18");
+        check(date.groupCount() == 3 && date.group("2026-10-18", 1).equals("2026")
+                        && date.group("2026-10-18", 2).equals("10") && date.group(3).equals(new Match(8, 10)),
+                "Unexpected date fields: " + date);
+        // a repeated group reports its last iteration, and a group which was not used is absent
+        Captures repeated = StateMachine.compile("(ab|c)*(x)?").match("abcab");
+        check(repeated.group(1).equals(new Match(3, 5)) && repeated.group(2) == null && repeated.start(2) == -1,
+                "Unexpected repeated group: " + repeated);
+        // greedy quantifiers take as much as they can
+        Captures greedy = StateMachine.compile("(a*)(a*)").match("aaa");
+        check(greedy.group(1).equals(new Match(0, 3)) && greedy.group(2).equals(new Match(3, 3)),
+                "Unexpected greedy groups: " + greedy);
+        check(StateMachine.compile("(a|b)c").match("ab") == null, "Expected no captures without a match");
+        // a large quantifier is matched with a counter by run() and expanded by match()
+        String input = "x" + "ab".repeat(5000) + "y";
+        Captures counted = StateMachine.compile("x((a)b){5000}y").match(input);
+        check(counted.group(1).equals(new Match(9999, 10001)) && counted.group(2).equals(new Match(9999, 10000)),
+                "Unexpected groups of a large quantifier: " + counted);
+        // machines built from a token stream without its text only know group 0
+        Captures tokens = NFABuilder.build(RegexParser.infixToPostfix(RegexParser.tokenize("(a)b"))).match("ab");
+        check(tokens.groupCount() == 0 && tokens.group(0).equals(new Match(0, 2)),
+                "Unexpected groups of a machine built from tokens: " + tokens);
+        assertions++;
+        try {
+            date.start(4);
+            throw new AssertionError("Expected a missing group to be rejected");
+        } catch (IndexOutOfBoundsException expected) {
+            // Expected.
+        }
+    }
+
+    private static void testPostfixGroups() {
+        String postfix = RegexParser.infixToPostfixWithGroups(RegexParser.tokenize("(a(b))*|c")).toString();
+        int groups = 0;
+        for (RToken t : RegexParser.infixToPostfixWithGroups(RegexParser.tokenize("(a(b))*|c"))) {
+            if (t.type == RToken.RTokenType.GROUP) {
+                groups = groups * 10 + t.group;
+            }
+        }
+        // the inner group closes first
+        check(groups == 21, "Unexpected GROUP tokens in " + postfix);
+        for (RToken t : RegexParser.infixToPostfix(RegexParser.tokenize("(a(b))*|c"))) {
+            check(t.type != RToken.RTokenType.GROUP, "infixToPostfix() produced a GROUP token");
+        }
+    }
+
+    public static void main(String[] args) {
+        testAgainstBacktracking();
+        testKnownCaptures();
+        testPostfixGroups();
+
+        System.out.println("CapturesTest passed (" + assertions + " assertions)");
+    }
+}
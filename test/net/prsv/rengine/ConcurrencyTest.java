@@ -0,0 +1,262 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+public final class ConcurrencyTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "(a|b)*c",
+            "[a-c]+b",
+            "(ab|c){1-3}x?",
+            "x(ab){5000}y|.*c",
+            "ab|abc|ca",
+    };
+
+    private static final CompileOptions[] OPTIONS = {
+            CompileOptions.defaults(),
+            CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA),
+            CompileOptions.defaults().withEngine(CompileOptions.Engine.LAZY_DFA)
+                    .withLazyDfaCacheBytes(4096),
+            CompileOptions.defaults().withEngine(CompileOptions.Engine.DFA),
+    };
+
+    private ConcurrencyTest() {
+    }
+
+    private static List<String> randomInputs(Random random, int count) {
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int k = random.nextInt(12); k > 0; k--) {
+                input.append("abcxy".charAt(random.nextInt(5)));
+            }
+            inputs.add(input.toString());
+        }
+        return inputs;
+    }
+
+    private static void testSharedMachine() throws Exception {
+        List<String> inputs = randomInputs(new Random(16), 4000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (CompileOptions options : OPTIONS) {
+                for (String pattern : PATTERNS) {
+                    StateMachine reference = StateMachine.compile(pattern, options);
+                    boolean[] expectedRuns = new boolean[inputs.size()];
+                    Match[] expectedFinds = new Match[inputs.size()];
+                    for (int i = 0; i < inputs.size(); i++) {
+                        expectedRuns[i] = reference.run(inputs.get(i));
+                        expectedFinds[i] = reference.find(inputs.get(i));
+                    }
+                    // a fresh machine, so the threads race to build its lazy parts
+                    StateMachine shared = StateMachine.compileUncached(pattern, options);
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int t = 0; t < 8; t++) {
+                        int offset = t * 500;
+                        futures.add(executor.submit(() -> {
+                            for (int n = 0; n < inputs.size(); n++) {
+                                int i = (n + offset) % inputs.size();
+                                Match found = shared.find(inputs.get(i));
+                                if (shared.run(inputs.get(i)) != expectedRuns[i]
+                                        || (found == null ? expectedFinds[i] != null : !found.equals(expectedFinds[i]))) {
+                                    throw new AssertionError("Shared machine for " + pattern + " with "
+                                            + options + " disagrees on '" + inputs.get(i) + "'");
+                                }
+                            }
+                            return null;
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        assertions++;
+                        future.get();
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void testMatchAll() {
+        List<String> inputs = randomInputs(new Random(17), 3000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (String pattern : PATTERNS) {
+                StateMachine machine = StateMachine.compile(pattern);
+                BitSet expected = new BitSet();
+                for (int i = 0; i < inputs.size(); i++) {
+                    if (machine.run(inputs.get(i))) {
+                        expected.set(i);
+                    }
+                }
+                BitSet[] results = {
+                        machine.matchAll(inputs),
+                        machine.matchAll(new LinkedList<>(inputs)),
+                        machine.matchAll(inputs.stream()),
+                        machine.matchAll(inputs, executor),
+                        machine.matchAll(inputs.stream(), Runnable::run),
+                        machine.matchAll(inputs.stream(), executor),
+                };
+                for (BitSet result : results) {
+                    assertions++;
+                    if (!expected.equals(result)) {
+                        throw new AssertionError("matchAll(" + pattern + ") returned " + result.cardinality()
+                                + " matches, expected " + expected.cardinality());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertions++;
+        if (!StateMachine.compile("a").matchAll(List.of()).isEmpty()) {
+            throw new AssertionError("Expected no matches without inputs");
+        }
+        List<String> withNull = new ArrayList<>(List.of("a", "b"));
+        withNull.add(null);
+        assertions++;
+        try {
+            StateMachine.compile("a").matchAll(withNull);
+            throw new AssertionError("Expected a null input to be rejected");
+        } catch (NullPointerException expected) {
+            // Expected.
+        }
+    }
+
+    // a stream is matched while it is read, not collected first
+    private static void testMatchAllReadsStreamLazily() {
+        StateMachine machine = StateMachine.compile("(a|b)*c");
+        AtomicInteger produced = new AtomicInteger();
+        AtomicInteger producedAtFirstTask = new AtomicInteger(-1);
+        Executor executor = task -> {
+            producedAtFirstTask.compareAndSet(-1, produced.get());
+            task.run();
+        };
+        BitSet result = machine.matchAll(IntStream.range(0, 100_000)
+                .mapToObj(i -> {
+                    produced.incrementAndGet();
+                    return i % 3 == 0 ? "abc" : "abx";
+                }), executor);
+        assertions++;
+        if (producedAtFirstTask.get() < 0 || producedAtFirstTask.get() >= 100_000) {
+            throw new AssertionError("Expected the first batch to run before the stream was read: "
+                    + producedAtFirstTask.get());
+        }
+        assertions++;
+        if (result.cardinality() != 33_334 || !result.get(99_999) || result.get(99_998)) {
+            throw new AssertionError("Unexpected matches: " + result.cardinality());
+        }
+    }
+
+    private static void testSharedLazyDFA() throws Exception {
+        List<String> inputs = randomInputs(new Random(18), 3000);
+        CompileOptions small = CompileOptions.defaults().withLazyDfaCacheBytes(4096);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // a set whose cache is flushed over and over while the threads share it
+            RegexSet set = RegexSet.compile(List.of(PATTERNS), small);
+            BitSet[] expected = new BitSet[inputs.size()];
+            for (int i = 0; i < inputs.size(); i++) {
+                expected[i] = RegexSet.compile(List.of(PATTERNS)).matches(inputs.get(i));
+            }
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int offset = t * 300;
+                futures.add(executor.submit(() -> {
+                    for (int n = 0; n < inputs.size(); n++) {
+                        int i = (n + offset) % inputs.size();
+                        if (!set.matches(inputs.get(i)).equals(expected[i])
+                                || set.matchesAny(inputs.get(i)) != !expected[i].isEmpty()) {
+                            throw new AssertionError("Shared set disagrees on '" + inputs.get(i) + "'");
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                assertions++;
+                future.get();
+            }
+            for (String pattern : PATTERNS) {
+                StateMachine machine = StateMachine.compileUncached(pattern,
+                        small.withEngine(CompileOptions.Engine.LAZY_DFA));
+                BitSet matched = new BitSet();
+                for (int i = 0; i < inputs.size(); i++) {
+                    if (StateMachine.compile(pattern).run(inputs.get(i))) {
+                        matched.set(i);
+                    }
+                }
+                assertions++;
+                if (!machine.matchAll(inputs, executor).equals(matched)) {
+                    throw new AssertionError("matchAll(" + pattern + ") on the lazy DFA disagrees");
+                }
+            }
+            // once the states are cached, matching takes no lock, so it goes on while the lock is held
+            CompiledNFA nfa = StateMachine.compileUncached("(a|b)*c", CompileOptions.defaults()
+                    .withEngine(CompileOptions.Engine.NFA)).compiled();
+            LazyDFA lazyDFA = new LazyDFA(nfa, CompileOptions.DEFAULT_LAZY_DFA_CACHE_BYTES);
+            for (String input : inputs) {
+                lazyDFA.matches(input);
+            }
+            synchronized (lazyDFA) {
+                Future<?> future = executor.submit(() -> {
+                    for (String input : inputs) {
+                        if (lazyDFA.matches(input) != nfa.matches(input)) {
+                            throw new AssertionError("The lazy DFA disagrees on '" + input + "'");
+                        }
+                    }
+                    return null;
+                });
+                assertions++;
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void testHandedOverMapsAreCopied() {
+        HashSet<String> states = new HashSet<>(List.of("q0", "q1"));
+        HashSet<String> startStates = new HashSet<>(List.of("q0"));
+        HashSet<String> acceptStates = new HashSet<>(List.of("q1"));
+        HashMap<Pair, HashSet<String>> transitions = new HashMap<>();
+        transitions.put(new Pair("q0", 'a'), new HashSet<>(List.of("q1")));
+        HashMap<String, HashSet<String>> nullTransitions = new HashMap<>();
+        StateMachine machine = new StateMachine(states, startStates, acceptStates,
+                transitions, nullTransitions, new HashMap<>());
+        String config = machine.config();
+        transitions.get(new Pair("q0", 'a')).add("q0");
+        transitions.put(new Pair("q1", 'b'), new HashSet<>(List.of("q1")));
+        acceptStates.add("q0");
+        assertions++;
+        if (!machine.config().equals(config) || !machine.interpret("a") || machine.interpret("")
+                || machine.interpret("ab") || machine.run("ab")) {
+            throw new AssertionError("Changes to the maps leaked into the machine");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        testSharedMachine();
+        testMatchAll();
+        testMatchAllReadsStreamLazily();
+        testSharedLazyDFA();
+        testHandedOverMapsAreCopied();
+
+        System.out.println("ConcurrencyTest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,57 @@
+package net.prsv.rengine;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+public final class CountingNFATest {
+
+    private static int assertions;
+
+    private CountingNFATest() {
+    }
+
+    // buffers kept per thread or in a static field would keep a dropped machine alive
+    private static void testKeepsNoBuffersOutsideTheCall() {
+        for (Class<?> type : new Class<?>[]{CountingNFA.class, CountingNFA.Simulation.class, CountingFinder.class}) {
+            for (Field field : type.getDeclaredFields()) {
+                assertions++;
+                if (ThreadLocal.class.isAssignableFrom(field.getType())) {
+                    throw new AssertionError("Unexpected ThreadLocal field " + type.getSimpleName()
+                            + "." + field.getName());
+                }
+                assertions++;
+                if (Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+                    throw new AssertionError("Unexpected static field " + type.getSimpleName()
+                            + "." + field.getName());
+                }
+            }
+        }
+    }
+
+    private static void testMatchesUseFreshBuffers() {
+        StateMachine machine = StateMachine.compileUncached("(ab){1-5000}",
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA));
+        assertions++;
+        if (!machine.summary().contains("counters")) {
+            throw new AssertionError("Expected counters: " + machine.summary());
+        }
+        // a match left over from the previous call must not leak into the next one
+        String[] inputs = {"abab", "aba", "", "ab".repeat(5000), "ab".repeat(5001), "ab"};
+        boolean[] expected = {true, false, false, true, false, true};
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < inputs.length; i++) {
+                assertions++;
+                if (machine.run(inputs[i]) != expected[i]) {
+                    throw new AssertionError("Unexpected result for input of length " + inputs[i].length());
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        testKeepsNoBuffersOutsideTheCall();
+        testMatchesUseFreshBuffers();
+
+        System.out.println("CountingNFATest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,346 @@
+package net.prsv.rengine;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public final class EngineEquivalenceTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "a",
+            "abc",
+            "a|b",
+            "ab*c",
+            "ab+c",
+            "ab?c",
+            "(a|b)*c",
+            "(a|b|c)*a{2-3}",
+            "(ab|c){1-3}",
+            "(a?){2-3}",
+            "(a*)*b",
+            "(a|b)?b*",
+            ".b.",
+            ".*a.*",
+            "[a-c]+b",
+            "[ab]{2+}c?",
+            "[^a-b\u00e9]x*",
+            "(a{2}|b){0-2}",
+            "x(ab){0}y",
+    };
+
+    private EngineEquivalenceTest() {
+    }
+
+    private static void compareInputs(String pattern,
+                                      StateMachine reference,
+                                      StateMachine[] machines,
+                                      String alphabet,
+                                      String input,
+                                      int remainingLength) {
+        boolean expected = reference.interpret(input);
+        for (StateMachine machine : machines) {
+            assertions++;
+            if (machine.run(input) != expected) {
+                throw new AssertionError(
+                        "Engine " + machine.options() + " for " + pattern
+                                + " disagrees with the interpreter on input: " + input
+                );
+            }
+        }
+        if (remainingLength == 0) {
+            return;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            compareInputs(pattern, reference, machines, alphabet,
+                    input + alphabet.charAt(i), remainingLength - 1);
+        }
+    }
+
+    private static void assertEnginesAgree(String pattern, String alphabet, int maximumLength) {
+        CompileOptions lazy = CompileOptions.defaults().withEngine(CompileOptions.Engine.LAZY_DFA);
+        StateMachine[] machines = {
+                StateMachine.compile(pattern, CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA)),
+                StateMachine.compile(pattern),
+                StateMachine.compile(pattern, CompileOptions.defaults().withEngine(CompileOptions.Engine.BIT_PARALLEL)),
+                StateMachine.compile(pattern, lazy),
+                // small enough to force the cache to be flushed all the time
+                StateMachine.compile(pattern, lazy.withLazyDfaCacheBytes(2_000)),
+                StateMachine.compile(pattern, CompileOptions.defaults().withEngine(CompileOptions.Engine.DFA)),
+        };
+        compareInputs(pattern, machines[0], machines, alphabet, "", maximumLength);
+    }
+
+    private static void testEnginesMatchInterpreter() {
+        for (String pattern : PATTERNS) {
+            assertEnginesAgree(pattern, "abcx\u00e9", 6);
+        }
+    }
+
+    private static void testLazyDFACacheStaysBounded() {
+        StateMachine machine = StateMachine.compile("(a|b)*a(a|b){8}",
+                CompileOptions.defaults()
+                        .withEngine(CompileOptions.Engine.LAZY_DFA)
+                        .withLazyDfaCacheBytes(20_000));
+        Random random = new Random(42);
+        for (int i = 0; i < 3_000; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int j = 0; j < 40; j++) {
+                input.append(random.nextBoolean() ? 'a' : 'b');
+            }
+            assertions++;
+            if (machine.run(input) != machine.interpret(input.toString())) {
+                throw new AssertionError("Bounded lazy DFA disagrees on input: " + input);
+            }
+        }
+        assertions++;
+        if (!machine.summary().contains("cache flushes: ") || machine.summary().contains("cache flushes: 0\n")) {
+            throw new AssertionError("Expected the lazy DFA cache to be flushed:\n" + machine.summary());
+        }
+    }
+
+    private static void testDFAIsMinimal() {
+        String summary = StateMachine.compile("(a|b)*abb",
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.DFA)).summary();
+        assertions++;
+        // the textbook minimal DFA has four states, plus the dead state
+        if (!summary.contains("(5 after minimization)")) {
+            throw new AssertionError("Unexpected DFA size:\n" + summary);
+        }
+    }
+
+    private static void testDFAStateLimit() {
+        CompileOptions options = CompileOptions.defaults()
+                .withEngine(CompileOptions.Engine.DFA)
+                .withDfaStateLimit(64);
+        String pattern = "(a|b)*a(a|b){10}";
+        StateMachine fallback = StateMachine.compile(pattern, options);
+        assertions++;
+        if (!fallback.summary().contains("using the NFA")
+                || !fallback.run("a" + "b".repeat(10))
+                || fallback.run("b".repeat(11))) {
+            throw new AssertionError("Expected the DFA engine to fall back to the NFA:\n" + fallback.summary());
+        }
+        assertions++;
+        try {
+            StateMachine.compile(pattern, options.withDfaFallback(false));
+            throw new AssertionError("Expected compilation to fail for: " + pattern);
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    private static void testBitParallelIsPickedForSmallPatterns() {
+        assertions++;
+        if (!StateMachine.compile("(ab|c){1-3}[a-z]*").summary().contains("bit-parallel positions: 10")) {
+            throw new AssertionError("Expected the bit-parallel engine for a small pattern");
+        }
+        assertions++;
+        StateMachine large = StateMachine.compile("(ab|c){1-40}");
+        if (large.summary().contains("bit-parallel") || !large.run("ab".repeat(20) + "c".repeat(20))) {
+            throw new AssertionError("Expected the NFA for a pattern with more than 63 positions");
+        }
+    }
+
+    private static void assertSameLanguage(String classPattern, String unionPattern,
+                                           String alphabet, String input, int remainingLength,
+                                           StateMachine left, StateMachine right) {
+        assertions++;
+        if (left.run(input) != right.run(input)) {
+            throw new AssertionError("Patterns " + classPattern + " and " + unionPattern
+                    + " disagree on input: " + input);
+        }
+        if (remainingLength == 0) {
+            return;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            assertSameLanguage(classPattern, unionPattern, alphabet, input + alphabet.charAt(i),
+                    remainingLength - 1, left, right);
+        }
+    }
+
+    private static void testCharClassesMatchExpandedUnions() {
+        String[][] pairs = {
+                {"[a-c]x", "(a|b|c)x"},
+                {"[abx]*", "(a|b|x)*"},
+                {"[a-b-c]", "(a|b|c)"},
+                {"[-a]b", "(-|a)b"},
+                {"[a-]+", "(a|-)+"},
+                {"[.*]", "(\\.|\\*)"},
+                {"[cba-b]{2}", "(a|b|c)(a|b|c)"},
+        };
+        for (String[] pair : pairs) {
+            assertSameLanguage(pair[0], pair[1], "abcx-.*", "", 4,
+                    StateMachine.compile(pair[0]), StateMachine.compile(pair[1]));
+        }
+    }
+
+    private static void testWideCharClass() {
+        String pattern = "[\u0000-\uffff]+x";
+        StateMachine machine = StateMachine.compile(pattern);
+        assertions++;
+        if (machine.compiled().stateCount() > 10
+                || !machine.run("h\u00e9llo \uffffx")
+                || machine.run("x")) {
+            throw new AssertionError("Unexpected result for a class covering every character:\n"
+                    + machine.summary());
+        }
+        assertions++;
+        if (RegexParser.tokenize("[a-z]").size() != 1
+                || RegexParser.tokenize("[a-z]").get(0).type != RToken.RTokenType.CHAR_CLASS) {
+            throw new AssertionError("Expected [a-z] to become a single CHAR_CLASS token");
+        }
+        assertions++;
+        try {
+            StateMachine.compile("a[]");
+            throw new AssertionError("Expected compilation to fail for: a[]");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    private static void testLargePatternsBuildLinearly() {
+        // every (ab|c) takes 8 states, both when it is written out and when it is repeated
+        int n = 5000;
+        StateMachine written = StateMachine.compile("(ab|c)".repeat(n));
+        StateMachine repeated = StateMachine.compile("(ab|c){" + n + "}");
+        for (StateMachine machine : new StateMachine[]{written, repeated}) {
+            assertions++;
+            if (machine.compiled().stateCount() != 8 * n
+                    || !machine.run("ab".repeat(n / 2) + "c".repeat(n / 2))
+                    || machine.run("ab".repeat(n + 1))
+                    || machine.run("c".repeat(n - 1))) {
+                throw new AssertionError("Unexpected result for a pattern with " + n
+                        + " groups:\n" + machine.summary());
+            }
+        }
+    }
+
+    private static void testLargeQuantifiersUseCounters() {
+        String[] patterns = {"[a-c]{8200}x", "(ab|c){200-400}", "x(a|bc){0-600}y", "(a(b|c)){2100+}",
+                "((ab){4200}|c)*"};
+        String[] units = {"a", "ab", "c", "ac", "bc", "abc"};
+        int[] counts = {0, 1, 199, 200, 201, 399, 400, 401, 599, 600, 601, 2099, 2100, 2101, 4199, 4200, 4201,
+                8199, 8200, 8201};
+        for (String pattern : patterns) {
+            StateMachine machine = StateMachine.compile(pattern);
+            assertions++;
+            if (!machine.summary().contains("counters: 1")) {
+                throw new AssertionError("Expected " + pattern + " to use a counter:\n" + machine.summary());
+            }
+            // compiled() expands the quantifiers, which makes it an independent reference
+            CompiledNFA expanded = machine.compiled();
+            for (String unit : units) {
+                for (int count : counts) {
+                    for (String input : new String[]{unit.repeat(count), unit.repeat(count) + "x",
+                            "x" + unit.repeat(count) + "y", unit.repeat(count) + "c" + unit.repeat(count)}) {
+                        assertions++;
+                        if (machine.run(input) != expanded.matches(input)) {
+                            throw new AssertionError("Counters disagree with the expanded NFA for " + pattern
+                                    + " on " + count + " times " + unit);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // quantifiers whose copies must all be matched stay expanded up to a larger size
+    private static void testModerateQuantifiersAreExpanded() {
+        for (String pattern : new String[]{"[a-c]{1100}x", "(a(b|c)){520+}", "[a-z]{8000}"}) {
+            assertions++;
+            if (StateMachine.compile(pattern).summary().contains("counters")) {
+                throw new AssertionError("Expected " + pattern + " to be expanded:\n"
+                        + StateMachine.compile(pattern).summary());
+            }
+        }
+    }
+
+    private static void testRequiredLiterals() {
+        String[][] cases = {
+                {".*(fatal )?error [0-9]+.*", "\"error \""},
+                {"(ab){3}x", "\"abababx\""},
+                {"a(b|c)d", "\"a\", \"d\""},
+                {"(foo|foobar)baz", "\"baz\", \"foo\""},
+                {"x*", "none"},
+        };
+        for (String[] c : cases) {
+            assertions++;
+            String summary = StateMachine.compile(c[0]).summary();
+            if (!summary.contains("Required literals: " + c[1] + "\n")) {
+                throw new AssertionError("Expected required literals " + c[1] + " for " + c[0] + ":\n" + summary);
+            }
+        }
+        StateMachine machine = StateMachine.compile(".*(fatal )?error [0-9]+.*");
+        String[][] inputs = {
+                {"fatal error 12", "true"},
+                {"error 1 at line 3", "true"},
+                {"an error occurred", "false"},
+                {"fatal errors 12", "false"},
+                {"no problems here", "false"},
+        };
+        for (String[] input : inputs) {
+            assertions++;
+            if (machine.run(input[0]) != Boolean.parseBoolean(input[1])
+                    || machine.run(new StringBuilder(input[0])) != Boolean.parseBoolean(input[1])) {
+                throw new AssertionError("Unexpected result on: " + input[0]);
+            }
+        }
+    }
+
+    private static void testParallelRunAgreesWithRun() {
+        Random random = new Random(15);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (String pattern : PATTERNS) {
+                StateMachine machine = StateMachine.compile(pattern);
+                for (int n = 0; n < 300; n++) {
+                    StringBuilder input = new StringBuilder();
+                    int length = random.nextInt(40);
+                    for (int k = 0; k < length; k++) {
+                        input.append("abcxy\u00e9".charAt(random.nextInt(n % 2 == 0 ? 6 : 3)));
+                    }
+                    int chunkLength = 1 + random.nextInt(8);
+                    assertions++;
+                    if (machine.runParallel(input, pool, chunkLength) != machine.run(input)) {
+                        throw new AssertionError("runParallel(" + pattern + ") on '" + input
+                                + "' with chunks of " + chunkLength + " disagrees with run()");
+                    }
+                }
+            }
+            // too many DFA states, so the input is matched by run()
+            StateMachine machine = StateMachine.compile("(a|b)*a(a|b){12}",
+                    CompileOptions.defaults().withDfaStateLimit(100));
+            String input = "ab".repeat(1000) + "a" + "b".repeat(12);
+            assertions++;
+            if (!machine.runParallel(input, pool, 64) || machine.runParallel(input + "x", pool, 64)) {
+                throw new AssertionError("runParallel() without a DFA disagrees with run()");
+            }
+            String large = "abc".repeat(3_000_000) + "a";
+            assertions++;
+            if (!StateMachine.compile("(abc)*a").runParallel(large)
+                    || StateMachine.compile("(abc)*").runParallel(large)) {
+                throw new AssertionError("runParallel() disagrees with run() on a large input");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) {
+        testEnginesMatchInterpreter();
+        testLazyDFACacheStaysBounded();
+        testDFAIsMinimal();
+        testDFAStateLimit();
+        testBitParallelIsPickedForSmallPatterns();
+        testCharClassesMatchExpandedUnions();
+        testWideCharClass();
+        testLargePatternsBuildLinearly();
+        testLargeQuantifiersUseCounters();
+        testModerateQuantifiersAreExpanded();
+        testRequiredLiterals();
+        testParallelRunAgreesWithRun();
+
+        System.out.println("EngineEquivalenceTest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,222 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public final class FindTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "a",
+            "abc",
+            "a|b",
+            "ab*c",
+            "ab?c",
+            "(a|b)*c",
+            "(ab|ac)x",
+            "(ab|c){1-3}",
+            "a*",
+            "(a?){2-3}",
+            ".b.",
+            "[a-c]+b",
+            "[^a]x*",
+            "x(ab){0}c",
+            "bca|ca",
+            "ab|abc|bcx|c",
+            "(a|b)(c|x)|xa",
+    };
+
+    private FindTest() {
+    }
+
+    // leftmost-longest match, found by trying every substring
+    private static Match bruteForce(StateMachine machine, String input, int from) {
+        for (int start = from; start <= input.length(); start++) {
+            for (int end = input.length(); end >= start; end--) {
+                if (machine.interpret(input.substring(start, end))) {
+                    return new Match(start, end);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void checkInputs(String pattern, StateMachine machine, String alphabet,
+                                    String input, int remainingLength) {
+        for (int from = 0; from <= input.length(); from++) {
+            assertions++;
+            Match expected = bruteForce(machine, input, from);
+            Match actual = machine.find(input, from);
+            if (expected == null ? actual != null : !expected.equals(actual)) {
+                throw new AssertionError("find(" + pattern + ") on '" + input + "' from " + from
+                        + " returned " + actual + ", expected " + expected);
+            }
+        }
+        if (remainingLength == 0) {
+            return;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            checkInputs(pattern, machine, alphabet, input + alphabet.charAt(i), remainingLength - 1);
+        }
+    }
+
+    private static void testFindMatchesBruteForce() {
+        for (String pattern : PATTERNS) {
+            checkInputs(pattern, StateMachine.compile(pattern), "abcx", "", 6);
+        }
+    }
+
+    private static void testLiteralPrefixSkipsAhead() {
+        StateMachine machine = StateMachine.compile("error [0-9]+");
+        String line = "x".repeat(100_000) + "error 42 and error 7";
+        assertions++;
+        if (!new Match(100_000, 100_008).equals(machine.find(line))) {
+            throw new AssertionError("Unexpected match: " + machine.find(line));
+        }
+        assertions++;
+        if (!new Match(100_013, 100_020).equals(machine.find(line, 100_001))) {
+            throw new AssertionError("Unexpected match: " + machine.find(line, 100_001));
+        }
+        assertions++;
+        if (!new Match(100_013, 100_020).equals(machine.find(new StringBuilder(line), 100_001))) {
+            throw new AssertionError("Unexpected match in a StringBuilder");
+        }
+        assertions++;
+        if (machine.find(line.substring(0, 100_006)) != null) {
+            throw new AssertionError("Expected no match without digits");
+        }
+    }
+
+    private static void testFindWithCounters() {
+        StateMachine machine = StateMachine.compile("x(ab){5000}y");
+        String input = "ab".repeat(700) + "x" + "ab".repeat(5000) + "y";
+        assertions++;
+        if (!new Match(1400, input.length()).equals(machine.find(input))) {
+            throw new AssertionError("Unexpected match: " + machine.find(input));
+        }
+    }
+
+    // the counters are never expanded, so the reference is anchored run() on every substring
+    private static void checkCounterInputs(String pattern, StateMachine machine, String alphabet,
+                                           String input, int remainingLength) {
+        for (int from = 0; from <= input.length(); from++) {
+            Match expected = null;
+            for (int start = from; start <= input.length() && expected == null; start++) {
+                for (int end = input.length(); end >= start; end--) {
+                    if (machine.run(input.substring(start, end))) {
+                        expected = new Match(start, end);
+                        break;
+                    }
+                }
+            }
+            assertions++;
+            Match actual = machine.find(input, from);
+            if (expected == null ? actual != null : !expected.equals(actual)) {
+                throw new AssertionError("find(" + pattern + ") on '" + input + "' from " + from
+                        + " returned " + actual + ", expected " + expected);
+            }
+        }
+        if (remainingLength == 0) {
+            return;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            checkCounterInputs(pattern, machine, alphabet, input + alphabet.charAt(i), remainingLength - 1);
+        }
+    }
+
+    private static void testFindWithCountersMatchesBruteForce() {
+        for (String pattern : new String[]{"(ab|c){1-600}", "a(b|c){2-700}x", "(ab|b){3000+}c?", "x?(a|bc){0-900}"}) {
+            StateMachine machine = StateMachine.compileUncached(pattern, CompileOptions.defaults());
+            assertions++;
+            if (!machine.summary().contains("counters")) {
+                throw new AssertionError("Expected counters for " + pattern + ": " + machine.summary());
+            }
+            checkCounterInputs(pattern, machine, "abcx", "", 5);
+        }
+    }
+
+    private static void testFindWithLargeCountersStaysSmall() {
+        StateMachine machine = StateMachine.compileUncached("[a-c]{1-200000}", CompileOptions.defaults());
+        long before = machine.estimatedBytes();
+        assertions++;
+        if (!new Match(2, 6).equals(machine.find("zzababx"))) {
+            throw new AssertionError("Unexpected match: " + machine.find("zzababx"));
+        }
+        assertions++;
+        if (machine.find("zzzxxx") != null || !new Match(0, 200_000).equals(machine.find("a".repeat(300_000)))) {
+            throw new AssertionError("Unexpected match in a long input");
+        }
+        assertions++;
+        if (machine.estimatedBytes() - before > 1024) {
+            throw new AssertionError("Expected find() not to expand the counters: "
+                    + before + " -> " + machine.estimatedBytes());
+        }
+    }
+
+    private static void testWordAlternationsAgreeWithNFA() {
+        Random random = new Random(12);
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int k = random.nextInt(6); k >= 0; k--) {
+                word.append((char) ('a' + random.nextInt(4)));
+            }
+            words.add(word.toString());
+        }
+        String pattern = String.join("|", words);
+        StateMachine machine = StateMachine.compile(pattern);
+        StateMachine reference = StateMachine.compile(pattern,
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA));
+        assertions++;
+        if (!machine.summary().contains("Aho-Corasick words: ")) {
+            throw new AssertionError("Expected the Aho-Corasick engine for " + pattern);
+        }
+        for (int n = 0; n < 2000; n++) {
+            StringBuilder input = new StringBuilder();
+            for (int k = random.nextInt(30); k >= 0; k--) {
+                input.append("abcdx".charAt(random.nextInt(5)));
+            }
+            String text = n % 2 == 0 ? input.toString() : words.get(n % words.size());
+            for (int from = 0; from <= text.length(); from += 3) {
+                assertions++;
+                Match expected = reference.find(text, from);
+                Match actual = machine.find(text, from);
+                if (expected == null ? actual != null : !expected.equals(actual)) {
+                    throw new AssertionError("find() on '" + text + "' from " + from
+                            + " returned " + actual + ", expected " + expected);
+                }
+            }
+            assertions++;
+            if (machine.run(text) != reference.run(text)) {
+                throw new AssertionError("run() disagrees with the NFA on '" + text + "'");
+            }
+        }
+    }
+
+    private static void testInvalidStartPosition() {
+        StateMachine machine = StateMachine.compile("a");
+        for (int from : new int[]{-1, 4}) {
+            assertions++;
+            try {
+                machine.find("aaa", from);
+                throw new AssertionError("Expected find() to reject start position " + from);
+            } catch (IndexOutOfBoundsException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        testFindMatchesBruteForce();
+        testLiteralPrefixSkipsAhead();
+        testFindWithCounters();
+        testFindWithCountersMatchesBruteForce();
+        testFindWithLargeCountersStaysSmall();
+        testWordAlternationsAgreeWithNFA();
+        testInvalidStartPosition();
+
+        System.out.println("FindTest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,186 @@
+package net.prsv.rengine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public final class GrepTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "error [0-9]+",
+            "a|b",
+            "x*",
+            "[^a-z]",
+            "caf\u00e9",
+            ".*ok.*",
+            "(ok|a| ){1-600}",
+    };
+
+    private GrepTest() {
+    }
+
+    private static List<String> randomLines(Random random, int count) {
+        String[] words = {"ok", "error", "42", "caf\u00e9", "a", "b", " ", "x", "\u20ac"};
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder line = new StringBuilder();
+            // now and then a line longer than a chunk, and a few longer than the window of
+            // Grep; the last line is not empty, otherwise it would not count as a line
+            // without a line break after it
+            int length = i % 1000 == 500 ? 40_000 : i % 97 == 0 || i == count - 1 ? 60 : random.nextInt(8);
+            for (int k = 0; k < length; k++) {
+                line.append(words[random.nextInt(words.length)]);
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    private static void testChunksAgreeWithLineByLine() throws IOException {
+        Random random = new Random(14);
+        List<String> lines = randomLines(random, 3000);
+        Path file = Files.createTempFile("grep-test", ".txt");
+        try {
+            // no line break after the last line
+            Files.writeString(file, String.join("\n", lines), StandardCharsets.UTF_8);
+            for (String pattern : PATTERNS) {
+                StateMachine machine = StateMachine.compile(pattern);
+                for (boolean wholeLine : new boolean[]{false, true}) {
+                    List<String> expected = new ArrayList<>();
+                    for (String line : lines) {
+                        if (wholeLine ? machine.run(line) : machine.find(line) != null) {
+                            expected.add(line);
+                        }
+                    }
+                    for (int chunkBytes : new int[]{1, 37, 4096, Grep.DEFAULT_CHUNK_BYTES}) {
+                        try (Grep grep = new Grep(machine, wholeLine, 3, chunkBytes)) {
+                            List<String> actual = new ArrayList<>();
+                            long count = grep.search(file, actual::add);
+                            assertions++;
+                            if (!expected.equals(actual) || count != expected.size()) {
+                                throw new AssertionError("Grep for " + pattern + " with chunks of "
+                                        + chunkBytes + " bytes found " + count
+                                        + " lines, expected " + expected.size());
+                            }
+                            assertions++;
+                            if (grep.search(file, null) != expected.size()) {
+                                throw new AssertionError("Counting disagrees with printing for " + pattern);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void testEmptyFile() throws IOException {
+        Path file = Files.createTempFile("grep-test", ".txt");
+        try (Grep grep = new Grep(StateMachine.compile("x*"), false, 2, 16)) {
+            assertions++;
+            if (grep.search(file, null) != 0) {
+                throw new AssertionError("An empty file has no lines");
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // malformed bytes must not change which lines match, whether decoded or matched as bytes
+    private static void testMalformedInput() throws IOException {
+        byte[] e = "\u00e9".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = {
+                'c', 'a', 'f', e[0], e[1], '\n',
+                'c', 'a', 'f', (byte) 0xE2, (byte) 0x82, e[0], e[1], '\n',
+                (byte) 0xC3, '\n',
+                'c', 'a', 'f', (byte) 0xFF, e[1], ' ', e[0], '\n',
+                (byte) 0xE2, (byte) 0x82, 'c', 'a', 'f', e[0], e[1],
+        };
+        Path file = Files.createTempFile("grep-test", ".txt");
+        try {
+            Files.write(file, bytes);
+            String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\n");
+            for (String pattern : new String[]{"caf\u00e9", "\uFFFD", "f\uFFFD", "[^a-z]", ".*", "caf.*"}) {
+                StateMachine machine = StateMachine.compile(pattern);
+                for (boolean wholeLine : new boolean[]{false, true}) {
+                    List<String> expected = new ArrayList<>();
+                    for (String line : lines) {
+                        if (wholeLine ? machine.run(line) : machine.find(line) != null) {
+                            expected.add(line);
+                        }
+                    }
+                    try (Grep grep = new Grep(machine, wholeLine, 2, 7)) {
+                        List<String> actual = new ArrayList<>();
+                        grep.search(file, actual::add);
+                        assertions++;
+                        if (!expected.equals(actual)) {
+                            throw new AssertionError("Grep for " + pattern + " in malformed input found "
+                                    + actual + ", expected " + expected);
+                        }
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String runCommand(int expectedStatus, String... args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = Grep.run(args, new PrintStream(out, true), new PrintStream(err, true));
+        assertions++;
+        if (status != expectedStatus) {
+            throw new AssertionError("Expected exit status " + expectedStatus + ", got " + status
+                    + ": " + err);
+        }
+        return out.toString();
+    }
+
+    private static void testCommandLine() throws IOException {
+        Path first = Files.createTempFile("grep-test", ".txt");
+        Path second = Files.createTempFile("grep-test", ".txt");
+        try {
+            Files.writeString(first, "ok\nerror 1\nerror\nerror 22\n");
+            Files.writeString(second, "nothing here\n");
+            String lines = runCommand(0, "error [0-9]+", first.toString());
+            assertions++;
+            if (!lines.equals("error 1" + System.lineSeparator() + "error 22" + System.lineSeparator())) {
+                throw new AssertionError("Unexpected output: " + lines);
+            }
+            String counts = runCommand(0, "-c", "-j", "2", "error [0-9]+",
+                    first.toString(), second.toString());
+            assertions++;
+            if (!counts.equals(first + ":2" + System.lineSeparator()
+                    + second + ":0" + System.lineSeparator())) {
+                throw new AssertionError("Unexpected output: " + counts);
+            }
+            runCommand(1, "-x", "error", second.toString());
+            runCommand(2, "(error", first.toString());
+            runCommand(2, "-j", "0", "error", first.toString());
+            runCommand(2, "error", first + ".missing");
+            runCommand(2, "error");
+        } finally {
+            Files.delete(first);
+            Files.delete(second);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        testChunksAgreeWithLineByLine();
+        testEmptyFile();
+        testMalformedInput();
+        testCommandLine();
+
+        System.out.println("GrepTest passed (" + assertions + " assertions)");
+    }
+}
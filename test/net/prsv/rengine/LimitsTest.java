@@ -0,0 +1,153 @@
+package net.prsv.rengine;
+
+import java.time.Duration;
+import java.util.Random;
+
+public final class LimitsTest {
+
+    private static int assertions;
+
+    private static final CompileOptions.Engine[] ENGINES = CompileOptions.Engine.values();
+
+    private LimitsTest() {
+    }
+
+    private static void expectLimit(LimitExceededException.Limit limit, Runnable call, String description) {
+        assertions++;
+        try {
+            call.run();
+            throw new AssertionError("Expected " + description + " to exceed the " + limit + " limit");
+        } catch (LimitExceededException e) {
+            if (e.limit() != limit) {
+                throw new AssertionError(description + " exceeded the " + e.limit() + " limit, expected "
+                        + limit, e);
+            }
+        }
+    }
+
+    private static void testStateLimit() {
+        CompileOptions limited = CompileOptions.defaults().withStateLimit(100);
+        // the DFA engines expand quantifiers when the pattern is compiled
+        for (CompileOptions.Engine engine : new CompileOptions.Engine[]{CompileOptions.Engine.LAZY_DFA,
+                CompileOptions.Engine.DFA}) {
+            expectLimit(LimitExceededException.Limit.STATES,
+                    () -> StateMachine.compileUncached("x(ab){600}y", limited.withEngine(engine)),
+                    "compiling with " + engine);
+        }
+        // matched with a counter, the pattern fits, and find() does not expand it either
+        StateMachine counted = StateMachine.compileUncached("x(ab){600}y", limited);
+        assertions++;
+        if (!counted.run("x" + "ab".repeat(600) + "y")) {
+            throw new AssertionError("Expected the counted pattern to match");
+        }
+        assertions++;
+        if (!new Match(1, 1203).equals(counted.find("z" + "x" + "ab".repeat(600) + "yz"))) {
+            throw new AssertionError("Expected find() to search with the counter");
+        }
+        expectLimit(LimitExceededException.Limit.STATES,
+                () -> RegexSet.compile(java.util.List.of("a{60}", "b{60}"), limited), "a set");
+        assertions++;
+        if (!StateMachine.compileUncached("a{40}", limited.withEngine(CompileOptions.Engine.NFA))
+                .run("a".repeat(40))) {
+            throw new AssertionError("Expected a pattern under the limit to compile");
+        }
+    }
+
+    private static void testWorkLimit() {
+        String pattern = "(a|b)*a(a|b){12}";
+        Random random = new Random(21);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50_000; i++) {
+            sb.append("ab".charAt(random.nextInt(2)));
+        }
+        String input = sb.toString();
+        StateMachine reference = StateMachine.compileUncached(pattern,
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA));
+        for (CompileOptions.Engine engine : ENGINES) {
+            CompileOptions options = CompileOptions.defaults().withEngine(engine).withCodegenThreshold(-1);
+            StateMachine tight = StateMachine.compileUncached(pattern, options.withMatchWorkLimit(20_000));
+            expectLimit(LimitExceededException.Limit.WORK, () -> tight.run(input), "run() with " + engine);
+            expectLimit(LimitExceededException.Limit.WORK, () -> tight.run(input, Duration.ofHours(1)),
+                    "run() with a timeout and " + engine);
+            // the machine is still usable, and short inputs stay within the limit
+            assertions++;
+            if (!tight.run("abbbbbbbbbbbb") || tight.run("ab")) {
+                throw new AssertionError("Unexpected result after a limit was exceeded with " + engine);
+            }
+            StateMachine loose = StateMachine.compileUncached(pattern, options.withMatchWorkLimit(100_000_000));
+            for (int n = 0; n < 500; n++) {
+                String sample = input.substring(n, n + random.nextInt(30));
+                assertions++;
+                if (loose.run(sample) != reference.run(sample)
+                        || loose.run(sample, Duration.ofHours(1)) != reference.run(sample)) {
+                    throw new AssertionError(pattern + " with " + engine + " disagrees with the NFA on '"
+                            + sample + "'");
+                }
+            }
+        }
+    }
+
+    private static void testDeadline() {
+        StateMachine machine = StateMachine.compileUncached("(a|b)*a(a|b){12}",
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA));
+        expectLimit(LimitExceededException.Limit.DEADLINE, () -> machine.run("", Duration.ZERO), "an expired run()");
+        String input = "ab".repeat(10_000_000);
+        long start = System.nanoTime();
+        expectLimit(LimitExceededException.Limit.DEADLINE, () -> machine.run(input, Duration.ofMillis(20)),
+                "a long run()");
+        assertions++;
+        if (System.nanoTime() - start > 2_000_000_000L) {
+            throw new AssertionError("The match went on long after its deadline");
+        }
+        assertions++;
+        if (machine.run("ab", Duration.ofMillis(Long.MAX_VALUE)) || !machine.run("a".repeat(13), Duration.ofDays(1))) {
+            throw new AssertionError("Unexpected result with a long timeout");
+        }
+    }
+
+    private static void testInterrupt() {
+        StateMachine machine = StateMachine.compileUncached("(a|b)*c", CompileOptions.defaults());
+        Thread.currentThread().interrupt();
+        try {
+            expectLimit(LimitExceededException.Limit.INTERRUPTED,
+                    () -> machine.run("ababc", Duration.ofHours(1)), "an interrupted run()");
+            assertions++;
+            if (!Thread.currentThread().isInterrupted()) {
+                throw new AssertionError("Expected the interrupt flag to stay set");
+            }
+        } finally {
+            Thread.interrupted();
+        }
+        assertions++;
+        if (!machine.run("ababc", Duration.ofHours(1))) {
+            throw new AssertionError("Expected a match once the interrupt was cleared");
+        }
+    }
+
+    private static void testInvalidLimits() {
+        assertions++;
+        try {
+            CompileOptions.defaults().withStateLimit(0);
+            throw new AssertionError("Expected a zero state limit to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+        assertions++;
+        try {
+            CompileOptions.defaults().withMatchWorkLimit(-1);
+            throw new AssertionError("Expected a negative work limit to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    public static void main(String[] args) {
+        testStateLimit();
+        testWorkLimit();
+        testDeadline();
+        testInterrupt();
+        testInvalidLimits();
+
+        System.out.println("LimitsTest passed (" + assertions + " assertions)");
+    }
+}
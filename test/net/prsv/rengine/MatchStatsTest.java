@@ -0,0 +1,124 @@
+package net.prsv.rengine;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+
+public final class MatchStatsTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "abc",
+            "(a|b)*c",
+            "[a-c]+b",
+            "(ab|c){1-3}x?",
+            "x(ab){5000}y|.*c",
+            "(a|b)*a(a|b){3}",
+            "[a-c]{100-2000}x",
+            ".*",
+    };
+
+    private MatchStatsTest() {
+    }
+
+    private static void check(boolean condition, String message) {
+        assertions++;
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static void testStatsAgreeWithRun() {
+        Random random = new Random(20);
+        for (String pattern : PATTERNS) {
+            for (CompileOptions options : new CompileOptions[]{CompileOptions.defaults(),
+                    CompileOptions.defaults().withEngine(CompileOptions.Engine.DFA)}) {
+                StateMachine machine = StateMachine.compileUncached(pattern, options);
+                for (int n = 0; n < 2000; n++) {
+                    StringBuilder input = new StringBuilder();
+                    for (int k = random.nextInt(n % 100 == 0 ? 300 : 12); k > 0; k--) {
+                        input.append("abcxy".charAt(random.nextInt(5)));
+                    }
+                    MatchStats stats = machine.runWithStats(input);
+                    check(stats.matched() == machine.run(input), "runWithStats(" + pattern + ") disagrees with run() on '"
+                            + input + "'");
+                    check(stats.charsConsumed() <= input.length()
+                                    && (stats.charsConsumed() == input.length() || !stats.matched())
+                                    && stats.peakActiveStates() >= stats.averageActiveStates(),
+                            "Inconsistent stats for " + pattern + " on '" + input + "': " + stats);
+                }
+            }
+        }
+    }
+
+    private static void testKnownCounts() {
+        MatchStats stats = StateMachine.compile("abc").runWithStats("abd");
+        check(!stats.matched() && stats.charsConsumed() == 3 && stats.peakActiveStates() == 1
+                        && stats.transitionsTaken() == 2 && stats.averageActiveStates() == 0.75,
+                "Unexpected stats: " + stats);
+        // the active set of (a|b)*a(a|b){n} holds up to n + 1 candidates for the last a
+        int small = StateMachine.compile("(a|b)*a(a|b){3}").runWithStats("aaaaaaaa").peakActiveStates();
+        int large = StateMachine.compile("(a|b)*a(a|b){12}").runWithStats("aaaaaaaaaaaaaaaaaaaa").peakActiveStates();
+        check(large > small + 8, "Expected the active set to grow with n: " + small + ", " + large);
+        stats = StateMachine.compile("a").runWithStats("");
+        check(!stats.matched() && stats.charsConsumed() == 0 && stats.transitionsTaken() == 0,
+                "Unexpected stats for an empty input: " + stats);
+    }
+
+    private static void testFlightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile("match-stats-test", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable("net.prsv.rengine.Compile");
+                recording.enable("net.prsv.rengine.Match").withThreshold(Duration.ZERO);
+                recording.start();
+                StateMachine machine = StateMachine.compileUncached("(a|b)*c",
+                        CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA));
+                machine.run("ababc");
+                machine.run("abab");
+                recording.stop();
+                recording.dump(file);
+            }
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            int compiles = 0;
+            int matches = 0;
+            int matched = 0;
+            for (RecordedEvent event : events) {
+                String name = event.getEventType().getName();
+                if (name.equals("net.prsv.rengine.Compile")) {
+                    compiles++;
+                    check(event.getString("pattern").equals("(a|b)*c") && event.getString("engine").equals("NFA")
+                            && event.getInt("nfaStates") > 0, "Unexpected compile event: " + event);
+                } else if (name.equals("net.prsv.rengine.Match")) {
+                    matches++;
+                    check(event.getString("pattern").equals("(a|b)*c") && event.getString("engine").equals("NFA"),
+                            "Unexpected match event: " + event);
+                    if (event.getBoolean("matched")) {
+                        matched++;
+                        check(event.getInt("inputLength") == 5, "Unexpected match event: " + event);
+                    }
+                }
+            }
+            check(compiles == 1 && matches == 2 && matched == 1,
+                    "Expected 1 compile and 2 match events, got " + compiles + " and " + matches);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        testStatsAgreeWithRun();
+        testKnownCounts();
+        testFlightRecorderEvents();
+
+        System.out.println("MatchStatsTest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,200 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public final class PatternCacheTest {
+
+    private static int assertions;
+
+    private PatternCacheTest() {
+    }
+
+    private static void testHitsAndMisses() {
+        PatternCache cache = new PatternCache(PatternCache.DEFAULT_MAX_BYTES);
+        StateMachine first = cache.get("(a|b)*c");
+        StateMachine second = cache.get("(a|b)*c");
+        StateMachine other = cache.get("(a|b)*c", CompileOptions.defaults().withEngine(CompileOptions.Engine.DFA));
+        assertions++;
+        if (first != second || first == other) {
+            throw new AssertionError("Expected one machine per pattern and options");
+        }
+        assertions++;
+        if (cache.hits() != 1 || cache.misses() != 2 || cache.size() != 2 || cache.estimatedBytes() <= 0) {
+            throw new AssertionError("Unexpected statistics: " + cache);
+        }
+        assertions++;
+        if (!first.run("abbac") || other.run("abba")) {
+            throw new AssertionError("Cached machines match incorrectly");
+        }
+        cache.clear();
+        assertions++;
+        if (cache.size() != 0 || cache.estimatedBytes() != 0 || cache.get("(a|b)*c") == first) {
+            throw new AssertionError("Expected clear() to drop every machine");
+        }
+        assertions++;
+        if (StateMachine.compile("x+y") != StateMachine.compile("x+y")) {
+            throw new AssertionError("Expected StateMachine.compile() to use the shared cache");
+        }
+    }
+
+    private static void testEvictsLeastRecentlyUsed() {
+        long size = StateMachine.compileUncached("a{20}", CompileOptions.defaults()).estimatedBytes();
+        // room for three machines of this size
+        PatternCache cache = new PatternCache(3 * size + size / 2);
+        StateMachine a = cache.get("a{20}");
+        cache.get("b{20}");
+        cache.get("c{20}");
+        cache.get("a{20}");
+        cache.get("d{20}");
+        assertions++;
+        if (cache.size() != 3 || cache.evictions() != 1 || cache.estimatedBytes() > cache.maxBytes()) {
+            throw new AssertionError("Unexpected statistics: " + cache);
+        }
+        long misses = cache.misses();
+        assertions++;
+        if (cache.get("a{20}") != a || cache.misses() != misses) {
+            throw new AssertionError("The most recently used machine was evicted");
+        }
+        cache.get("b{20}");
+        assertions++;
+        if (cache.misses() != misses + 1) {
+            throw new AssertionError("Expected the least recently used machine to be evicted");
+        }
+        PatternCache tiny = new PatternCache(16);
+        StateMachine uncached = tiny.get("abc");
+        assertions++;
+        if (!uncached.run("abc") || tiny.size() != 0 || tiny.get("abc") == uncached) {
+            throw new AssertionError("A machine larger than the cache must not be cached");
+        }
+    }
+
+    private static void testEvictsUnusedBeforeUsedSinceLastInsert() {
+        long size = StateMachine.compileUncached("a{20}", CompileOptions.defaults()).estimatedBytes();
+        PatternCache cache = new PatternCache(3 * size + size / 2);
+        StateMachine a = cache.get("a{20}");
+        StateMachine b = cache.get("b{20}");
+        cache.get("c{20}");
+        // both hits come after the last insertion, the unused machine must go first
+        cache.get("a{20}");
+        cache.get("b{20}");
+        cache.get("d{20}");
+        long misses = cache.misses();
+        assertions++;
+        if (cache.get("a{20}") != a || cache.get("b{20}") != b || cache.misses() != misses) {
+            throw new AssertionError("A machine used since the last insertion was evicted: " + cache);
+        }
+        cache.get("c{20}");
+        assertions++;
+        if (cache.misses() != misses + 1) {
+            throw new AssertionError("Expected the unused machine to be evicted");
+        }
+    }
+
+    private static void testCompilesOnceUnderContention() throws Exception {
+        PatternCache cache = new PatternCache(PatternCache.DEFAULT_MAX_BYTES);
+        // slow enough to compile that the threads miss at the same time
+        String pattern = "(ab|c|d[a-z]){300}x";
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<StateMachine>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get(pattern);
+                }));
+            }
+            start.countDown();
+            StateMachine machine = futures.get(0).get();
+            for (Future<StateMachine> future : futures) {
+                assertions++;
+                if (future.get() != machine) {
+                    throw new AssertionError("Expected every thread to get the same machine");
+                }
+            }
+            assertions++;
+            if (cache.misses() != 1 || cache.hits() != threads - 1) {
+                throw new AssertionError("Expected a single compilation: " + cache);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void testHitsTakeNoLock() throws Exception {
+        PatternCache cache = new PatternCache(PatternCache.DEFAULT_MAX_BYTES);
+        StateMachine machine = cache.get("(a|b)*c");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // insertions lock the cache, a hit goes on while the lock is held
+            synchronized (cache) {
+                Future<StateMachine> hit = executor.submit(() -> cache.get("(a|b)*c"));
+                assertions++;
+                if (hit.get(30, TimeUnit.SECONDS) != machine) {
+                    throw new AssertionError("Expected the cached machine");
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void testPartsBuiltOnDemandAreCounted() {
+        PatternCache cache = new PatternCache(PatternCache.DEFAULT_MAX_BYTES);
+        StateMachine machine = cache.get("x(ab){5000}y");
+        long before = cache.estimatedBytes();
+        // find() builds a finder and match() expands the counter into a Pike VM
+        machine.find("x" + "ab".repeat(5000) + "y");
+        machine.match("x" + "ab".repeat(5000) + "y");
+        cache.get("x(ab){5000}y");
+        assertions++;
+        if (cache.estimatedBytes() != machine.estimatedBytes() || cache.estimatedBytes() <= before) {
+            throw new AssertionError("Expected the cache to count the parts built on demand: " + cache);
+        }
+        // once the machine outgrows the cache, the next hit drops it
+        PatternCache small = new PatternCache(before + before / 2);
+        StateMachine grown = small.get("x(ab){5000}y");
+        grown.match("x" + "ab".repeat(5000) + "y");
+        small.get("x(ab){5000}y");
+        assertions++;
+        if (small.size() != 0 || small.estimatedBytes() != 0 || small.evictions() != 1) {
+            throw new AssertionError("Expected a machine larger than the cache to be dropped: " + small);
+        }
+    }
+
+    private static void testErrorsAreNotCached() {
+        PatternCache cache = new PatternCache(PatternCache.DEFAULT_MAX_BYTES);
+        for (int i = 0; i < 2; i++) {
+            assertions++;
+            try {
+                cache.get("(ab");
+                throw new AssertionError("Expected an invalid pattern to be rejected");
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+        assertions++;
+        if (cache.size() != 0 || cache.misses() != 2) {
+            throw new AssertionError("Unexpected statistics: " + cache);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        testHitsAndMisses();
+        testEvictsLeastRecentlyUsed();
+        testEvictsUnusedBeforeUsedSinceLastInsert();
+        testCompilesOnceUnderContention();
+        testErrorsAreNotCached();
+        testHitsTakeNoLock();
+        testPartsBuiltOnDemandAreCounted();
+
+        System.out.println("PatternCacheTest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,138 @@
+package net.prsv.rengine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+public final class RegexSetTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "a",
+            "abc",
+            "a|b",
+            "ab*c",
+            "(a|b)*c",
+            "(ab|c){1-3}",
+            "a*",
+            ".b.",
+            "[a-c]+b",
+            "[^a]x*",
+            "x(ab){0}c",
+            "bca|ca",
+            "(a?){2-3}",
+    };
+
+    private RegexSetTest() {
+    }
+
+    private static void checkInputs(RegexSet set, StateMachine[] machines, String alphabet,
+                                    String input, int remainingLength) {
+        BitSet expected = new BitSet();
+        for (int i = 0; i < machines.length; i++) {
+            if (machines[i].run(input)) {
+                expected.set(i);
+            }
+        }
+        assertions++;
+        BitSet actual = set.matches(input);
+        if (!expected.equals(actual)) {
+            throw new AssertionError("RegexSet matched " + actual + " on '" + input
+                    + "', expected " + expected);
+        }
+        assertions++;
+        if (set.matchesAny(input) != !expected.isEmpty()) {
+            throw new AssertionError("matchesAny() disagrees with matches() on '" + input + "'");
+        }
+        if (remainingLength == 0) {
+            return;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            checkInputs(set, machines, alphabet, input + alphabet.charAt(i), remainingLength - 1);
+        }
+    }
+
+    private static StateMachine[] machines(String[] patterns) {
+        StateMachine[] machines = new StateMachine[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            machines[i] = StateMachine.compile(patterns[i]);
+        }
+        return machines;
+    }
+
+    private static void testAgreesWithSinglePatterns() {
+        checkInputs(RegexSet.compile(PATTERNS), machines(PATTERNS), "abcx\u00e9", "", 5);
+    }
+
+    private static void testTinyCacheFallsBackToNFA() {
+        RegexSet set = RegexSet.compile(List.of(PATTERNS),
+                CompileOptions.defaults().withLazyDfaCacheBytes(1));
+        checkInputs(set, machines(PATTERNS), "abcx", "", 5);
+    }
+
+    private static void testManyPatterns() {
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            patterns.add("id" + i + "=[0-9]+");
+        }
+        RegexSet set = RegexSet.compile(patterns);
+        assertions++;
+        if (set.size() != 2000 || !set.pattern(1234).equals("id1234=[0-9]+")) {
+            throw new AssertionError("Unexpected patterns in the set");
+        }
+        for (int i = 0; i < 2000; i += 37) {
+            assertions++;
+            int[] matched = set.matchingIndices("id" + i + "=42");
+            if (matched.length != 1 || matched[0] != i) {
+                throw new AssertionError("Expected only pattern " + i + " to match, got "
+                        + set.matches("id" + i + "=42"));
+            }
+        }
+        assertions++;
+        if (set.matchingIndices("id7=").length != 0 || set.matchesAny("id2000=1")) {
+            throw new AssertionError("Expected no pattern to match");
+        }
+    }
+
+    private static void testOverlappingPatterns() {
+        RegexSet set = RegexSet.compile("[a-z]+", "foo.*", ".*bar", "foobar", "x");
+        assertions++;
+        if (!set.matches("foobar").equals(BitSet.valueOf(new long[]{0b01111}))) {
+            throw new AssertionError("Unexpected matches: " + set.matches("foobar"));
+        }
+        assertions++;
+        if (set.matchingIndices("").length != 0) {
+            throw new AssertionError("Expected no pattern to match the empty string");
+        }
+    }
+
+    private static void testEmptySet() {
+        RegexSet set = RegexSet.compile();
+        assertions++;
+        if (set.size() != 0 || !set.matches("abc").isEmpty() || set.matchesAny("")) {
+            throw new AssertionError("An empty set must not match anything");
+        }
+    }
+
+    private static void testInvalidPattern() {
+        assertions++;
+        try {
+            RegexSet.compile("a", "(b");
+            throw new AssertionError("Expected an invalid pattern to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    public static void main(String[] args) {
+        testAgreesWithSinglePatterns();
+        testTinyCacheFallsBackToNFA();
+        testManyPatterns();
+        testOverlappingPatterns();
+        testEmptySet();
+        testInvalidPattern();
+
+        System.out.println("RegexSetTest passed (" + assertions + " assertions)");
+    }
+}
@@ -0,0 +1,137 @@
+package net.prsv.rengine;
+
+import java.nio.CharBuffer;
+
+public final class StreamMatcherTest {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "abc",
+            "a|b",
+            "(a|b)*c",
+            "(ab|c){1-3}",
+            "a*",
+            ".b.",
+            "[a-c]+b",
+            "[^a]x*",
+            "bca|ca",
+    };
+
+    private static final CompileOptions.Engine[] ENGINES = {
+            CompileOptions.Engine.AUTO,
+            CompileOptions.Engine.NFA,
+            CompileOptions.Engine.DFA,
+    };
+
+    private StreamMatcherTest() {
+    }
+
+    private static void checkInputs(String pattern, StateMachine machine, String alphabet,
+                                    String input, int remainingLength) {
+        boolean expected = machine.run(input);
+        // every way of cutting the input into two chunks, plus one character at a time
+        for (int cut = 0; cut <= input.length(); cut++) {
+            assertions++;
+            StreamMatcher stream = machine.newStream()
+                    .feed(input, 0, cut)
+                    .feed(input.toCharArray(), cut, input.length() - cut);
+            if (stream.finish() != expected || stream.position() != input.length()) {
+                throw new AssertionError("Stream for " + pattern + " cut at " + cut + " on '"
+                        + input + "' disagrees with run()");
+            }
+        }
+        assertions++;
+        StreamMatcher stream = machine.newStream();
+        for (int i = 0; i < input.length(); i++) {
+            stream.feed(CharBuffer.wrap(input, i, i + 1));
+            if (stream.isMatch() != machine.run(input.substring(0, i + 1))) {
+                throw new AssertionError("isMatch() for " + pattern + " on '"
+                        + input.substring(0, i + 1) + "' disagrees with run()");
+            }
+        }
+        if (stream.finish() != expected) {
+            throw new AssertionError("Stream for " + pattern + " fed one character at a time on '"
+                    + input + "' disagrees with run()");
+        }
+        if (remainingLength == 0) {
+            return;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            checkInputs(pattern, machine, alphabet, input + alphabet.charAt(i), remainingLength - 1);
+        }
+    }
+
+    private static void testStreamsAgreeWithRun() {
+        for (CompileOptions.Engine engine : ENGINES) {
+            CompileOptions options = CompileOptions.defaults().withEngine(engine);
+            for (String pattern : PATTERNS) {
+                checkInputs(pattern, StateMachine.compile(pattern, options), "abcx", "", 5);
+            }
+        }
+    }
+
+    private static void testStreamWithCounters() {
+        StateMachine machine = StateMachine.compile("x(ab){5000}y");
+        StreamMatcher stream = machine.newStream().feed("x");
+        for (int i = 0; i < 5000; i++) {
+            stream.feed("ab");
+        }
+        assertions++;
+        if (stream.isMatch() || !stream.feed("y").finish()) {
+            throw new AssertionError("Expected the stream to match after 5000 copies of 'ab'");
+        }
+    }
+
+    private static void testLongStream() {
+        StateMachine machine = StateMachine.compile(".*error [0-9]+",
+                CompileOptions.defaults().withEngine(CompileOptions.Engine.NFA));
+        StreamMatcher stream = machine.newStream();
+        char[] chunk = "ok ok ok error ok ".repeat(1000).toCharArray();
+        for (int i = 0; i < 200; i++) {
+            stream.feed(chunk, 0, chunk.length);
+        }
+        assertions++;
+        if (stream.isMatch() || !stream.feed("error 42").finish()
+                || stream.position() != 200L * chunk.length + 8) {
+            throw new AssertionError("Unexpected result at the end of a long stream");
+        }
+    }
+
+    private static void testDeadStreamStopsEarly() {
+        StreamMatcher stream = StateMachine.compile("abc").newStream().feed("abx");
+        assertions++;
+        if (stream.canMatch() || stream.feed("abc").isMatch() || stream.position() != 6) {
+            throw new AssertionError("Expected the stream to stay dead");
+        }
+    }
+
+    private static void testInvalidUse() {
+        StreamMatcher stream = StateMachine.compile("abc").newStream();
+        assertions++;
+        try {
+            stream.feed("abc", 2, 2);
+            throw new AssertionError("Expected an out of bounds chunk to be rejected");
+        } catch (IndexOutOfBoundsException expected) {
+            // Expected.
+        }
+        stream.feed("abc").finish();
+        assertions++;
+        try {
+            stream.feed("d");
+            throw new AssertionError("Expected a finished stream to reject input");
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+    }
+
+    public static void main(String[] args) {
+        testStreamsAgreeWithRun();
+        testStreamWithCounters();
+        testLongStream();
+        testDeadStreamStopsEarly();
+        testInvalidUse();
+
+        System.out.println("StreamMatcherTest passed (" + assertions + " assertions)");
+    }
+}
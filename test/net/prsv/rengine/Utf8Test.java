@@ -0,0 +1,142 @@
+package net.prsv.rengine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public final class Utf8Test {
+
+    private static int assertions;
+
+    private static final String[] PATTERNS = {
+            "abc",
+            "(a|b)*c",
+            ".*",
+            "..",
+            "caf\u00e9",
+            "[^a]*",
+            ".*\u20ac.*",
+            "[\u00e0-\u00ff]+x?",
+            "\ud83d\ude00+",
+            "([\ud800-\udbff][\udc00-\udfff])*a",
+            "[\u0800-\uffff]*",
+            "(\u4e2d|\u00e9|b){2-4}",
+            "x(ab){5000}y|.*c",
+            "[^\ud83d]*\ude00.*",
+    };
+
+    // one- to four-byte characters, including both ends of each encoding length
+    private static final String[] SYMBOLS = {
+            "a", "b", "c", "x", "\u0000", "\u007f", "\u0080", "\u00e9", "\u07ff", "\u0800", "\u20ac",
+            "\u4e2d", "\ud7ff", "\ue000", "\uffff", "\ud800\udc00", "\ud83d\ude00", "\ud83d\ude01",
+            "\udbff\udfff",
+    };
+
+    private Utf8Test() {
+    }
+
+    private static void check(boolean condition, String message) {
+        assertions++;
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static String randomText(Random random, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = random.nextInt(maxLength + 1); k > 0; k--) {
+            sb.append(SYMBOLS[random.nextInt(SYMBOLS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static void checkAgrees(StateMachine machine, String pattern, String text, String description) {
+        boolean expected = machine.run(text);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        check(machine.runUtf8(bytes) == expected, description + " " + pattern + " disagrees with run() on '"
+                + text + "'");
+        // the same bytes in the middle of a larger array and of direct and heap buffers
+        byte[] padded = new byte[bytes.length + 5];
+        padded[0] = (byte) 0xFF;
+        padded[1] = 'a';
+        System.arraycopy(bytes, 0, padded, 2, bytes.length);
+        padded[padded.length - 1] = (byte) 0x80;
+        check(machine.runUtf8(padded, 2, bytes.length) == expected, description + " " + pattern
+                + " disagrees on a slice of '" + text + "'");
+        ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+        direct.put(padded).position(2).limit(2 + bytes.length);
+        ByteBuffer heap = ByteBuffer.wrap(padded, 1, bytes.length + 1).slice().position(1);
+        check(machine.runUtf8(direct) == expected && machine.runUtf8(heap) == expected,
+                description + " " + pattern + " disagrees on a buffer holding '" + text + "'");
+        check(direct.position() == 2 && heap.position() == 1, "runUtf8() moved the position of a buffer");
+    }
+
+    private static void testAgreesWithRun() {
+        Random random = new Random(22);
+        for (String pattern : PATTERNS) {
+            StateMachine machine = StateMachine.compileUncached(pattern, CompileOptions.defaults());
+            // a DFA of one state cannot hold any pattern here, so the input is decoded instead
+            StateMachine decoding = StateMachine.compileUncached(pattern,
+                    CompileOptions.defaults().withDfaStateLimit(1));
+            for (int n = 0; n < 3000; n++) {
+                String text = randomText(random, n % 100 == 0 ? 20_000 : 8);
+                checkAgrees(machine, pattern, text, "The byte DFA for");
+                if (n % 10 == 0) {
+                    checkAgrees(decoding, pattern, text, "Decoding for");
+                }
+            }
+        }
+    }
+
+    private static void testMalformedInput() {
+        byte[][] malformed = {
+                {(byte) 0xFF},
+                {(byte) 0x80},
+                {'a', (byte) 0xC3},
+                {(byte) 0xC0, (byte) 0x80},
+                {(byte) 0xE0, (byte) 0x80, (byte) 0xAF},
+                {(byte) 0xED, (byte) 0xA0, (byte) 0x80},
+                {(byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80},
+                {(byte) 0xF0, (byte) 0x9F, (byte) 0x98},
+                {(byte) 0xE2, 'a', (byte) 0xAC},
+        };
+        for (String pattern : new String[]{".*", "[^a]*", "x(ab){5000}y|.*"}) {
+            for (CompileOptions options : new CompileOptions[]{CompileOptions.defaults(),
+                    CompileOptions.defaults().withDfaStateLimit(1)}) {
+                StateMachine machine = StateMachine.compileUncached(pattern, options);
+                for (byte[] bytes : malformed) {
+                    check(!machine.runUtf8(bytes) && !machine.runUtf8(ByteBuffer.wrap(bytes)),
+                            pattern + " matched malformed input");
+                }
+            }
+        }
+    }
+
+    private static void testKnownResults() {
+        StateMachine machine = StateMachine.compile("caf\u00e9 \u20ac+");
+        check(machine.runUtf8(new byte[]{'c', 'a', 'f', (byte) 0xC3, (byte) 0xA9, ' ', (byte) 0xE2, (byte) 0x82,
+                (byte) 0xAC}), "Expected the encoded text to match");
+        check(!machine.runUtf8(new byte[]{'c', 'a', 'f', 'e', ' ', (byte) 0xE2, (byte) 0x82, (byte) 0xAC}),
+                "Expected an unaccented e not to match");
+        // a supplementary character is two chars, as it is for run()
+        byte[] emoji = {(byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80};
+        check(!StateMachine.compile(".").runUtf8(emoji) && StateMachine.compile("..").runUtf8(emoji),
+                "Expected a supplementary character to be read as a surrogate pair");
+        check(StateMachine.compile("a*").runUtf8(new byte[0]), "Expected a* to match no bytes");
+        assertions++;
+        try {
+            machine.runUtf8(new byte[4], 3, 2);
+            throw new AssertionError("Expected a slice past the end of the array to be rejected");
+        } catch (IndexOutOfBoundsException expected) {
+            // Expected.
+        }
+    }
+
+    public static void main(String[] args) {
+        testAgreesWithRun();
+        testMalformedInput();
+        testKnownResults();
+
+        System.out.println("Utf8Test passed (" + assertions + " assertions)");
+    }
+}